@@ -0,0 +1,53 @@
+package com.termux.terminal;
+
+import static org.junit.Assert.assertEquals;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Checks that drawing the AI overlays of an {@link EnhancedTerminalView} allocates nothing per frame. */
+@RunWith(AndroidJUnit4.class)
+public class EnhancedTerminalViewAllocationTest {
+
+    private static final int WIDTH = 1080, HEIGHT = 1920;
+    private static final int WARM_UP_FRAMES = 10, FRAMES = 100;
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDrawingOverlaysDoesNotAllocate() {
+        final int[] allocations = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            EnhancedTerminalView view = new EnhancedTerminalView(InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+            view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+            view.layout(0, 0, WIDTH, HEIGHT);
+            view.setAIActive(true);
+            view.setAIOperation("Generating code");
+            view.setAIProgress(0.5f);
+            view.addFileHighlight("src/Main.java", "created");
+
+            Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+            // Anything laid out or cached on first use is done before counting:
+            for (int frame = 0; frame < WARM_UP_FRAMES; frame++) view.onDraw(canvas);
+
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                view.setAIProgress(0.5f + frame / (2.f * FRAMES));
+                view.onDraw(canvas);
+            }
+            Debug.stopAllocCounting();
+            allocations[0] = Debug.getThreadAllocCount();
+        });
+        assertEquals(0, allocations[0]);
+    }
+
+}
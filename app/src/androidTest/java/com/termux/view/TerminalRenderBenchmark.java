@@ -0,0 +1,93 @@
+package com.termux.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalOutput;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Times frames of a {@link TerminalRenderer} drawing a full screen of colored text with each
+ * {@link TerminalTextBackend}, to compare them on a device. Frames are drawn to a bitmap on the test thread, so this
+ * measures the time the canvas takes to draw text in software, which is what drawing text from the atlas saves most on.
+ * The frame times are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TerminalRenderBenchmark {
+
+    private static final String LOG_TAG = "TerminalRenderBenchmark";
+    private static final int WIDTH = 1080, HEIGHT = 1920, TEXT_SIZE = 32;
+    /** Frames drawn before timing, to measure glyphs and fill the atlas and the row layout cache. */
+    private static final int WARMUP_FRAMES = 10;
+    private static final int FRAMES = 200;
+
+    private static final class NullOutput extends TerminalOutput {
+        @Override public void write(byte[] data, int offset, int count) {}
+        @Override public void titleChanged(String oldTitle, String newTitle) {}
+        @Override public void onCopyTextToClipboard(String text) {}
+        @Override public void onPasteTextFromClipboard() {}
+        @Override public void onBell() {}
+        @Override public void onColorsChanged() {}
+    }
+
+    @Test
+    public void benchmarkTextBackends() {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        try {
+            Canvas canvas = new Canvas(bitmap);
+            Log.i(LOG_TAG, "canvas: " + time(new TerminalRenderer(TEXT_SIZE, Typeface.MONOSPACE, false), canvas));
+            Log.i(LOG_TAG, "glyph atlas: " + time(new TerminalRenderer(TEXT_SIZE, Typeface.MONOSPACE, true), canvas));
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /** An emulator sized to the bitmap for a renderer, with a screen full of text in changing colors. */
+    private static TerminalEmulator newEmulator(TerminalRenderer renderer) {
+        int columns = (int) (WIDTH / renderer.mFontWidth);
+        int rows = (HEIGHT - renderer.mFontLineSpacingAndAscent) / renderer.mFontLineSpacing;
+        TerminalEmulator emulator = new TerminalEmulator(new NullOutput(), columns, rows, (int) renderer.mFontWidth,
+            renderer.mFontLineSpacing, 1000, null);
+        StringBuilder output = new StringBuilder();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns - 8; column += 8)
+                output.append("\033[3").append((row + column / 8) % 8).append("mword").append(column % 10).append("  ");
+            output.append("\033[0m\r\n");
+        }
+        byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+        return emulator;
+    }
+
+    /** The average and the 90th percentile of the frame times of a renderer. */
+    private static String time(TerminalRenderer renderer, Canvas canvas) {
+        TerminalEmulator emulator = newEmulator(renderer);
+        for (int i = 0; i < WARMUP_FRAMES; i++)
+            renderer.render(emulator, canvas, 0, -1, -1, -1, -1, null);
+
+        long[] frameNanos = new long[FRAMES];
+        long totalNanos = 0;
+        for (int i = 0; i < frameNanos.length; i++) {
+            long start = System.nanoTime();
+            renderer.render(emulator, canvas, 0, -1, -1, -1, -1, null);
+            frameNanos[i] = System.nanoTime() - start;
+            totalNanos += frameNanos[i];
+        }
+        Arrays.sort(frameNanos);
+        // The nearest rank:
+        long p90Nanos = frameNanos[(frameNanos.length * 9 + 9) / 10 - 1];
+        return "avg " + TerminalFrameStats.formatMillis(totalNanos / frameNanos.length) + ", p90 "
+            + TerminalFrameStats.formatMillis(p90Nanos) + " over " + frameNanos.length + " frames";
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.termux.app;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import androidx.annotation.NonNull;
+
+import com.termux.terminal.ScrollbackBudget;
+import com.termux.terminal.TerminalEmulator;
+
+/**
+ * Keeps the scrollback of all terminal tabs in the process within one memory budget, a share of the heap available to
+ * the app, with a {@link ScrollbackBudget}. The budget is checked as output is appended, when a tab goes to the
+ * background, and history is trimmed further when the system is low on memory.
+ * <p>
+ * All methods must be called on the main thread, which is where the emulators are written to.
+ */
+public final class ScrollbackMemoryManager implements ComponentCallbacks2 {
+
+    /** The share of the heap available to the app which all scrollback together may use. */
+    private static final int HEAP_SHARE_DIVISOR = 4;
+
+    private static ScrollbackMemoryManager instance;
+
+    private final ScrollbackBudget budget;
+
+    ScrollbackMemoryManager(long budgetBytes) {
+        this.budget = new ScrollbackBudget(budgetBytes);
+    }
+
+    public static synchronized ScrollbackMemoryManager getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+            instance = new ScrollbackMemoryManager(heapBytes / HEAP_SHARE_DIVISOR);
+            appContext.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    public void register(TerminalEmulator emulator, Runnable onHistoryTrimmed) {
+        budget.register(emulator, onHistoryTrimmed);
+    }
+
+    public void unregister(TerminalEmulator emulator) {
+        budget.unregister(emulator);
+    }
+
+    /** Note that a tab is shown or hidden. Going to the background is a good time to check the budget. */
+    public void setForeground(TerminalEmulator emulator, boolean foreground) {
+        budget.setForeground(emulator, foreground);
+    }
+
+    /** Check the budget after output has been appended to the emulator of a tab. */
+    public void onTextChanged(TerminalEmulator emulator) {
+        budget.onTextChanged(emulator);
+    }
+
+    public long getBudgetBytes() {
+        return budget.getBudgetBytes();
+    }
+
+    /** An estimate of the bytes held by the buffers of all registered emulators, see {@link ScrollbackBudget}. */
+    public long getUsedBytes() {
+        return budget.getUsedBytes();
+    }
+
+    public void enforceBudget() {
+        budget.enforceBudget();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        final long budgetBytes = budget.getBudgetBytes();
+        switch (level) {
+            case TRIM_MEMORY_UI_HIDDEN:
+                budget.compactAll();
+                break;
+            case TRIM_MEMORY_RUNNING_MODERATE:
+            case TRIM_MEMORY_BACKGROUND:
+                budget.trimTo(budgetBytes / 2, false);
+                break;
+            case TRIM_MEMORY_RUNNING_LOW:
+            case TRIM_MEMORY_MODERATE:
+                budget.trimTo(budgetBytes / 4, false);
+                break;
+            case TRIM_MEMORY_RUNNING_CRITICAL:
+            case TRIM_MEMORY_COMPLETE:
+                budget.trimTo(0, true);
+                break;
+            default:
+                budget.enforceBudget();
+                break;
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        budget.trimTo(0, true);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+}
@@ -38,7 +38,10 @@ import java.io.File;
 import java.io.Serializable;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -178,6 +181,7 @@ public class TabbedTerminalActivity extends AppCompatActivity {
             // and we want it to be initially hidden without a "slide out" effect on app start.
     
             loadTabs();
+            if (savedInstanceState == null) deleteUnusedScreenStates();
 
             // Show onboarding on first launch
             if (OnboardingOverlay.shouldShowOnboarding(this)) {
@@ -655,6 +659,7 @@ public class TabbedTerminalActivity extends AppCompatActivity {
             return;
         }
         
+        TerminalFragment.deleteScreenState(getStateFile(terminalTabs.get(position)));
         terminalTabs.remove(position);
         tabAdapter.notifyItemRemoved(position);
         
@@ -930,6 +935,9 @@ public class TabbedTerminalActivity extends AppCompatActivity {
         TerminalTab tabToKeep = terminalTabs.get(keepPosition);
 
         // Remove all tabs except the one to keep
+        for (TerminalTab tab : terminalTabs) {
+            if (tab != tabToKeep) TerminalFragment.deleteScreenState(getStateFile(tab));
+        }
         terminalTabs.clear();
         terminalTabs.add(tabToKeep);
 
@@ -951,7 +959,7 @@ public class TabbedTerminalActivity extends AppCompatActivity {
 
         // Remove tabs from the end to the right of position
         for (int i = 0; i < tabsToRemove; i++) {
-            terminalTabs.remove(terminalTabs.size() - 1);
+            TerminalFragment.deleteScreenState(getStateFile(terminalTabs.remove(terminalTabs.size() - 1)));
         }
 
         // Refresh adapter
@@ -1015,6 +1023,30 @@ public class TabbedTerminalActivity extends AppCompatActivity {
         return PREFS_NAME + "_" + sessionId;
     }
 
+    /** The directory the screens of the tabs of this session are saved in, apart from those of other sessions. */
+    private File getStateDirectory() {
+        return new File(new File(getFilesDir(), "terminal-state"), getPrefsName());
+    }
+
+    private File getStateFile(TerminalTab tab) {
+        return new File(getStateDirectory(), tab.getStateKey() + ".bin");
+    }
+
+    /**
+     * Delete the saved screens of tabs which are no longer open, such as those closed before the process was killed
+     * while their screen was being written.
+     */
+    private void deleteUnusedScreenStates() {
+        Set<String> keptFiles = new HashSet<>();
+        for (TerminalTab tab : terminalTabs) {
+            keptFiles.add(getStateFile(tab).getPath());
+        }
+        File stateDirectory = getStateDirectory();
+        TerminalFragment.deleteScreenStatesExcept(stateDirectory, keptFiles);
+        // Screens saved before they were kept per session:
+        TerminalFragment.deleteScreenStatesExcept(stateDirectory.getParentFile(), Collections.emptySet());
+    }
+
     private void saveTabs() {
         if (ioExecutor == null || ioExecutor.isShutdown()) return;
 
@@ -1093,10 +1125,10 @@ public class TabbedTerminalActivity extends AppCompatActivity {
         public Fragment createFragment(int position) {
             if (position < 0 || position >= terminalTabs.size()) {
                 // Fallback to prevent crash - create default fragment
-                return TerminalFragment.newInstance("home", getDefaultDirectory(), 0);
+                return TerminalFragment.newInstance("home", getDefaultDirectory(), 0, null);
             }
             TerminalTab tab = terminalTabs.get(position);
-            return TerminalFragment.newInstance(tab.getName(), tab.getWorkingDirectory(), position);
+            return TerminalFragment.newInstance(tab.getName(), tab.getWorkingDirectory(), position, getStateFile(tab));
         }
         
         @Override
@@ -1224,6 +1256,8 @@ public class TabbedTerminalActivity extends AppCompatActivity {
         private String projectType;
         private boolean claudeActive;
         private long lastActivityTime;
+        /** Names the file the screen of the tab is saved to, unique unlike {@link #id} which restarts with the process. */
+        private String stateKey;
         
         public TerminalTab(String name, String workingDirectory, String projectType) {
             this.id = nextId++;
@@ -1236,6 +1270,7 @@ public class TabbedTerminalActivity extends AppCompatActivity {
             }
             this.claudeActive = false;
             this.lastActivityTime = System.currentTimeMillis();
+            this.stateKey = UUID.randomUUID().toString();
         }
 
         private String mapProjectTypeNameToId(String name) {
@@ -1294,6 +1329,11 @@ public class TabbedTerminalActivity extends AppCompatActivity {
         public boolean isClaudeActive() { return claudeActive; }
         public void setClaudeActive(boolean claudeActive) { this.claudeActive = claudeActive; }
         public long getLastActivityTime() { return lastActivityTime; }
+        public String getStateKey() {
+            // Tabs saved before there was a key get one when loaded, kept once the tabs are saved again:
+            if (stateKey == null) stateKey = UUID.randomUUID().toString();
+            return stateKey;
+        }
         public void updateActivityTime() { this.lastActivityTime = System.currentTimeMillis(); }
     }
 }
\ No newline at end of file
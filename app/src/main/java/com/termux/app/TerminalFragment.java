@@ -3,8 +3,11 @@ package com.termux.app;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -13,20 +16,37 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
 import androidx.fragment.app.Fragment;
 
+import com.termux.ai.BuildConfig;
 import com.termux.ai.R;
 import com.termux.terminal.EnhancedTerminalView;
+import com.termux.terminal.TerminalBuffer;
+import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSessionClient;
+import com.termux.terminal.TerminalStateStore;
 
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.termux.plus.api.AIProvider;
 import com.termux.plus.plugin.PluginManager;
@@ -41,21 +61,37 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
     private static final String ARG_TAB_NAME = "tab_name";
     private static final String ARG_WORKING_DIR = "working_dir";
     private static final String ARG_TAB_INDEX = "tab_index";
+    private static final String ARG_STATE_FILE = "state_file";
+
+    /**
+     * Writes and deletes the saved screens of all tabs in order, so that the screen of a tab closed while it is being
+     * written is deleted after the write.
+     */
+    private static final ExecutorService STATE_EXECUTOR = Executors.newSingleThreadExecutor();
+    /** The saved screens of the tabs closed in this process, which are not written again. Only used on the main thread. */
+    private static final Set<String> deletedStateFiles = new HashSet<>();
     
     private String tabName;
     private String workingDirectory;
     private int tabIndex;
+    /** The path of the file the screen is saved to, which stays with the tab when tabs are moved. Null to not save. */
+    private String stateFile;
     
     private EnhancedTerminalView terminalView;
     private TerminalSession terminalSession;
+    /** Keeps the screen of the session across the process being killed, written on {@link #STATE_EXECUTOR}. */
+    private TerminalStateStore stateStore;
+    /** The emulator of the session once set up in {@link #onEmulatorSet()}, which is also called when it is resized. */
+    private TerminalEmulator setUpEmulator;
     private WeakReference<TabbedTerminalActivity> parentActivityRef;
     
-    public static TerminalFragment newInstance(String tabName, String workingDirectory, int tabIndex) {
+    public static TerminalFragment newInstance(String tabName, String workingDirectory, int tabIndex, @Nullable File stateFile) {
         TerminalFragment fragment = new TerminalFragment();
         Bundle args = new Bundle();
         args.putString(ARG_TAB_NAME, tabName);
         args.putString(ARG_WORKING_DIR, workingDirectory);
         args.putInt(ARG_TAB_INDEX, tabIndex);
+        args.putString(ARG_STATE_FILE, (stateFile == null) ? null : stateFile.getPath());
         fragment.setArguments(args);
         return fragment;
     }
@@ -67,17 +103,66 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
             tabName = getArguments().getString(ARG_TAB_NAME);
             workingDirectory = getArguments().getString(ARG_WORKING_DIR);
             tabIndex = getArguments().getInt(ARG_TAB_INDEX);
+            stateFile = getArguments().getString(ARG_STATE_FILE);
         }
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        if (terminalSession != null && terminalSession.getEmulator() != null && getContext() != null)
+            ScrollbackMemoryManager.getInstance(getContext()).setForeground(terminalSession.getEmulator(), true);
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        // Check the budget while going to the background, before saving the possibly trimmed screen:
+        if (terminalSession != null && terminalSession.getEmulator() != null && getContext() != null)
+            ScrollbackMemoryManager.getInstance(getContext()).setForeground(terminalSession.getEmulator(), false);
+        saveScreenState();
+    }
+
+    /** Save the screen, capturing it here and writing only what changed since the last save in the background. */
+    private void saveScreenState() {
+        if (stateStore == null || terminalSession == null || terminalSession.getEmulator() == null) return;
+        // Paused as its tab is removed, after the screen was deleted:
+        if (deletedStateFiles.contains(stateFile)) return;
+        final TerminalStateStore.State state = TerminalStateStore.capture(terminalSession.getEmulator());
+        final TerminalStateStore store = stateStore;
+        STATE_EXECUTOR.execute(() -> {
+            try {
+                store.write(state);
+            } catch (IOException e) {
+                Log.e("TermuxAI", "Failed to save terminal screen", e);
+            }
+        });
+    }
+
+    /**
+     * Delete the saved screen of a closed tab, after any write of it still pending, and keep its fragment from writing
+     * it again when paused as it is removed. Called on the main thread.
+     */
+    static void deleteScreenState(File file) {
+        deletedStateFiles.add(file.getPath());
+        STATE_EXECUTOR.execute(() -> deleteStateFile(file));
+    }
+
+    /**
+     * Delete the saved screens in a directory other than the given ones, left behind by tabs closed while the screen
+     * could not be deleted, such as when the process was killed.
+     */
+    static void deleteScreenStatesExcept(File directory, Set<String> keptFiles) {
+        STATE_EXECUTOR.execute(() -> {
+            File[] files = directory.listFiles();
+            if (files == null) return;
+            for (File file : files)
+                if (file.isFile() && !keptFiles.contains(file.getPath())) deleteStateFile(file);
+        });
+    }
+
+    private static void deleteStateFile(File file) {
+        if (file.exists() && !file.delete()) Log.w("TermuxAI", "Failed to delete saved terminal screen " + file);
     }
     
     @Override
@@ -124,6 +209,9 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
             terminalView.setGboardAutoCompleteEnabled(true);
         }
 
+        // Record frame timings in debug builds, see dump(). Once attached, to judge jank by the refresh rate of the display:
+        if (BuildConfig.DEBUG) terminalView.post(() -> terminalView.setFrameStatsEnabled(true));
+
         // Request focus and show keyboard when terminal is ready
         terminalView.post(() -> {
             terminalView.requestFocus();
@@ -212,11 +300,49 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
             this
         );
         
+        // The emulator is only created once the view has a size:
+        terminalView.setOnEmulatorSetListener(this::onEmulatorSet);
         terminalView.attachSession(terminalSession);
-        
+    }
+
+    private void onEmulatorSet() {
+        TerminalEmulator emulator = terminalSession.getEmulator();
+        if (emulator == null || emulator == setUpEmulator || getContext() == null) return;
+        setUpEmulator = emulator;
+
+        // Redraw when history is trimmed, so that the view does not stay scrolled to rows which are gone:
+        ScrollbackMemoryManager memoryManager = ScrollbackMemoryManager.getInstance(getContext());
+        memoryManager.register(emulator, () -> {
+            if (terminalView != null) terminalView.onScreenUpdated();
+        });
+        // Resumed before the view was laid out, when there was no emulator yet:
+        memoryManager.setForeground(emulator, isResumed());
+
+        // Show the screen as it was if the process was killed. The new shell then continues below it instead of
+        // running the initial commands, which would clear it:
+        if (restoreScreenState(emulator)) return;
+
         // Send initial setup commands
         sendInitialCommands();
     }
+
+    private boolean restoreScreenState(TerminalEmulator emulator) {
+        if (stateFile == null || deletedStateFiles.contains(stateFile)) return false;
+        File stateDirectory = new File(stateFile).getParentFile();
+        if (!stateDirectory.isDirectory() && !stateDirectory.mkdirs()) return false;
+        stateStore = new TerminalStateStore(new File(stateFile));
+        try {
+            if (!stateStore.restore(emulator)) return false;
+        } catch (IOException e) {
+            Log.e("TermuxAI", "Failed to restore terminal screen", e);
+            return false;
+        }
+        // Whatever ran before is gone: leave its alternate screen and modes, and start on a new line.
+        byte[] reset = "\033[?1049l\033[!p\r\n".getBytes(StandardCharsets.UTF_8);
+        emulator.append(reset, reset.length);
+        terminalView.onScreenUpdated();
+        return true;
+    }
     
     private String[] buildEnvironmentFromJson() {
         try {
@@ -280,17 +406,41 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
     }
     
     public void shareTranscript() {
-        if (terminalView != null) {
-            String transcriptText = terminalView.getTranscriptText();
-            if (transcriptText != null && !transcriptText.isEmpty()) {
-                Intent intent = new Intent(Intent.ACTION_SEND);
-                intent.setType("text/plain");
-                intent.putExtra(Intent.EXTRA_TEXT, transcriptText);
-                startActivity(Intent.createChooser(intent, "Share Transcript"));
-            } else {
-                Toast.makeText(getContext(), "No transcript to share", Toast.LENGTH_SHORT).show();
-            }
+        if (terminalView == null || getContext() == null) return;
+        final TerminalBuffer transcript = terminalView.snapshotTranscript();
+        if (transcript == null) {
+            Toast.makeText(getContext(), "No transcript to share", Toast.LENGTH_SHORT).show();
+            return;
         }
+
+        // Stream to a file instead of EXTRA_TEXT, which needs the whole transcript in memory and fails above the
+        // binder transaction limit. The snapshot is written on a background thread while the session keeps running:
+        final Context context = getContext().getApplicationContext();
+        final File transcriptFile = new File(context.getCacheDir(), "transcript.txt");
+        new Thread(() -> {
+            boolean written;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(transcriptFile), StandardCharsets.UTF_8))) {
+                transcript.writeTranscript(writer, Integer.MIN_VALUE, Integer.MAX_VALUE, true, false);
+                written = true;
+            } catch (IOException e) {
+                Log.e("TermuxAI", "Failed to write transcript", e);
+                written = false;
+            }
+            final boolean shareable = written && transcriptFile.length() > 0;
+            new Handler(Looper.getMainLooper()).post(() -> {
+                if (!isAdded()) return;
+                if (shareable) {
+                    Uri uri = FileProvider.getUriForFile(context, context.getPackageName() + ".fileprovider", transcriptFile);
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_STREAM, uri);
+                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    startActivity(Intent.createChooser(intent, "Share Transcript"));
+                } else {
+                    Toast.makeText(context, "No transcript to share", Toast.LENGTH_SHORT).show();
+                }
+            });
+        }, "TranscriptWriter").start();
     }
 
     public boolean isClaudeActive() {
@@ -354,11 +504,20 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (terminalSession != null && terminalSession.getEmulator() != null && getContext() != null)
+            ScrollbackMemoryManager.getInstance(getContext()).unregister(terminalSession.getEmulator());
         if (terminalSession != null) {
             terminalSession.finishIfRunning();
         }
     }
     
+    /** Report the frame timings of the terminal with {@code adb shell dumpsys activity com.termux.ai}. */
+    @Override
+    public void dump(@NonNull String prefix, @Nullable FileDescriptor fd, @NonNull PrintWriter writer, @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (terminalView != null) terminalView.dumpFrameStats(prefix, writer);
+    }
+
     // TerminalSessionClient implementation
     @Override
     public void onTextChanged(@NonNull TerminalSession changedSession) {
@@ -366,6 +525,8 @@ public class TerminalFragment extends Fragment implements TerminalSessionClient
             terminalView.onScreenUpdated();
             terminalView.processNewOutput();
         }
+        if (changedSession.getEmulator() != null && getContext() != null)
+            ScrollbackMemoryManager.getInstance(getContext()).onTextChanged(changedSession.getEmulator());
     }
     
     @Override
@@ -1,10 +1,15 @@
 package com.termux.terminal;
 
+import android.content.ActivityNotFoundException;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.InputType;
@@ -20,6 +25,7 @@ import android.widget.Toast;
 import android.util.Log;
 
 import com.termux.plus.api.AIProvider;
+import com.termux.view.TerminalLinkDetector;
 import com.termux.view.TerminalView;
 import com.termux.view.TerminalViewClient;
 
@@ -40,6 +46,16 @@ import java.util.concurrent.Executors;
  */
 public class EnhancedTerminalView extends TerminalView {
     private static final String TAG = "EnhancedTerminalView";
+
+    // Layout of the AI overlays, in pixels
+    private static final int TOP_BAR_HEIGHT = 4;
+    private static final int STATUS_TEXT_SIZE = 24;
+    private static final int STATUS_BASELINE = 32;
+    private static final int STATUS_MARGIN = 16;
+    private static final int PROGRESS_HEIGHT = 8;
+    /** The height of the band at the top which file highlights are drawn in, all of them in the same one. */
+    private static final int HIGHLIGHT_HEIGHT = 40;
+    private static final long HIGHLIGHT_DURATION_MS = 5000;
     
     // AI Integration
     private AIProvider currentAIProvider;
@@ -56,7 +72,12 @@ public class EnhancedTerminalView extends TerminalView {
     private Paint overlayPaint;
     private Paint progressPaint;
     private Paint highlightPaint;
+    private Paint statusPaint;
     private List<FileHighlight> fileHighlights;
+
+    // Laid out when the operation changes, not on every frame
+    private String statusText = "";
+    private final Rect statusBounds = new Rect();
     
     // Gesture handling
     private GestureDetector gestureDetector;
@@ -74,6 +95,8 @@ public class EnhancedTerminalView extends TerminalView {
     }
     
     private ClaudeCodeListener legacyListener;
+    /** Run when the emulator of the session is created or resized, see {@link TerminalViewClient#onEmulatorSet()}. */
+    private Runnable emulatorSetListener;
     
     public EnhancedTerminalView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -99,6 +122,7 @@ public class EnhancedTerminalView extends TerminalView {
     private class DefaultTerminalViewClient implements TerminalViewClient {
         @Override public float onScale(float scale) { return scale; }
         @Override public void onSingleTapUp(MotionEvent e) { showKeyboard(); }
+        @Override public boolean onLinkTapped(TerminalLinkDetector.Link link) { return openLink(link); }
         @Override public boolean shouldBackButtonBeMappedToEscape() { return true; }
         @Override public boolean shouldEnforceCharBasedInput() { return false; }
         @Override public boolean shouldUseCtrlSpaceWorkaround() { return false; }
@@ -112,7 +136,7 @@ public class EnhancedTerminalView extends TerminalView {
         @Override public boolean readShiftKey() { return false; }
         @Override public boolean readFnKey() { return false; }
         @Override public boolean onCodePoint(int codePoint, boolean ctrlDown, TerminalSession session) { return false; }
-        @Override public void onEmulatorSet() {}
+        @Override public void onEmulatorSet() { if (emulatorSetListener != null) emulatorSetListener.run(); }
         @Override public void logError(String tag, String message) { Log.e(tag, message); }
         @Override public void logWarn(String tag, String message) { Log.w(tag, message); }
         @Override public void logInfo(String tag, String message) { Log.i(tag, message); }
@@ -122,6 +146,23 @@ public class EnhancedTerminalView extends TerminalView {
         @Override public void logStackTrace(String tag, Exception e) { Log.e(tag, "Stack trace", e); }
     }
 
+    /** Open a tapped url, or copy a tapped path or hash to the clipboard. */
+    private boolean openLink(TerminalLinkDetector.Link link) {
+        if (link.type == TerminalLinkDetector.Link.TYPE_URL) {
+            try {
+                getContext().startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(link.target)).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+            } catch (ActivityNotFoundException e) {
+                Toast.makeText(getContext(), "No app to open " + link.target, Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        }
+        ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard == null) return false;
+        clipboard.setPrimaryClip(ClipData.newPlainText(null, link.text));
+        Toast.makeText(getContext(), "Copied " + link.text, Toast.LENGTH_SHORT).show();
+        return true;
+    }
+
     public void setAIProvider(AIProvider provider) {
         this.currentAIProvider = provider;
         if (provider != null) {
@@ -133,6 +174,14 @@ public class EnhancedTerminalView extends TerminalView {
         this.tabIndex = index;
     }
 
+    /**
+     * Set what to run when the emulator of the session is created, once the view has been laid out, or resized. The
+     * emulator of an attached session is null until then.
+     */
+    public void setOnEmulatorSetListener(Runnable listener) {
+        this.emulatorSetListener = listener;
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
@@ -156,14 +205,20 @@ public class EnhancedTerminalView extends TerminalView {
         highlightPaint = new Paint();
         highlightPaint.setAntiAlias(true);
         highlightPaint.setColor(0x4400FF00); 
+
+        statusPaint = new Paint();
+        statusPaint.setAntiAlias(true);
+        statusPaint.setColor(0xFF4CAF50);
+        statusPaint.setTextSize(STATUS_TEXT_SIZE);
+        statusPaint.setTypeface(Typeface.DEFAULT_BOLD);
     }
 
     private void setupGestureDetector() {
         gestureDetector = new GestureDetector(getContext(), new GestureDetector.SimpleOnGestureListener() {
             @Override
             public boolean onDoubleTap(MotionEvent e) {
-                // Implementation for double tap
-                return true;
+                // Fold or unfold the output of the command tapped on:
+                return toggleFoldAt(e);
             }
             // ... (other gestures)
         });
@@ -174,9 +229,8 @@ public class EnhancedTerminalView extends TerminalView {
             @Override
             public void onOperationDetected(String operation) {
                 mainHandler.post(() -> {
-                    isAIActive = true;
-                    currentAIOperation = operation;
-                    invalidate();
+                    setAIActive(true);
+                    setAIOperation(operation);
                     if (legacyListener != null) legacyListener.onClaudeOperationStarted(operation);
                 });
             }
@@ -184,8 +238,7 @@ public class EnhancedTerminalView extends TerminalView {
             @Override
             public void onProgressUpdated(float progress) {
                 mainHandler.post(() -> {
-                    aiProgress = progress;
-                    invalidate(0, getHeight() - 50, getWidth(), getHeight());
+                    setAIProgress(progress);
                     if (legacyListener != null) legacyListener.onClaudeProgressUpdated(progress);
                 });
             }
@@ -208,10 +261,9 @@ public class EnhancedTerminalView extends TerminalView {
             @Override
             public void onCompleted() {
                 mainHandler.post(() -> {
-                    isAIActive = false;
-                    currentAIOperation = "";
-                    aiProgress = 0.0f;
-                    invalidate();
+                    setAIProgress(0.0f);
+                    setAIOperation("");
+                    setAIActive(false);
                     if (legacyListener != null) legacyListener.onClaudeOperationCompleted();
                 });
             }
@@ -227,30 +279,22 @@ public class EnhancedTerminalView extends TerminalView {
 
     /** Called by TerminalFragment when session text changes; triggers AI processing. */
     public void processNewOutput() {
-        final String currentLine = getCurrentLine();
-        if (currentLine != null && currentAIProvider != null && !backgroundExecutor.isShutdown()) {
-            backgroundExecutor.execute(() -> {
-                if (currentAIProvider.isEnabled()) {
-                    currentAIProvider.processTerminalOutput(currentLine, tabIndex);
-                }
-            });
+        final TerminalEmulator emulator = getCurrentEmulator();
+        final AIProvider provider = currentAIProvider;
+        // Checked before taking the snapshot, as a shared row is copied when next written to and not pooled again:
+        if (emulator != null && provider != null && provider.isEnabled() && !backgroundExecutor.isShutdown()) {
+            // Only the snapshot is taken here, the text is read from it on the background thread:
+            final int row = emulator.getCursorRow();
+            final int columns = emulator.mColumns;
+            final TerminalBuffer currentLine = emulator.getScreen().snapshot(row, row);
+            backgroundExecutor.execute(() ->
+                provider.processTerminalOutput(currentLine.getSelectedText(0, row, columns, row), tabIndex));
         }
     }
 
-    private String getCurrentLine() {
-        try {
-            TerminalSession session = getCurrentSession();
-            if (session != null) {
-                TerminalEmulator emulator = session.getEmulator();
-                if (emulator != null) {
-                    int row = emulator.getCursorRow();
-                    return emulator.getScreen().getSelectedText(0, row, emulator.mColumns, row);
-                }
-            }
-        } catch (Exception e) {
-            // Ignore errors
-        }
-        return null;
+    private TerminalEmulator getCurrentEmulator() {
+        TerminalSession session = getCurrentSession();
+        return (session == null) ? null : session.getEmulator();
     }
 
     public String getTranscriptText() {
@@ -268,8 +312,65 @@ public class EnhancedTerminalView extends TerminalView {
         return null;
     }
 
+    /**
+     * Take a snapshot of the transcript of the current session, which can be written out on a background thread while
+     * the session keeps running.
+     *
+     * @return null if there is no session.
+     */
+    public TerminalBuffer snapshotTranscript() {
+        TerminalEmulator emulator = getCurrentEmulator();
+        return (emulator == null) ? null : emulator.getScreen().snapshot(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
     // ... (drawing methods adapted for generic AI) ...
 
+    /**
+     * Lay out the status text of an operation, and invalidate the top overlay where the old and the new text are. This
+     * and the other methods setting what the overlays show are package private for tests.
+     */
+    void setAIOperation(String operation) {
+        invalidateStatusBar();
+        currentAIOperation = operation;
+        statusText = operation.isEmpty() ? "" : "🤖 " + operation;
+        if (statusText.isEmpty()) {
+            statusBounds.setEmpty();
+        } else {
+            statusPaint.getTextBounds(statusText, 0, statusText.length(), statusBounds);
+        }
+        invalidateStatusBar();
+    }
+
+    /** Show or hide the overlays, invalidating only where they are drawn. */
+    void setAIActive(boolean active) {
+        if (active == isAIActive) return;
+        int oldProgressRight = progressRight();
+        isAIActive = active;
+        invalidateStatusBar();
+        int progressRight = Math.max(oldProgressRight, progressRight());
+        if (progressRight > 0) invalidate(0, getHeight() - PROGRESS_HEIGHT, progressRight, getHeight());
+    }
+
+    /** Set the progress, invalidating the part of the progress bar which changed, if any. */
+    void setAIProgress(float progress) {
+        int oldRight = progressRight();
+        aiProgress = progress;
+        int newRight = progressRight();
+        if (newRight != oldRight) {
+            invalidate(Math.min(oldRight, newRight), getHeight() - PROGRESS_HEIGHT, Math.max(oldRight, newRight), getHeight());
+        }
+    }
+
+    /** The right of the progress bar, or 0 if it is not shown. */
+    private int progressRight() {
+        return (isAIActive && aiProgress > 0 && aiProgress < 1.0f) ? (int) (getWidth() * aiProgress) : 0;
+    }
+
+    /** Invalidate the top bar and the status text below it. */
+    private void invalidateStatusBar() {
+        invalidate(0, 0, getWidth(), Math.max(TOP_BAR_HEIGHT, STATUS_BASELINE + statusBounds.bottom + 1));
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -277,67 +378,55 @@ public class EnhancedTerminalView extends TerminalView {
             drawAIOverlays(canvas);
             drawProgressIndicator(canvas);
         }
-        drawFileHighlights(canvas);
+        if (!fileHighlights.isEmpty()) drawFileHighlights(canvas);
     }
 
     private void drawAIOverlays(Canvas canvas) {
         int width = getWidth();
         
         // Top indicator bar
-        canvas.drawRect(0, 0, width, 4, progressPaint);
+        canvas.drawRect(0, 0, width, TOP_BAR_HEIGHT, progressPaint);
         
-        // Status text
-        if (!currentAIOperation.isEmpty()) {
-            String statusText = "🤖 " + currentAIOperation;
-            Paint textPaint = new Paint();
-            textPaint.setColor(0xFF4CAF50);
-            textPaint.setTextSize(24);
-            textPaint.setTypeface(Typeface.DEFAULT_BOLD);
-            
-            Rect textBounds = new Rect();
-            textPaint.getTextBounds(statusText, 0, statusText.length(), textBounds);
-            
-            canvas.drawText(statusText, width - textBounds.width() - 16, 32, textPaint);
+        // Status text, laid out by setAIOperation()
+        if (!statusText.isEmpty()) {
+            canvas.drawText(statusText, width - statusBounds.width() - STATUS_MARGIN, STATUS_BASELINE, statusPaint);
         }
     }
 
     private void drawProgressIndicator(Canvas canvas) {
-        if (aiProgress > 0 && aiProgress < 1.0f) {
-            int width = getWidth();
-            int progressWidth = (int)(width * aiProgress);
-            
-            canvas.drawRect(0, getHeight() - 8, progressWidth, getHeight(), progressPaint);
+        int progressRight = progressRight();
+        if (progressRight > 0) {
+            canvas.drawRect(0, getHeight() - PROGRESS_HEIGHT, progressRight, getHeight(), progressPaint);
         }
     }
 
     private void drawFileHighlights(Canvas canvas) {
         long currentTime = System.currentTimeMillis();
-        boolean needsInvalidate = false;
-        
-        fileHighlights.removeIf(highlight -> currentTime - highlight.timestamp > 5000);
-        
-        for (FileHighlight highlight : fileHighlights) {
-            float alpha = 1.0f - ((currentTime - highlight.timestamp) / 5000.0f);
-            if (alpha > 0) {
-                highlightPaint.setAlpha((int)(alpha * 68));
-                canvas.drawRect(highlight.rect, highlightPaint);
-                needsInvalidate = true;
+        int width = getWidth();
+
+        // By index, as an iterator or a removeIf() predicate would be allocated on each frame of the fade:
+        for (int i = fileHighlights.size() - 1; i >= 0; i--) {
+            FileHighlight highlight = fileHighlights.get(i);
+            float alpha = 1.0f - ((currentTime - highlight.timestamp) / (float) HIGHLIGHT_DURATION_MS);
+            if (alpha <= 0) {
+                fileHighlights.remove(i);
+                continue;
             }
+            highlightPaint.setAlpha((int)(alpha * 68));
+            canvas.drawRect(0, 0, width, HIGHLIGHT_HEIGHT, highlightPaint);
         }
-        
-        if (needsInvalidate) {
-            postInvalidateOnAnimation();
-        }
+
+        // Drawn again while fading, and once more after the last one expired to clear it:
+        postInvalidateOnAnimation(0, 0, width, HIGHLIGHT_HEIGHT);
     }
 
-    private void addFileHighlight(String filePath, String action) {
+    void addFileHighlight(String filePath, String action) {
         FileHighlight highlight = new FileHighlight();
         highlight.filePath = filePath;
         highlight.action = action;
         highlight.timestamp = System.currentTimeMillis();
-        highlight.rect = new Rect(0, 0, getWidth(), 40); 
         fileHighlights.add(highlight);
-        invalidate();
+        invalidate(0, 0, getWidth(), HIGHLIGHT_HEIGHT);
     }
 
     // Input connection and keyboard handling...
@@ -398,14 +487,12 @@ public class EnhancedTerminalView extends TerminalView {
     }
 
     public void forceClaudeCodeMode(boolean active) {
-        this.isAIActive = active;
-        invalidate();
+        setAIActive(active);
     }
 
     private static class FileHighlight {
         String filePath;
         String action;
         long timestamp;
-        Rect rect;
     }
 }
\ No newline at end of file
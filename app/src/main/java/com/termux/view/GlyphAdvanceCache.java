@@ -0,0 +1,124 @@
+package com.termux.view;
+
+import android.graphics.Paint;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The advances of code points as measured by a {@link Paint}, which includes the fonts the paint falls back to for code
+ * points its typeface lacks, so one cache is only valid for one typeface and text size. Created by each
+ * {@link TerminalRenderer}, which is recreated when either changes.
+ * <p>
+ * The advances are kept in an open addressing hash map from code point to advance, which stops taking new code points
+ * when {@link #MAX_ENTRIES} are kept. Code points used by full screen programs and CJK text, see
+ * {@link #PREWARMED_RANGES}, are measured in the background when the cache is created, and taken into the map by the
+ * first lookup after that finished.
+ * <p>
+ * Lookups must be done on one thread, the main thread.
+ */
+final class GlyphAdvanceCache {
+
+    /** The number of slots of the map, a power of two. */
+    private static final int CAPACITY = 1 << 15;
+    /** The max number of code points kept, to keep probe sequences short. */
+    private static final int MAX_ENTRIES = CAPACITY * 3 / 4;
+    /** The max number of code points measured in the background, leaving room for the ones looked up later. */
+    private static final int MAX_PREWARMED_ENTRIES = CAPACITY / 2;
+    /** A key which is not a code point, for empty slots. */
+    private static final int NO_CODE_POINT = -1;
+
+    /** Inclusive ranges of code points to measure in the background, the most used first. */
+    private static final int[] PREWARMED_RANGES = {
+        0x2500, 0x25FF, // Box drawing, block elements and geometric shapes.
+        0x2190, 0x21FF, // Arrows.
+        0x2800, 0x28FF, // Braille patterns, used for graphs.
+        0xE0A0, 0xE0A3, // Powerline symbols, in the private use area.
+        0xE0B0, 0xE0D7,
+        0x3000, 0x30FF, // CJK symbols and punctuation, hiragana and katakana.
+        0xFF00, 0xFFEF, // Halfwidth and fullwidth forms.
+        0x4E00, 0x9FFF, // CJK unified ideographs, as many as fit.
+    };
+
+    private static final ExecutorService PREWARM_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GlyphAdvanceCache");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /** A map from code point to advance. */
+    private static final class Table {
+        final int[] mCodePoints = new int[CAPACITY];
+        final float[] mAdvances = new float[CAPACITY];
+        int mSize;
+
+        Table() {
+            Arrays.fill(mCodePoints, NO_CODE_POINT);
+        }
+
+        /** The slot of a code point, or of the empty slot where it would be put. */
+        int slotOf(int codePoint) {
+            int hash = codePoint * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+            while (mCodePoints[slot] != codePoint && mCodePoints[slot] != NO_CODE_POINT)
+                slot = (slot + 1) & (CAPACITY - 1);
+            return slot;
+        }
+
+        void put(int codePoint, float advance) {
+            int slot = slotOf(codePoint);
+            if (mCodePoints[slot] == NO_CODE_POINT) {
+                if (mSize == MAX_ENTRIES) return;
+                mCodePoints[slot] = codePoint;
+                mSize++;
+            }
+            mAdvances[slot] = advance;
+        }
+    }
+
+    /** Measures on the main thread, a copy of the paint given taken before it is used for drawing. */
+    private final Paint mPaint;
+    private Table mTable = new Table();
+    /** The code points measured in the background, until taken into {@link #mTable}. */
+    private volatile Table mPrewarmedTable;
+
+    GlyphAdvanceCache(Paint paint) {
+        mPaint = new Paint(paint);
+        final Paint prewarmPaint = new Paint(paint);
+        PREWARM_EXECUTOR.execute(() -> mPrewarmedTable = prewarm(prewarmPaint));
+    }
+
+    private static Table prewarm(Paint paint) {
+        Table table = new Table();
+        char[] chars = new char[2];
+        for (int i = 0; i < PREWARMED_RANGES.length; i += 2) {
+            for (int codePoint = PREWARMED_RANGES[i]; codePoint <= PREWARMED_RANGES[i + 1]; codePoint++) {
+                if (table.mSize == MAX_PREWARMED_ENTRIES) return table;
+                int count = Character.toChars(codePoint, chars, 0);
+                table.put(codePoint, paint.measureText(chars, 0, count));
+            }
+        }
+        return table;
+    }
+
+    /** The advance of the text of a code point, measured unless known for the code point. */
+    float getAdvance(int codePoint, char[] text, int index, int count) {
+        Table prewarmed = mPrewarmedTable;
+        if (prewarmed != null) {
+            // Keep what was measured here in the meantime:
+            mPrewarmedTable = null;
+            for (int slot = 0; slot < CAPACITY; slot++)
+                if (mTable.mCodePoints[slot] != NO_CODE_POINT) prewarmed.put(mTable.mCodePoints[slot], mTable.mAdvances[slot]);
+            mTable = prewarmed;
+        }
+
+        int slot = mTable.slotOf(codePoint);
+        if (mTable.mCodePoints[slot] == codePoint) return mTable.mAdvances[slot];
+        float advance = mPaint.measureText(text, index, count);
+        mTable.put(codePoint, advance);
+        return advance;
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.termux.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.termux.terminal.WcWidth;
+
+import java.util.Arrays;
+
+/**
+ * A {@link TerminalTextBackend} which rasterizes each glyph once, by code point, bold and italic, into an alpha atlas
+ * bitmap and draws text as bitmaps of its glyphs from the atlas, tinted with the color of the paint. Draws from the same
+ * bitmap are batched by a hardware accelerated canvas. A backend is only valid for the typeface and text size of the
+ * {@link TerminalRenderer} which created it.
+ * <p>
+ * Glyphs are packed into shelves of the height of a row, padded for italic and bold glyphs reaching out of their cells.
+ * A glyph is never drawn over once drawn, as recordings of earlier frames and earlier draws of the current frame use it.
+ * When the atlas is full it is evicted as a whole: drawing continues into a new bitmap, and the old one is freed once
+ * no recording draws from it anymore. At most {@link #MAX_ATLAS_BYTES} are used by the atlas being drawn to.
+ * <p>
+ * Text which the atlas cannot draw as the canvas would, see {@link #canDraw}, is drawn to the canvas.
+ */
+final class GlyphAtlasTextBackend implements TerminalTextBackend {
+
+    /** The max size of the atlas, one byte per pixel. */
+    static final int MAX_ATLAS_BYTES = 2 * 1024 * 1024;
+    private static final int ATLAS_WIDTH = 1024;
+    /** The number of slots of {@link #mKeys}, a power of two. */
+    private static final int CAPACITY = 1 << 13;
+    /** The max number of glyphs in the atlas, to keep probe sequences short. */
+    private static final int MAX_GLYPHS = CAPACITY * 3 / 4;
+    /** A key which is no glyph, for empty slots. */
+    private static final int NO_GLYPH = -1;
+
+    /**
+     * Inclusive ranges of code points in the basic multilingual plane with emoji which fonts may draw in color, which an
+     * alpha atlas cannot keep.
+     */
+    private static final int[] COLORED_RANGES = {
+        0x231A, 0x231B,
+        0x23E9, 0x23F3,
+        0x23F8, 0x23FA,
+        0x25AA, 0x25AB,
+        0x25B6, 0x25B6,
+        0x25C0, 0x25C0,
+        0x25FB, 0x25FE,
+        0x2600, 0x27BF,
+        0x2934, 0x2935,
+        0x2B05, 0x2B55,
+        0x3030, 0x3030,
+        0x303D, 0x303D,
+        0x3297, 0x3299,
+    };
+
+    private final float mFontWidth;
+    private final int mFontAscent;
+    private final int mPaddingX, mPaddingY, mSlotHeight;
+
+    /** Rasterizes glyphs, a copy of the paint of the renderer. */
+    private final Paint mGlyphPaint;
+    private final Paint mBlitPaint = new Paint();
+    private final char[] mGlyphChars = new char[1];
+    private final Rect mSource = new Rect();
+    private final RectF mDestination = new RectF();
+
+    private Bitmap mAtlas;
+    private Canvas mAtlasCanvas;
+    /** Where the next glyph goes in the atlas: the top of the current shelf and the left of the free space in it. */
+    private int mShelfTop, mShelfLeft;
+
+    /** A map from glyph key, see {@link #keyOf}, to the left and top of the glyph in the atlas. */
+    private final int[] mKeys = new int[CAPACITY];
+    private final int[] mLefts = new int[CAPACITY];
+    private final int[] mTops = new int[CAPACITY];
+    private int mGlyphs;
+    private int mEvictions;
+
+    GlyphAtlasTextBackend(Paint paint, float fontWidth, int fontLineSpacing, int fontAscent) {
+        mFontWidth = fontWidth;
+        mFontAscent = fontAscent;
+        mPaddingX = (int) Math.ceil(fontLineSpacing * 0.4f);
+        mPaddingY = (int) Math.ceil(fontLineSpacing / 4.f);
+        mSlotHeight = fontLineSpacing + 2 * mPaddingY;
+
+        mGlyphPaint = new Paint(paint);
+        mGlyphPaint.setColor(0xFFFFFFFF);
+        mGlyphPaint.setUnderlineText(false);
+        mGlyphPaint.setStrikeThruText(false);
+        mBlitPaint.setFilterBitmap(false);
+        Arrays.fill(mKeys, NO_GLYPH);
+    }
+
+    @Override
+    public void drawText(Canvas canvas, char[] text, int start, int count, float x, float y, boolean scaled, Paint paint) {
+        if (scaled || !canDraw(text, start, count)) {
+            CANVAS.drawText(canvas, text, start, count, x, y, scaled, paint);
+            return;
+        }
+
+        final boolean bold = paint.isFakeBoldText();
+        final boolean italic = paint.getTextSkewX() != 0.f;
+        mBlitPaint.setColor(paint.getColor());
+        float left = x;
+        for (int i = start; i < start + count; i++) {
+            final char c = text[i];
+            final int width = WcWidth.width(c);
+            if (c != ' ' && c != '\u3000') {
+                final int slot = slotOf(c, bold, italic, width);
+                if (slot == -1) {
+                    // Too large for the atlas:
+                    CANVAS.drawText(canvas, text, i, 1, left, y, false, paint);
+                } else {
+                    final int slotWidth = slotWidth(width);
+                    mSource.set(mLefts[slot], mTops[slot], mLefts[slot] + slotWidth, mTops[slot] + mSlotHeight);
+                    final float top = y + mFontAscent - mPaddingY;
+                    mDestination.set(left - mPaddingX, top, left - mPaddingX + slotWidth, top + mSlotHeight);
+                    canvas.drawBitmap(mAtlas, mSource, mDestination, mBlitPaint);
+                }
+            }
+            left += width * mFontWidth;
+        }
+
+        if (paint.isUnderlineText() || paint.isStrikeThruText()) {
+            final float thickness = Math.max(1.f, paint.getTextSize() / 18.f);
+            if (paint.isUnderlineText()) {
+                final float underline = y + thickness * 1.5f;
+                canvas.drawRect(x, underline, left, underline + thickness, mBlitPaint);
+            }
+            if (paint.isStrikeThruText()) {
+                final float strikeThrough = y + mFontAscent * 0.3f;
+                canvas.drawRect(x, strikeThrough - thickness / 2, left, strikeThrough + thickness / 2, mBlitPaint);
+            }
+        }
+    }
+
+    /**
+     * If the atlas draws the text as the canvas would: code points in the basic multilingual plane, each drawn on its own
+     * in the cells it takes, in one color.
+     */
+    private static boolean canDraw(char[] text, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            final char c = text[i];
+            if (c < 0x7F) {
+                if (c < ' ') return false;
+                continue;
+            }
+            if (Character.isSurrogate(c) || WcWidth.width(c) <= 0) return false;
+            for (int range = 0; range < COLORED_RANGES.length && c >= COLORED_RANGES[range]; range += 2)
+                if (c <= COLORED_RANGES[range + 1]) return false;
+        }
+        return true;
+    }
+
+    private static int keyOf(char c, boolean bold, boolean italic) {
+        return (c << 2) | (bold ? 2 : 0) | (italic ? 1 : 0);
+    }
+
+    private int slotWidth(int columns) {
+        return (int) Math.ceil(columns * mFontWidth) + 2 * mPaddingX;
+    }
+
+    /** The slot of a glyph, rasterized into the atlas unless there already, or -1 if it is larger than the atlas. */
+    private int slotOf(char c, boolean bold, boolean italic, int columns) {
+        final int key = keyOf(c, bold, italic);
+        int slot = probe(key);
+        if (mKeys[slot] == key) return slot;
+
+        final int slotWidth = slotWidth(columns);
+        final int atlasHeight = MAX_ATLAS_BYTES / ATLAS_WIDTH;
+        if (slotWidth > ATLAS_WIDTH || mSlotHeight > atlasHeight) return -1;
+        if (mAtlas != null && mShelfLeft + slotWidth > ATLAS_WIDTH) {
+            mShelfTop += mSlotHeight;
+            mShelfLeft = 0;
+        }
+        if (mAtlas == null || mShelfTop + mSlotHeight > atlasHeight || mGlyphs == MAX_GLYPHS) {
+            if (mAtlas != null) mEvictions++;
+            // Not recycled, as recordings may still draw from it:
+            mAtlas = Bitmap.createBitmap(ATLAS_WIDTH, atlasHeight, Bitmap.Config.ALPHA_8);
+            mAtlasCanvas = new Canvas(mAtlas);
+            mShelfTop = 0;
+            mShelfLeft = 0;
+            Arrays.fill(mKeys, NO_GLYPH);
+            mGlyphs = 0;
+            slot = probe(key);
+        }
+
+        mKeys[slot] = key;
+        mLefts[slot] = mShelfLeft;
+        mTops[slot] = mShelfTop;
+        mGlyphs++;
+        mShelfLeft += slotWidth;
+
+        mGlyphPaint.setFakeBoldText(bold);
+        mGlyphPaint.setTextSkewX(italic ? -0.35f : 0.f);
+        mGlyphChars[0] = c;
+        mAtlasCanvas.save();
+        // Keep glyphs reaching out of their padding from the slots next to them:
+        mAtlasCanvas.clipRect(mLefts[slot], mTops[slot], mLefts[slot] + slotWidth, mTops[slot] + mSlotHeight);
+        mAtlasCanvas.drawText(mGlyphChars, 0, 1, mLefts[slot] + mPaddingX, mTops[slot] + mPaddingY - mFontAscent, mGlyphPaint);
+        mAtlasCanvas.restore();
+        return slot;
+    }
+
+    /** The slot of a glyph key, or of the empty slot where it would be put. */
+    private int probe(int key) {
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+        while (mKeys[slot] != key && mKeys[slot] != NO_GLYPH)
+            slot = (slot + 1) & (CAPACITY - 1);
+        return slot;
+    }
+
+    /** The number of glyphs in the atlas being drawn to. */
+    int getGlyphCount() {
+        return mGlyphs;
+    }
+
+    /** The number of times the atlas was full and evicted. */
+    int getEvictionCount() {
+        return mEvictions;
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.termux.view;
+
+import com.termux.terminal.GraphemeClusters;
+import com.termux.terminal.TerminalBuffer;
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalRow;
+import com.termux.terminal.TextStyle;
+
+import java.util.Arrays;
+
+/**
+ * What a frame of a {@link TerminalView} draws, captured from the emulator on the main thread and drawn by
+ * {@link TerminalRenderer#render(TerminalFrame, android.graphics.Canvas, TerminalRowCache)}: the shown rows with the
+ * cursor, selection, fold lines and links on each, and the colors and modes they are drawn with.
+ * <p>
+ * A frame captured with shared rows, see {@link #capture}, may be drawn on another thread while the emulator keeps
+ * changing, as the buffer copies a shared row before writing to it again. Otherwise it must be drawn before the emulator
+ * changes. Once drawn, {@link #clearRows()} hands the rows back to the buffer, and the frame is reused by capturing into
+ * it again.
+ */
+final class TerminalFrame {
+
+    /** The buffer the rows were shown from, to tell frames of different buffers apart. It must not be read. */
+    TerminalBuffer mScreen;
+    /** The snapshot of {@link #mScreen} the rows were taken from if shared, to release in {@link #clearRows()}. */
+    private TerminalBuffer mSnapshot;
+    /** The grapheme clusters of the emulator, which the rows hold by their id. */
+    GraphemeClusters mClusters;
+    int mTopRow, mCursorRow;
+    int mRows, mColumns;
+    boolean mReverseVideo;
+    int mCursorShape;
+    final int[] mPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+    /** The parse lag of the frame, see {@link TerminalFrameStats}, or -1 if unknown or if the frame shows no new output. */
+    long mParseLagNanos = -1;
+
+    /** For each shown row: the row, its number as by {@link TerminalBuffer#getScrollCount()}, and what is drawn on it. */
+    TerminalRow[] mLines = new TerminalRow[0];
+    long[] mRowNumbers = new long[0];
+    /** The cursor column, or -1 if the cursor is not on the row or hidden. */
+    int[] mCursorColumns = new int[0];
+    /** The selected columns, or -1 if none are selected. */
+    int[] mSelectionStarts = new int[0], mSelectionEnds = new int[0];
+    /** If output is folded after the row, see {@link TerminalBuffer#nextShownRow(int)}. */
+    boolean[] mFolded = new boolean[0];
+    /** If the row changed since the previous frame, see {@link TerminalBuffer#isRowDirty(int)}. */
+    boolean[] mDirty = new boolean[0];
+    TerminalLinkDetector.Link[][] mLinks = new TerminalLinkDetector.Link[0][];
+
+    /**
+     * Capture the rows shown from a top row, with an optional selection as given by the text selection controller.
+     *
+     * @param links      The links to underline, or null.
+     * @param shareRows  If the frame may be drawn while the emulator changes, on another thread. The shown rows are then
+     *                   taken with {@link TerminalBuffer#snapshot(int, int, boolean)}, to be released by
+     *                   {@link #clearRows()}.
+     */
+    void capture(TerminalEmulator emulator, int topRow, int selectionY1, int selectionY2, int selectionX1, int selectionX2,
+                 TerminalLinkDetector links, boolean shareRows) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final int rows = emulator.mRows;
+        final boolean cursorVisible = emulator.shouldCursorBeVisible();
+        final int cursorColumn = emulator.getCursorCol();
+        mScreen = screen;
+        mClusters = screen.getGraphemeClusters();
+        mParseLagNanos = -1;
+        mTopRow = topRow;
+        mCursorRow = emulator.getCursorRow();
+        mColumns = emulator.mColumns;
+        mReverseVideo = emulator.isReverseVideo();
+        mCursorShape = emulator.getCursorStyle();
+        System.arraycopy(emulator.mColors.mCurrentColors, 0, mPalette, 0, mPalette.length);
+
+        if (mRows != rows) {
+            mRows = rows;
+            mLines = new TerminalRow[rows];
+            mRowNumbers = new long[rows];
+            mCursorColumns = new int[rows];
+            mSelectionStarts = new int[rows];
+            mSelectionEnds = new int[rows];
+            mFolded = new boolean[rows];
+            mDirty = new boolean[rows];
+            mLinks = new TerminalLinkDetector.Link[rows][];
+        }
+
+        int lastRow = topRow;
+        for (int shownRow = 1; shownRow < rows; shownRow++) lastRow = screen.nextShownRow(lastRow);
+        if (shareRows) mSnapshot = screen.snapshot(topRow, lastRow, true);
+        final TerminalBuffer source = shareRows ? mSnapshot : screen;
+        for (int shownRow = 0, row = topRow; shownRow < rows; shownRow++, row = screen.nextShownRow(row)) {
+            mLines[shownRow] = source.getLineForReading(source.externalToInternalRow(row));
+            mRowNumbers[shownRow] = screen.getScrollCount() + row;
+            mCursorColumns[shownRow] = (row == mCursorRow && cursorVisible) ? cursorColumn : -1;
+            int selx1 = -1, selx2 = -1;
+            if (row >= selectionY1 && row <= selectionY2) {
+                if (row == selectionY1) selx1 = selectionX1;
+                selx2 = (row == selectionY2) ? selectionX2 : mColumns;
+            }
+            mSelectionStarts[shownRow] = selx1;
+            mSelectionEnds[shownRow] = selx2;
+            mFolded[shownRow] = screen.nextShownRow(row) != row + 1;
+            mDirty[shownRow] = screen.isRowDirty(row);
+            mLinks[shownRow] = (links == null) ? null : links.getLinksOnRow(screen, row);
+        }
+    }
+
+    /**
+     * Drop the rows once the frame was drawn, handing those shared with it back to the buffer, so that the buffer writes to
+     * them in place again and reuses them. Called on the thread of the emulator.
+     */
+    void clearRows() {
+        if (mSnapshot != null) {
+            mScreen.releaseSnapshot(mSnapshot);
+            mSnapshot = null;
+        }
+        Arrays.fill(mLines, null);
+        Arrays.fill(mLinks, null);
+    }
+
+}
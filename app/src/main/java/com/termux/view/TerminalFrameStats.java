@@ -0,0 +1,297 @@
+package com.termux.view;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Timings of the frames drawn by a {@link TerminalRenderer}, to find out how long frames actually take, see
+ * {@link TerminalView#setFrameStatsEnabled(boolean)}. Each frame is split into:
+ * <ul>
+ * <li>parse lag: from the emulator processing output, see {@link TerminalView#onScreenUpdated()}, to the frame showing
+ * it being captured. Only frames which show new output have one.</li>
+ * <li>layout: laying out rows into runs of the same style, for the rows not laid out before.</li>
+ * <li>draw: the rest of the frame, drawing the runs and the rows recorded before to the canvas.</li>
+ * </ul>
+ * The time of a frame is that spent by the renderer, on the main thread or on the render thread, not including the
+ * time the canvas then takes to draw on the GPU. A frame is janky when its layout and draw take longer than the budget
+ * given, a frame of the display. The rows drawn, the rows drawn from recordings of earlier frames and the runs drawn are
+ * counted too, which do not depend on the device, to assert on the cost of rendering a screen.
+ * <p>
+ * Times are kept in a {@link Histogram} each, which takes constant space and time to record to, and stats of several
+ * views or runs can be added up with {@link #merge(TerminalFrameStats)}. Stats may be recorded on one thread and read
+ * on another.
+ */
+public final class TerminalFrameStats {
+
+    /**
+     * A histogram of durations in buckets of microseconds: one per microsecond below {@link #SUB_BUCKETS}, then
+     * {@link #SUB_BUCKETS} per power of two, so values are kept within an eighth of what they were. The count, total
+     * and max are exact.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+        /** Up to 2^31 microseconds, longer is counted in the last bucket. */
+        private static final int BUCKETS = (31 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final long[] mCounts = new long[BUCKETS];
+        private long mCount, mTotalNanos, mMaxNanos;
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            mCounts[bucketOf(nanos / 1000)]++;
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) mMaxNanos = nanos;
+        }
+
+        /** Add the durations recorded by another histogram to this one. */
+        public void merge(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++)
+                mCounts[i] += other.mCounts[i];
+            mCount += other.mCount;
+            mTotalNanos += other.mTotalNanos;
+            mMaxNanos = Math.max(mMaxNanos, other.mMaxNanos);
+        }
+
+        public void reset() {
+            Arrays.fill(mCounts, 0);
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        public Histogram copy() {
+            Histogram copy = new Histogram();
+            copy.merge(this);
+            return copy;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public long getAverageNanos() {
+            return (mCount == 0) ? 0 : mTotalNanos / mCount;
+        }
+
+        /**
+         * The duration which the given percent of the recorded durations are at most, by the nearest rank, as the upper
+         * end of its bucket but at most the max. 0 if nothing was recorded.
+         */
+        public long getPercentileNanos(int percent) {
+            if (mCount == 0) return 0;
+            long rank = Math.max(1, (mCount * percent + 99) / 100);
+            long seen = 0;
+            int i = 0;
+            for (; i < BUCKETS - 1; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) break;
+            }
+            // The last bucket has no end, as it also counts longer durations:
+            return (i == BUCKETS - 1) ? mMaxNanos : Math.min(mMaxNanos, (bucketEnd(i) + 1) * 1000 - 1);
+        }
+
+        private static int bucketOf(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int bucket = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        /** The last microsecond in a bucket. */
+        private static long bucketEnd(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long start = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+            return start + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        /** Append the count, average and percentiles, in milliseconds. */
+        void dump(PrintWriter writer) {
+            writer.print(mCount);
+            writer.print(" frames, avg ");
+            writer.print(formatMillis(getAverageNanos()));
+            writer.print(" 50th ");
+            writer.print(formatMillis(getPercentileNanos(50)));
+            writer.print(" 90th ");
+            writer.print(formatMillis(getPercentileNanos(90)));
+            writer.print(" 95th ");
+            writer.print(formatMillis(getPercentileNanos(95)));
+            writer.print(" 99th ");
+            writer.print(formatMillis(getPercentileNanos(99)));
+            writer.print(" max ");
+            writer.println(formatMillis(mMaxNanos));
+        }
+    }
+
+    private final long mFrameBudgetNanos;
+    private final Histogram mParseLag = new Histogram(), mLayout = new Histogram(), mDraw = new Histogram();
+    private long mFrames, mJankyFrames;
+    private long mRowsDrawn, mRowsFromRecordings, mRunsDrawn;
+
+    /** @param frameBudgetNanos The time a frame may take at most, over which it is janky, as that of a display frame. */
+    public TerminalFrameStats(long frameBudgetNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Record a frame.
+     *
+     * @param parseLagNanos      The parse lag, or -1 if the frame shows no new output.
+     * @param rowsFromRecordings The rows drawn from recordings of earlier frames, see {@link TerminalRowCache}.
+     * @param rowsDrawn          The rows laid out or drawn from their layout, not counting those drawn from recordings.
+     */
+    synchronized void recordFrame(long parseLagNanos, long layoutNanos, long drawNanos, int rowsDrawn, int rowsFromRecordings,
+                                  int runsDrawn) {
+        if (parseLagNanos >= 0) mParseLag.record(parseLagNanos);
+        mLayout.record(layoutNanos);
+        mDraw.record(drawNanos);
+        mFrames++;
+        if (layoutNanos + drawNanos > mFrameBudgetNanos) mJankyFrames++;
+        mRowsDrawn += rowsDrawn;
+        mRowsFromRecordings += rowsFromRecordings;
+        mRunsDrawn += runsDrawn;
+    }
+
+    /** Add the frames recorded by other stats to these, which keep their frame budget. */
+    public void merge(TerminalFrameStats other) {
+        // Copied first to not hold both locks at once:
+        TerminalFrameStats copy = other.copy();
+        synchronized (this) {
+            mParseLag.merge(copy.mParseLag);
+            mLayout.merge(copy.mLayout);
+            mDraw.merge(copy.mDraw);
+            mFrames += copy.mFrames;
+            mJankyFrames += copy.mJankyFrames;
+            mRowsDrawn += copy.mRowsDrawn;
+            mRowsFromRecordings += copy.mRowsFromRecordings;
+            mRunsDrawn += copy.mRunsDrawn;
+        }
+    }
+
+    public synchronized TerminalFrameStats copy() {
+        TerminalFrameStats copy = new TerminalFrameStats(mFrameBudgetNanos);
+        copy.mParseLag.merge(mParseLag);
+        copy.mLayout.merge(mLayout);
+        copy.mDraw.merge(mDraw);
+        copy.mFrames = mFrames;
+        copy.mJankyFrames = mJankyFrames;
+        copy.mRowsDrawn = mRowsDrawn;
+        copy.mRowsFromRecordings = mRowsFromRecordings;
+        copy.mRunsDrawn = mRunsDrawn;
+        return copy;
+    }
+
+    public synchronized void reset() {
+        mParseLag.reset();
+        mLayout.reset();
+        mDraw.reset();
+        mFrames = 0;
+        mJankyFrames = 0;
+        mRowsDrawn = 0;
+        mRowsFromRecordings = 0;
+        mRunsDrawn = 0;
+    }
+
+    public long getFrameBudgetNanos() {
+        return mFrameBudgetNanos;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    public synchronized long getJankyFrameCount() {
+        return mJankyFrames;
+    }
+
+    public synchronized long getRowsDrawn() {
+        return mRowsDrawn;
+    }
+
+    public synchronized long getRowsFromRecordings() {
+        return mRowsFromRecordings;
+    }
+
+    public synchronized long getRunsDrawn() {
+        return mRunsDrawn;
+    }
+
+    /** A copy of the parse lag histogram. */
+    public synchronized Histogram getParseLag() {
+        return mParseLag.copy();
+    }
+
+    /** A copy of the layout time histogram. */
+    public synchronized Histogram getLayout() {
+        return mLayout.copy();
+    }
+
+    /** A copy of the draw time histogram. */
+    public synchronized Histogram getDraw() {
+        return mDraw.copy();
+    }
+
+    /** Write a report of the stats, in the style of {@code dumpsys gfxinfo}, each line starting with the prefix. */
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Terminal frame stats:");
+        writer.print(prefix);
+        writer.print("  Total frames rendered: ");
+        writer.println(mFrames);
+        writer.print(prefix);
+        writer.print("  Janky frames: ");
+        writer.print(mJankyFrames);
+        writer.print(" (");
+        writer.print((mFrames == 0) ? "0" : formatHundredths(10_000 * mJankyFrames / mFrames));
+        writer.print("%) over ");
+        writer.print(formatMillis(mFrameBudgetNanos));
+        writer.println();
+        writer.print(prefix);
+        writer.print("  Rows drawn: ");
+        writer.print(mRowsDrawn);
+        writer.print(", from recordings: ");
+        writer.print(mRowsFromRecordings);
+        writer.print(", runs drawn: ");
+        writer.println(mRunsDrawn);
+        writer.print(prefix);
+        writer.print("  Parse lag: ");
+        mParseLag.dump(writer);
+        writer.print(prefix);
+        writer.print("  Layout: ");
+        mLayout.dump(writer);
+        writer.print(prefix);
+        writer.print("  Draw: ");
+        mDraw.dump(writer);
+    }
+
+    @Override
+    public String toString() {
+        StringWriter report = new StringWriter();
+        PrintWriter writer = new PrintWriter(report);
+        dump("", writer);
+        writer.flush();
+        return report.toString();
+    }
+
+    /** Nanoseconds as milliseconds with two decimals. */
+    static String formatMillis(long nanos) {
+        return formatHundredths((nanos + 5_000) / 10_000) + "ms";
+    }
+
+    private static String formatHundredths(long hundredths) {
+        return (hundredths / 100) + "." + ((hundredths % 100 < 10) ? "0" : "") + (hundredths % 100);
+    }
+
+}
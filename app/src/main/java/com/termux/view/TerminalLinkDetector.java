@@ -0,0 +1,477 @@
+package com.termux.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.termux.terminal.GraphemeClusters;
+import com.termux.terminal.TerminalBuffer;
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalRow;
+import com.termux.terminal.WcWidth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds URLs, file paths with an optional {@code :line:column} and git hashes in the rows shown by a
+ * {@link TerminalView}, for {@link TerminalRenderer} to underline and for taps to open.
+ * <p>
+ * Rows are compared by instance: a {@link TerminalBuffer} replaces a row with a copy before writing to a row shared
+ * with a snapshot, so a row which is the same instance as when it was scanned still has the same content. Each scan
+ * takes a {@link TerminalBuffer#snapshot(int, int)} of each run of shown rows (see {@link TerminalBuffer#nextShownRow(int)})
+ * on the main thread, so that folded output is not scanned, and matches the logical lines in them on a background thread, where the links of lines whose rows are all unchanged since the last scan are reused
+ * instead of matched again. Scans wait for output to pause for {@link #QUIET_DELAY_MILLIS}, but not longer than
+ * {@link #MAX_DELAY_MILLIS}, so streaming output costs at most one scan of the screen per {@link #MAX_DELAY_MILLIS}.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public final class TerminalLinkDetector {
+
+    /** A link, with rows as returned by {@link TerminalBuffer#getScrollCount()} plus the external row. */
+    public static final class Link {
+        public static final int TYPE_URL = 0;
+        public static final int TYPE_PATH = 1;
+        public static final int TYPE_HASH = 2;
+
+        public final int type;
+        /** The text of the link as shown, including any {@code :line:column} of a path. */
+        public final String text;
+        /** The url, the path without {@code :line:column}, or the hash. */
+        public final String target;
+        /** The line and column after a path, or 0 if not given. */
+        public final int line, column;
+        public final long startRow, endRow;
+        /** The first column in {@link #startRow}, and the column after the link in {@link #endRow}. */
+        public final int startColumn, endColumn;
+
+        Link(int type, String text, String target, int line, int column, long startRow, int startColumn, long endRow, int endColumn) {
+            this.type = type;
+            this.text = text;
+            this.target = target;
+            this.line = line;
+            this.column = column;
+            this.startRow = startRow;
+            this.startColumn = startColumn;
+            this.endRow = endRow;
+            this.endColumn = endColumn;
+        }
+    }
+
+    /** How long output has to pause before the shown rows are scanned. */
+    private static final int QUIET_DELAY_MILLIS = 150;
+    /** How long a scan may be put off by output which does not pause. */
+    private static final int MAX_DELAY_MILLIS = 1000;
+    /** How far above the top row to look for the start of a logical line shown in part. */
+    private static final int MAX_ROWS_ABOVE = 100;
+    /** How many chars of a logical line are matched, to bound the time a scan of a very long line may take. */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private static final String PATH_CHAR = "[\\w.+@~-]";
+    private static final String FILE_EXTENSION = "\\.[A-Za-z]\\w{0,9}";
+
+    /**
+     * All kinds of links as one pattern, so that a line is matched once. The groups are the url, the path, its line
+     * and column, and the hash. Repeated path segments are possessive: a segment never has to give back chars to the
+     * slash after it, and backtracking over the segments of a long path would overflow the stack.
+     */
+    private static final Pattern LINK_PATTERN = Pattern.compile(
+        // Urls:
+        "\\b((?:https?|ftp|file)://[^\\s<>\"'`]++)"
+            // Paths not preceded by something they could be part of. Relative paths need a slash and a file extension
+            // or a trailing slash, or a line number, so that words like "and/or" are not taken for paths:
+            + "|(?<![\\w./~:-])("
+            + "(?:~|\\.{1,2})?(?:/" + PATH_CHAR + "++)++/?"
+            + "|" + PATH_CHAR + "++/(?:" + PATH_CHAR + "++/)*+(?:[\\w.+@~-]*" + FILE_EXTENSION + ")?(?![\\w/])"
+            + "|(?:" + PATH_CHAR + "++/)*+" + PATH_CHAR + "+" + FILE_EXTENSION + "(?=:\\d)"
+            + ")(?::(\\d{1,9})(?::(\\d{1,9}))?)?"
+            // Abbreviated or full git hashes, with both a digit and a letter to not match numbers and words:
+            + "|(?<![\\w./-])((?=[0-9a-f]*[a-f])(?=[0-9a-f]*[0-9])[0-9a-f]{7,40})(?![\\w/-])");
+
+    private static final ExecutorService SCAN_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TerminalLinkDetector");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static final String LOG_TAG = "TerminalLinkDetector";
+
+    private final TerminalView mView;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** The links of the last scan. */
+    private ScanResult mResult;
+    private boolean mScanScheduled;
+    private boolean mScanInProgress;
+    private boolean mRescanNeeded;
+    private long mFirstRequestTime, mLastRequestTime;
+
+    /** The lines of the last scan by their first row, only used on the scan thread. */
+    private Map<TerminalRow, ScannedLine> mScannedLines = new IdentityHashMap<>();
+    private final StringBuilder mLineText = new StringBuilder();
+    private int[] mRowStarts = new int[8];
+
+    /** A logical line as scanned, with the rows of its links relative to its first row. */
+    private static final class ScannedLine {
+        final TerminalRow[] rows;
+        final List<Link> links;
+        /**
+         * The links on each row as given by the last scan, with absolute rows from {@link #rowLinksLineRow}. Kept so that
+         * a later scan finding the line at the same row gives the same arrays, which {@link TerminalRowCache} compares
+         * by instance to keep the recordings of the rows.
+         */
+        Link[][] rowLinks;
+        long rowLinksLineRow;
+
+        ScannedLine(TerminalRow[] rows, List<Link> links) {
+            this.rows = rows;
+            this.links = links;
+        }
+    }
+
+    /** The links found in the scanned rows, and the row instances they were found in. */
+    private static final class ScanResult {
+        /** The scanned rows, as {@link TerminalBuffer#getScrollCount()} plus the external row, in order. */
+        final long[] absoluteRows;
+        final TerminalRow[] rows;
+        final Link[][] rowLinks;
+
+        ScanResult(int rowCount) {
+            absoluteRows = new long[rowCount];
+            rows = new TerminalRow[rowCount];
+            rowLinks = new Link[rowCount][];
+        }
+
+        /** The index of an external row of a buffer, or -1 if it was not scanned or has changed since. */
+        int indexOf(TerminalBuffer screen, int row) {
+            int index = Arrays.binarySearch(absoluteRows, screen.getScrollCount() + row);
+            if (index < 0 || screen.getLineForReading(screen.externalToInternalRow(row)) != rows[index]) return -1;
+            return index;
+        }
+    }
+
+    TerminalLinkDetector(TerminalView view) {
+        mView = view;
+    }
+
+    /** Scan the shown rows once output pauses, unless they are unchanged since the last scan. */
+    public void requestScan() {
+        TerminalEmulator emulator = mView.mEmulator;
+        if (emulator == null || isCurrent(emulator.getScreen(), mView.mTopRow, emulator.mRows)) return;
+        long now = SystemClock.uptimeMillis();
+        mLastRequestTime = now;
+        if (mScanInProgress) {
+            mRescanNeeded = true;
+        } else if (!mScanScheduled) {
+            mScanScheduled = true;
+            mFirstRequestTime = now;
+            mHandler.postDelayed(mScheduledScan, QUIET_DELAY_MILLIS);
+        }
+    }
+
+    /** Stop a scheduled scan, as when the view is detached. A later {@link #requestScan()} schedules a new one. */
+    public void cancel() {
+        mHandler.removeCallbacks(mScheduledScan);
+        mScanScheduled = false;
+    }
+
+    /** The links shown in an external row of a buffer, or null if none or the row changed since it was scanned. */
+    public Link[] getLinksOnRow(TerminalBuffer screen, int row) {
+        ScanResult result = mResult;
+        if (result == null) return null;
+        int index = result.indexOf(screen, row);
+        return (index < 0) ? null : result.rowLinks[index];
+    }
+
+    /** The link at a column of an external row, or null if none or any of its rows changed since it was scanned. */
+    public Link getLinkAt(TerminalBuffer screen, int column, int row) {
+        Link[] links = getLinksOnRow(screen, row);
+        if (links == null) return null;
+        long absoluteRow = screen.getScrollCount() + row;
+        for (Link link : links) {
+            if (absoluteRow == link.startRow && column < link.startColumn) continue;
+            if (absoluteRow == link.endRow && column >= link.endColumn) continue;
+            for (long linkRow = link.startRow; linkRow <= link.endRow; linkRow++) {
+                int externalRow = (int) (linkRow - screen.getScrollCount());
+                if (linkRow != absoluteRow && getLinksOnRow(screen, externalRow) == null) return null;
+            }
+            return link;
+        }
+        return null;
+    }
+
+    /** If the last scan included the rows shown from the top row, and none of them changed since. */
+    private boolean isCurrent(TerminalBuffer screen, int topRow, int rows) {
+        ScanResult result = mResult;
+        if (result == null) return false;
+        for (int i = 0, row = topRow; i < rows; i++, row = screen.nextShownRow(row))
+            if (result.indexOf(screen, row) < 0) return false;
+        return true;
+    }
+
+    private final Runnable mScheduledScan = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            long quietAt = mLastRequestTime + QUIET_DELAY_MILLIS;
+            long latestAt = mFirstRequestTime + MAX_DELAY_MILLIS;
+            if (now < quietAt && now < latestAt) {
+                mHandler.postAtTime(this, Math.min(quietAt, latestAt));
+                return;
+            }
+            mScanScheduled = false;
+            startScan();
+        }
+    };
+
+    private void startScan() {
+        TerminalEmulator emulator = mView.mEmulator;
+        if (emulator == null) return;
+        TerminalBuffer screen = emulator.getScreen();
+        int topRow = mView.mTopRow;
+        int firstRow = topRow;
+        int oldestRow = Math.max(-screen.getActiveTranscriptRows(), topRow - MAX_ROWS_ABOVE);
+        while (firstRow > oldestRow && screen.getLineWrap(firstRow - 1)) firstRow--;
+
+        // A snapshot of each run of rows between folded output, the last one to the end of its logical line:
+        final List<TerminalBuffer> snapshots = new ArrayList<>();
+        final List<int[]> runs = new ArrayList<>();
+        int runStart = firstRow;
+        for (int i = 0, row = topRow; i < emulator.mRows; i++) {
+            int next = screen.nextShownRow(row);
+            if (i == emulator.mRows - 1 || next != row + 1) {
+                int runEnd = (i == emulator.mRows - 1) ? screen.getLogicalLineEnd(row) : row;
+                snapshots.add(screen.snapshot(runStart, runEnd));
+                runs.add(new int[]{runStart, runEnd});
+                runStart = next;
+            }
+            row = next;
+        }
+
+        mScanInProgress = true;
+        SCAN_EXECUTOR.execute(() -> {
+            ScanResult result;
+            try {
+                result = scan(snapshots, runs);
+            } catch (RuntimeException | StackOverflowError e) {
+                // Still done, or no scan would be started again:
+                mHandler.post(() -> mView.mClient.logError(LOG_TAG, "Failed to scan for links: " + e));
+                result = null;
+            }
+            final ScanResult scanned = result;
+            mHandler.post(() -> onScanDone(scanned));
+        });
+    }
+
+    private void onScanDone(ScanResult result) {
+        boolean hadLinks = hasLinks(mResult);
+        mResult = result;
+        mScanInProgress = false;
+        if (hadLinks || hasLinks(result)) mView.invalidate();
+        if (mRescanNeeded) {
+            mRescanNeeded = false;
+            requestScan();
+        }
+    }
+
+    private static boolean hasLinks(ScanResult result) {
+        if (result == null) return false;
+        for (Link[] links : result.rowLinks)
+            if (links != null) return true;
+        return false;
+    }
+
+    /** Find the links in snapshots of the runs of rows {@code [first, last]}, in order, on the scan thread. */
+    private ScanResult scan(List<TerminalBuffer> snapshots, List<int[]> runs) {
+        int rowCount = 0;
+        for (int[] run : runs) rowCount += run[1] - run[0] + 1;
+        ScanResult result = new ScanResult(rowCount);
+        Map<TerminalRow, ScannedLine> scannedLines = new IdentityHashMap<>();
+        int index = 0;
+        for (int i = 0; i < runs.size(); i++) {
+            TerminalBuffer snapshot = snapshots.get(i);
+            int firstRow = runs.get(i)[0], lastRow = runs.get(i)[1];
+            for (int row = firstRow; row <= lastRow; row++) {
+                result.absoluteRows[index + row - firstRow] = snapshot.getScrollCount() + row;
+                result.rows[index + row - firstRow] = snapshot.getLineForReading(snapshot.externalToInternalRow(row));
+            }
+            scanRun(snapshot, firstRow, lastRow, result, index, scannedLines);
+            index += lastRow - firstRow + 1;
+        }
+        mScannedLines = scannedLines;
+        return result;
+    }
+
+    /** Find the links in the rows {@code [firstRow, lastRow]} of a snapshot, which are in a result from an index. */
+    private void scanRun(TerminalBuffer snapshot, int firstRow, int lastRow, ScanResult result, int index,
+                         Map<TerminalRow, ScannedLine> scannedLines) {
+        long scrollCount = snapshot.getScrollCount();
+        List<Link> rowLinks = new ArrayList<>();
+        int lineStart = firstRow;
+        while (lineStart <= lastRow) {
+            int lineEnd = lineStart;
+            while (lineEnd < lastRow && snapshot.getLineWrap(lineEnd)) lineEnd++;
+
+            TerminalRow[] rows = new TerminalRow[lineEnd - lineStart + 1];
+            System.arraycopy(result.rows, index + lineStart - firstRow, rows, 0, rows.length);
+            ScannedLine line = mScannedLines.get(rows[0]);
+            if (line == null || !sameRows(line.rows, rows)) line = new ScannedLine(rows, findLinks(rows, snapshot.getGraphemeClusters()));
+            scannedLines.put(rows[0], line);
+
+            long lineRow = scrollCount + lineStart;
+            if (line.rowLinks != null && line.rowLinksLineRow == lineRow) {
+                System.arraycopy(line.rowLinks, 0, result.rowLinks, index + lineStart - firstRow, rows.length);
+                lineStart = lineEnd + 1;
+                continue;
+            }
+            line.rowLinks = new Link[rows.length][];
+            line.rowLinksLineRow = lineRow;
+            for (int row = lineStart; row <= lineEnd; row++) {
+                rowLinks.clear();
+                int rowInLine = row - lineStart;
+                for (Link link : line.links)
+                    if (link.startRow <= rowInLine && link.endRow >= rowInLine) rowLinks.add(link);
+                if (rowLinks.isEmpty()) continue;
+                Link[] links = new Link[rowLinks.size()];
+                for (int i = 0; i < links.length; i++) {
+                    Link link = rowLinks.get(i);
+                    links[i] = new Link(link.type, link.text, link.target, link.line, link.column, lineRow + link.startRow,
+                        link.startColumn, lineRow + link.endRow, link.endColumn);
+                }
+                result.rowLinks[index + row - firstRow] = line.rowLinks[rowInLine] = links;
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private static boolean sameRows(TerminalRow[] a, TerminalRow[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++)
+            if (a[i] != b[i]) return false;
+        return true;
+    }
+
+    /**
+     * Match the text of a logical line, giving links with rows relative to its first row. Only the first
+     * {@link #MAX_LINE_LENGTH} chars are matched.
+     *
+     * @param clusters The grapheme clusters of the buffer of the rows.
+     */
+    private List<Link> findLinks(TerminalRow[] rows, GraphemeClusters clusters) {
+        mLineText.setLength(0);
+        if (mRowStarts.length < rows.length + 1) mRowStarts = new int[(rows.length + 1) * 2];
+        for (int i = 0; i < rows.length; i++) {
+            mRowStarts[i] = mLineText.length();
+            if (mLineText.length() >= MAX_LINE_LENGTH) continue;
+            int end = rows[i].getSpaceUsed();
+            if (i == rows.length - 1) while (end > 0 && rows[i].mText[end - 1] == ' ') end--;
+            appendExpanded(clusters, rows[i].mText, end);
+        }
+        mRowStarts[rows.length] = mLineText.length();
+
+        List<Link> links = new ArrayList<>(0);
+        Matcher matcher = LINK_PATTERN.matcher(mLineText);
+        matcher.region(0, Math.min(mLineText.length(), MAX_LINE_LENGTH));
+        while (matcher.find()) {
+            int type, group, line = 0, column = 0;
+            if (matcher.start(1) != -1) {
+                type = Link.TYPE_URL;
+                group = 1;
+            } else if (matcher.start(2) != -1) {
+                type = Link.TYPE_PATH;
+                group = 2;
+                if (matcher.start(3) != -1) line = Integer.parseInt(matcher.group(3));
+                if (matcher.start(4) != -1) column = Integer.parseInt(matcher.group(4));
+            } else {
+                type = Link.TYPE_HASH;
+                group = 5;
+            }
+            int end = matcher.end();
+            int targetEnd = matcher.end(group);
+            if (type == Link.TYPE_URL || (type == Link.TYPE_PATH && matcher.start(3) == -1)) {
+                targetEnd = trimTrailingPunctuation(matcher.start(group), targetEnd);
+                end = targetEnd;
+            }
+            int start = matcher.start();
+            if (end - start < 2) continue;
+
+            int startRow = rowOfOffset(start, rows.length);
+            int endRow = rowOfOffset(end - 1, rows.length);
+            links.add(new Link(type, mLineText.substring(start, end), mLineText.substring(matcher.start(group), targetEnd),
+                line, column, startRow, columnOfOffset(clusters, rows, startRow, start), endRow, columnOfOffset(clusters, rows, endRow, end)));
+        }
+        return links;
+    }
+
+    /** Append the text of a row to {@link #mLineText}, with the text of the grapheme clusters in it instead of their ids. */
+    private void appendExpanded(GraphemeClusters clusters, char[] text, int end) {
+        int copied = 0;
+        for (int i = 0; i < end - 1; i++) {
+            if (!Character.isHighSurrogate(text[i])) continue;
+            int codePoint = Character.toCodePoint(text[i], text[i + 1]);
+            if (GraphemeClusters.isCluster(codePoint)) {
+                mLineText.append(text, copied, i - copied);
+                mLineText.append(clusters.getChars(codePoint));
+                copied = i + 2;
+            }
+            i++;
+        }
+        mLineText.append(text, copied, end - copied);
+    }
+
+    /** Drop punctuation ending a sentence, and closing brackets without an opening one, from the end of a link. */
+    private int trimTrailingPunctuation(int start, int end) {
+        while (end > start) {
+            char c = mLineText.charAt(end - 1);
+            if (".,;:!?'\"".indexOf(c) != -1) {
+                end--;
+            } else if (c == ')' || c == ']' || c == '}') {
+                char open = (c == ')') ? '(' : (c == ']') ? '[' : '{';
+                int balance = 0;
+                for (int i = start; i < end; i++) {
+                    char d = mLineText.charAt(i);
+                    if (d == open) balance++;
+                    else if (d == c) balance--;
+                }
+                if (balance >= 0) break;
+                end--;
+            } else {
+                break;
+            }
+        }
+        return end;
+    }
+
+    private int rowOfOffset(int offset, int rowCount) {
+        int row = 0;
+        while (row < rowCount - 1 && mRowStarts[row + 1] <= offset) row++;
+        return row;
+    }
+
+    /**
+     * The column in a row of the line where the character at the given offset in {@link #mLineText} starts. The width of
+     * a grapheme cluster is that of its id in the row, not of the code points in its text.
+     */
+    private int columnOfOffset(GraphemeClusters clusters, TerminalRow[] rows, int row, int offset) {
+        final char[] text = rows[row].mText;
+        final int spaceUsed = rows[row].getSpaceUsed();
+        int column = 0;
+        for (int i = 0, lineOffset = mRowStarts[row]; lineOffset < offset && i < spaceUsed; ) {
+            int codePoint = Character.codePointAt(text, i, spaceUsed);
+            i += Character.charCount(codePoint);
+            lineOffset += GraphemeClusters.isCluster(codePoint) ? clusters.getChars(codePoint).length : Character.charCount(codePoint);
+            int width = WcWidth.width(codePoint);
+            if (width > 0) column += width;
+        }
+        return column;
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.termux.view;
+
+import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.view.Surface;
+import android.view.TextureView;
+
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TextStyle;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Draws the terminal of a {@link TerminalView} to the surface of a {@link TextureView} on a thread of its own, see
+ * {@link TerminalView#setRenderSurface(TextureView)}, so that slow frames do not hold up input on the main thread.
+ * <p>
+ * The main thread captures a {@link TerminalFrame} with shared rows when the view draws, and the render thread draws it
+ * with a {@link TerminalRenderer} of its own while the emulator keeps changing. The main thread then hands the rows back
+ * to the buffer. One frame is drawn at a time: a frame requested while one is being drawn is captured once that is
+ * done, from the emulator as it is then, so frames are drawn at most at the rate the view draws, which is that of the
+ * display. The texture view is composited with the view hierarchy, so what the view draws over it, the selection
+ * handles and the overlays of subclasses, is shown together with the last frame drawn here, captured with the same top
+ * row and selection. While the render thread is busy with a frame the terminal trails them by that frame.
+ */
+final class TerminalRenderThread implements TextureView.SurfaceTextureListener {
+
+    private static final ExecutorService RENDER_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            runnable.run();
+        }, "TerminalRenderThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TerminalView mView;
+    private final TextureView mTextureView;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Captured on the main thread, then drawn on the render thread while {@link #mFrameInFlight}. */
+    private final TerminalFrame mFrame = new TerminalFrame();
+    private boolean mSurfaceAvailable;
+    private boolean mFrameInFlight;
+    /** If a frame was requested while one was in flight. */
+    private boolean mFramePending;
+    private boolean mReleased;
+
+    /** Used on the render thread only. */
+    private Surface mSurface;
+    private TerminalRowCache mRowCache;
+    /** The renderer of the render thread, created like the one of the view, read on the main thread for statistics. */
+    private volatile TerminalRenderer mRenderer;
+
+    TerminalRenderThread(TerminalView view, TextureView textureView) {
+        mView = view;
+        mTextureView = textureView;
+        textureView.setSurfaceTextureListener(this);
+        textureView.setOpaque(true);
+        if (textureView.isAvailable()) {
+            onSurfaceTextureAvailable(textureView.getSurfaceTexture(), textureView.getWidth(), textureView.getHeight());
+        }
+    }
+
+    /**
+     * Capture a frame of the emulator and draw it on the render thread, unless a frame is being drawn, in which case the
+     * view is invalidated to request the frame again once that is done. Nothing is drawn before the surface is
+     * available, when the view is invalidated as well. The frame is drawn like the renderer of the view would, and its
+     * timings are recorded to the same {@link TerminalFrameStats}, if any.
+     *
+     * @param parseLagNanos The parse lag of the frame if captured now, see {@link TerminalFrameStats}, or -1.
+     * @return If the frame was captured.
+     */
+    boolean requestFrame(TerminalEmulator emulator, TerminalRenderer viewRenderer, int topRow, int[] selectors,
+                         TerminalLinkDetector links, long parseLagNanos) {
+        if (!mSurfaceAvailable) return false;
+        if (mFrameInFlight) {
+            mFramePending = true;
+            return false;
+        }
+        mFrame.capture(emulator, topRow, selectors[0], selectors[1], selectors[2], selectors[3], links, true);
+        mFrame.mParseLagNanos = parseLagNanos;
+        mFrameInFlight = true;
+        final int textSize = viewRenderer.mTextSize;
+        final Typeface typeface = viewRenderer.mTypeface;
+        final boolean useGlyphAtlas = viewRenderer.mUseGlyphAtlas;
+        final TerminalFrameStats frameStats = viewRenderer.getFrameStats();
+        RENDER_EXECUTOR.execute(() -> {
+            drawFrame(textSize, typeface, useGlyphAtlas, frameStats);
+            mHandler.post(this::onFrameDrawn);
+        });
+        return true;
+    }
+
+    /**
+     * Draw {@link #mFrame} to the surface, on the render thread. If it is not drawn with the recordings of the rows, as
+     * when the surface cannot be drawn to, they are forgotten, as the dirty rows of the frame were cleared when it was
+     * captured and would not be recorded again.
+     */
+    private void drawFrame(int textSize, Typeface typeface, boolean useGlyphAtlas, TerminalFrameStats frameStats) {
+        TerminalFrame frame = mFrame;
+        boolean recorded = false;
+        try {
+            if (mSurface == null) return;
+            TerminalRenderer renderer = mRenderer;
+            if (renderer == null || renderer.mTextSize != textSize || renderer.mTypeface != typeface
+                || renderer.mUseGlyphAtlas != useGlyphAtlas) {
+                mRenderer = renderer = new TerminalRenderer(textSize, typeface, useGlyphAtlas);
+            }
+            renderer.setFrameStats(frameStats);
+
+            final Canvas canvas;
+            try {
+                canvas = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) ? mSurface.lockHardwareCanvas() : mSurface.lockCanvas(null);
+            } catch (IllegalArgumentException | Surface.OutOfResourcesException e) {
+                return;
+            }
+            try {
+                canvas.drawColor(frame.mPalette[TextStyle.COLOR_INDEX_BACKGROUND], PorterDuff.Mode.SRC);
+                TerminalRowCache rowCache = null;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+                    if (mRowCache == null) mRowCache = new TerminalRowCache();
+                    rowCache = mRowCache;
+                }
+                renderer.render(frame, canvas, rowCache);
+                recorded = (rowCache != null);
+            } finally {
+                mSurface.unlockCanvasAndPost(canvas);
+            }
+        } finally {
+            if (!recorded && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mRowCache != null) mRowCache.clear();
+        }
+    }
+
+    /** On the main thread, once {@link #mFrame} was drawn, or could not be. */
+    private void onFrameDrawn() {
+        mFrame.clearRows();
+        mFrameInFlight = false;
+        if (mFramePending && !mReleased) {
+            mFramePending = false;
+            mView.invalidate();
+        }
+    }
+
+    /** The renderer which drew the last frame, or null if none was drawn yet. */
+    TerminalRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /** Stop drawing to the texture view, which stays available to be used again. */
+    void release() {
+        mReleased = true;
+        mSurfaceAvailable = false;
+        mTextureView.setSurfaceTextureListener(null);
+        RENDER_EXECUTOR.execute(this::releaseSurface);
+    }
+
+    /** On the render thread. */
+    private void releaseSurface() {
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mRowCache != null) mRowCache.release();
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(final SurfaceTexture surfaceTexture, int width, int height) {
+        mSurfaceAvailable = true;
+        RENDER_EXECUTOR.execute(() -> {
+            releaseSurface();
+            mSurface = new Surface(surfaceTexture);
+        });
+        mView.invalidate();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {
+        mView.invalidate();
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(final SurfaceTexture surfaceTexture) {
+        mSurfaceAvailable = false;
+        // Released on the render thread once done drawing to it, instead of by the texture view right away:
+        RENDER_EXECUTOR.execute(() -> {
+            releaseSurface();
+            surfaceTexture.release();
+        });
+        return false;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+    }
+
+}
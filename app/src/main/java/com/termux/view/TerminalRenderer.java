@@ -5,12 +5,15 @@ import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
 
+import com.termux.terminal.GraphemeClusters;
 import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalRow;
 import com.termux.terminal.TextStyle;
 import com.termux.terminal.WcWidth;
 
+import java.util.Arrays;
+
 /**
  * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
  * <p/>
@@ -32,8 +35,74 @@ public final class TerminalRenderer {
     final int mFontLineSpacingAndAscent;
 
     private final float[] asciiMeasures = new float[127];
+    /** The advances of the code points not in {@link #asciiMeasures}. */
+    private final GlyphAdvanceCache mAdvances;
+
+    /** If text is drawn from a {@link GlyphAtlasTextBackend} instead of by the canvas. */
+    final boolean mUseGlyphAtlas;
+    private final TerminalTextBackend mTextBackend;
+
+    /** The number of slots in {@link #mRowLayouts}, a power of two. */
+    private static final int ROW_LAYOUTS = 256;
+    /**
+     * Recently drawn rows as laid out, by a slot from the identity of the row, the cursor and the selection. A row is
+     * laid out again when written to, see {@link TerminalRow#getVersion()}, or when another row takes its slot.
+     */
+    private final RowLayout[] mRowLayouts = new RowLayout[ROW_LAYOUTS];
+    /** What resolved colors in {@link #mRowLayouts} depend on, to drop them all when it changes. */
+    private final int[] mRowLayoutPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+    private boolean mRowLayoutReverseVideo;
+    private int mRowLayoutCursorShape;
+    private long mRowLayoutHits, mRowLayoutMisses;
+
+    /** Where frames are recorded to, or null, see {@link #setFrameStats(TerminalFrameStats)}. */
+    private TerminalFrameStats mFrameStats;
+    /** What the frame being rendered cost so far, recorded to {@link #mFrameStats} if not null. */
+    private long mFrameLayoutNanos;
+    private int mFrameRowsDrawn, mFrameRowsFromRecordings, mFrameRunsDrawn;
+
+    /**
+     * A row split into runs of cells drawn with the same style, with the colors resolved and the text measured, so that
+     * drawing it again only draws the runs. Text is read from the row when drawn, except for grapheme clusters.
+     */
+    private static final class RowLayout {
+        /** The row with its {@link TerminalRow#getVersion()}, the cursor and the selection it was laid out with. */
+        TerminalRow mRow;
+        int mVersion, mColumns, mCursorX, mSelectionStart, mSelectionEnd;
+
+        int mRuns;
+        int[] mStartColumns = new int[8], mColumnCounts = new int[8], mStartChars = new int[8], mCharCounts = new int[8];
+        float[] mMeasuredWidths = new float[8];
+        int[] mForeColors = new int[8], mBackColors = new int[8], mCursorColors = new int[8], mEffects = new int[8];
+        boolean[] mDrawBackgrounds = new boolean[8];
+        char[][] mClusterTexts = new char[8][];
+
+        /** Make room for a run and return its index. */
+        int addRun() {
+            if (mRuns == mStartColumns.length) {
+                int capacity = 2 * mRuns;
+                mStartColumns = Arrays.copyOf(mStartColumns, capacity);
+                mColumnCounts = Arrays.copyOf(mColumnCounts, capacity);
+                mStartChars = Arrays.copyOf(mStartChars, capacity);
+                mCharCounts = Arrays.copyOf(mCharCounts, capacity);
+                mMeasuredWidths = Arrays.copyOf(mMeasuredWidths, capacity);
+                mForeColors = Arrays.copyOf(mForeColors, capacity);
+                mBackColors = Arrays.copyOf(mBackColors, capacity);
+                mCursorColors = Arrays.copyOf(mCursorColors, capacity);
+                mEffects = Arrays.copyOf(mEffects, capacity);
+                mDrawBackgrounds = Arrays.copyOf(mDrawBackgrounds, capacity);
+                mClusterTexts = Arrays.copyOf(mClusterTexts, capacity);
+            }
+            return mRuns++;
+        }
+    }
 
     public TerminalRenderer(int textSize, Typeface typeface) {
+        this(textSize, typeface, false);
+    }
+
+    /** @param useGlyphAtlas If text is drawn from a {@link GlyphAtlasTextBackend} instead of by the canvas. */
+    public TerminalRenderer(int textSize, Typeface typeface, boolean useGlyphAtlas) {
         mTextSize = textSize;
         mTypeface = typeface;
 
@@ -51,121 +120,261 @@ public final class TerminalRenderer {
             sb.setCharAt(0, (char) i);
             asciiMeasures[i] = mTextPaint.measureText(sb, 0, 1);
         }
+        mAdvances = new GlyphAdvanceCache(mTextPaint);
+
+        mUseGlyphAtlas = useGlyphAtlas;
+        mTextBackend = useGlyphAtlas ? new GlyphAtlasTextBackend(mTextPaint, mFontWidth, mFontLineSpacing, mFontAscent)
+            : TerminalTextBackend.CANVAS;
     }
 
-    /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
+    /**
+     * Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. The rows
+     * below the top row are those given by {@link TerminalBuffer#nextShownRow(int)}, with a line where output is folded.
+     *
+     * @param links The links to underline, or null.
+     */
     public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
-                             int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
-        final boolean reverseVideo = mEmulator.isReverseVideo();
-        final int endRow = topRow + mEmulator.mRows;
-        final int columns = mEmulator.mColumns;
-        final int cursorCol = mEmulator.getCursorCol();
-        final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.shouldCursorBeVisible();
-        final TerminalBuffer screen = mEmulator.getScreen();
-        final int[] palette = mEmulator.mColors.mCurrentColors;
-        final int cursorShape = mEmulator.getCursorStyle();
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2, TerminalLinkDetector links) {
+        TerminalFrame frame = new TerminalFrame();
+        frame.capture(mEmulator, topRow, selectionY1, selectionY2, selectionX1, selectionX2, links, false);
+        render(frame, canvas, null);
+    }
+
+    /**
+     * Render a frame captured from the terminal, as {@link #render(TerminalEmulator, Canvas, int, int, int, int, int,
+     * TerminalLinkDetector)} renders the terminal, optionally drawing the rows which did not change since the last frame
+     * from a cache of them.
+     *
+     * @param rowCache The rows drawn by the last frame, or null to draw all rows. It must only be given with a hardware
+     *                 accelerated canvas.
+     */
+    final void render(TerminalFrame frame, Canvas canvas, TerminalRowCache rowCache) {
+        final boolean reverseVideo = frame.mReverseVideo;
+        final int[] palette = frame.mPalette;
+        final int cursorShape = frame.mCursorShape;
+        final TerminalFrameStats stats = mFrameStats;
+        final long startNanos = (stats == null) ? 0 : System.nanoTime();
+        mFrameLayoutNanos = 0;
+        mFrameRowsDrawn = 0;
+        mFrameRowsFromRecordings = 0;
+        mFrameRunsDrawn = 0;
 
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
+        if (reverseVideo != mRowLayoutReverseVideo || cursorShape != mRowLayoutCursorShape || !Arrays.equals(palette, mRowLayoutPalette)) {
+            for (RowLayout layout : mRowLayouts)
+                if (layout != null) layout.mRow = null;
+            mRowLayoutReverseVideo = reverseVideo;
+            mRowLayoutCursorShape = cursorShape;
+            System.arraycopy(palette, 0, mRowLayoutPalette, 0, mRowLayoutPalette.length);
+        }
+        if (rowCache != null) rowCache.beginFrame(this, frame.mScreen, frame.mRows, frame.mColumns, reverseVideo, cursorShape, palette);
 
         float heightOffset = mFontLineSpacingAndAscent;
-        for (int row = topRow; row < endRow; row++) {
+        for (int shownRow = 0; shownRow < frame.mRows; shownRow++) {
             heightOffset += mFontLineSpacing;
 
-            final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
-            int selx1 = -1, selx2 = -1;
-            if (row >= selectionY1 && row <= selectionY2) {
-                if (row == selectionY1) selx1 = selectionX1;
-                selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
+            Canvas rowCanvas = canvas;
+            if (rowCache != null) {
+                rowCanvas = rowCache.beginRow(canvas, shownRow, (int) heightOffset - mFontLineSpacing, frame.mRowNumbers[shownRow],
+                    frame.mDirty[shownRow], frame.mCursorColumns[shownRow], frame.mSelectionStarts[shownRow],
+                    frame.mSelectionEnds[shownRow], frame.mFolded[shownRow], frame.mLinks[shownRow]);
+                // Not changed since the last frame, and drawn from the cache:
+                if (rowCanvas == null) {
+                    mFrameRowsFromRecordings++;
+                    continue;
+                }
             }
+            renderRow(frame, rowCanvas, shownRow, heightOffset);
+            if (rowCache != null) rowCache.endRow(canvas, shownRow);
+        }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
-            final char[] line = lineObject.mText;
-            final int charsUsedInLine = lineObject.getSpaceUsed();
-
-            long lastRunStyle = 0;
-            boolean lastRunInsideCursor = false;
-            boolean lastRunInsideSelection = false;
-            int lastRunStartColumn = -1;
-            int lastRunStartIndex = 0;
-            boolean lastRunFontWidthMismatch = false;
-            int currentCharIndex = 0;
-            float measuredWidthForRun = 0.f;
-
-            for (int column = 0; column < columns; ) {
-                final char charAtIndex = line[currentCharIndex];
-                final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
-                final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
-                final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
-                final boolean insideSelection = column >= selx1 && column <= selx2;
-                final long style = lineObject.getStyle(column);
-
-                // Check if the measured text width for this code point is not the same as that expected by wcwidth().
-                // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
-                // smileys which android font renders as wide.
-                // If this is detected, we draw this code point scaled to match what wcwidth() expects.
-                final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
+        if (stats != null) {
+            stats.recordFrame(frame.mParseLagNanos, mFrameLayoutNanos, System.nanoTime() - startNanos - mFrameLayoutNanos,
+                mFrameRowsDrawn, mFrameRowsFromRecordings, mFrameRunsDrawn);
+        }
+    }
+
+    /** Render one shown row of a frame with its baseline at {@code heightOffset}, see {@link #render}. */
+    private void renderRow(TerminalFrame frame, Canvas canvas, int shownRow, float heightOffset) {
+        final int columns = frame.mColumns;
+        final int[] palette = frame.mPalette;
+        final TerminalLinkDetector.Link[] rowLinks = frame.mLinks[shownRow];
+
+        TerminalRow lineObject = frame.mLines[shownRow];
+        RowLayout layout = getRowLayout(frame, lineObject, frame.mCursorColumns[shownRow], frame.mSelectionStarts[shownRow],
+            frame.mSelectionEnds[shownRow]);
+        for (int run = 0; run < layout.mRuns; run++)
+            drawTextRun(canvas, layout, run, lineObject.mText, heightOffset, frame.mCursorShape);
+        mFrameRowsDrawn++;
+        mFrameRunsDrawn += layout.mRuns;
+
+        if (frame.mFolded[shownRow]) {
+            // Mark where folded output is left out:
+            mTextPaint.setColor((palette[TextStyle.COLOR_INDEX_FOREGROUND] & 0x00FFFFFF) | 0x80000000);
+            canvas.drawRect(0, heightOffset - Math.max(1.f, mFontLineSpacing / 16.f), columns * mFontWidth, heightOffset, mTextPaint);
+        }
+
+        if (rowLinks != null) drawLinkUnderlines(canvas, rowLinks, frame.mRowNumbers[shownRow], columns,
+            palette[frame.mReverseVideo ? TextStyle.COLOR_INDEX_BACKGROUND : TextStyle.COLOR_INDEX_FOREGROUND], heightOffset);
+    }
+
+    /**
+     * The layout of a row from {@link #mRowLayouts} if it was laid out with the same content, cursor and selection, or
+     * else the row laid out into the slot of the cache for it.
+     */
+    private RowLayout getRowLayout(TerminalFrame frame, TerminalRow lineObject, int cursorX, int selx1, int selx2) {
+        final int columns = frame.mColumns;
+        int hash = System.identityHashCode(lineObject) + 31 * (cursorX + 31 * selx1);
+        int slot = (hash ^ (hash >>> 16)) & (ROW_LAYOUTS - 1);
+        RowLayout layout = mRowLayouts[slot];
+        if (layout == null) {
+            layout = mRowLayouts[slot] = new RowLayout();
+        } else if (layout.mRow == lineObject && layout.mVersion == lineObject.getVersion() && layout.mColumns == columns
+            && layout.mCursorX == cursorX && layout.mSelectionStart == selx1 && layout.mSelectionEnd == selx2) {
+            mRowLayoutHits++;
+            return layout;
+        }
+        mRowLayoutMisses++;
+        layout.mRow = lineObject;
+        layout.mVersion = lineObject.getVersion();
+        layout.mColumns = columns;
+        layout.mCursorX = cursorX;
+        layout.mSelectionStart = selx1;
+        layout.mSelectionEnd = selx2;
+        if (mFrameStats == null) {
+            layoutRow(frame, lineObject, cursorX, selx1, selx2, layout);
+        } else {
+            long startNanos = System.nanoTime();
+            layoutRow(frame, lineObject, cursorX, selx1, selx2, layout);
+            mFrameLayoutNanos += System.nanoTime() - startNanos;
+        }
+        return layout;
+    }
+
+    /** Split a row into runs drawn with the same style and colors, see {@link RowLayout}. */
+    private void layoutRow(TerminalFrame frame, TerminalRow lineObject, int cursorX, int selx1, int selx2, RowLayout layout) {
+        final boolean reverseVideo = frame.mReverseVideo;
+        final int columns = frame.mColumns;
+        final int[] palette = frame.mPalette;
+        final int cursorShape = frame.mCursorShape;
+
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+        layout.mRuns = 0;
+
+        long lastRunStyle = 0;
+        boolean lastRunInsideCursor = false;
+        boolean lastRunInsideSelection = false;
+        int lastRunStartColumn = -1;
+        int lastRunStartIndex = 0;
+        boolean lastRunFontWidthMismatch = false;
+        char[] lastRunClusterText = null;
+        int currentCharIndex = 0;
+        float measuredWidthForRun = 0.f;
+
+        for (int column = 0; column < columns; ) {
+            final char charAtIndex = line[currentCharIndex];
+            final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
+            final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
+            final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
+            final int codePointWcWidth = WcWidth.width(codePoint);
+            // A grapheme cluster is drawn from its own text, in a run of its own:
+            final char[] clusterText = GraphemeClusters.isCluster(codePoint)
+                ? getClusterText(frame.mClusters, codePoint, line, currentCharIndex + charsForCodePoint, charsUsedInLine) : null;
+            final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
+            final boolean insideSelection = column >= selx1 && column <= selx2;
+            final long style = lineObject.getStyle(column);
+
+            // Check if the measured text width for this code point is not the same as that expected by wcwidth().
+            // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
+            // smileys which android font renders as wide.
+            // If this is detected, we draw this code point scaled to match what wcwidth() expects.
+            final float measuredCodePointWidth;
+            if (clusterText != null) {
+                // Not cached by id, as ids are only known within the table of one emulator:
+                measuredCodePointWidth = mTextPaint.measureText(clusterText, 0, clusterText.length);
+            } else {
+                measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mAdvances.getAdvance(codePoint, line,
                     currentCharIndex, charsForCodePoint);
-                final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
-
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column == 0) {
-                        // Skip first column as there is nothing to draw, just record the current style.
-                    } else {
-                        final int columnWidthSinceLastRun = column - lastRunStartColumn;
-                        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-                        boolean invertCursorTextColor = false;
-                        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                            invertCursorTextColor = true;
-                        }
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
-                            lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+            }
+            final boolean fontWidthMismatch = clusterText != null || Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
+
+            if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (column == 0) {
+                    // Skip first column as there is nothing to draw, just record the current style.
+                } else {
+                    final int columnWidthSinceLastRun = column - lastRunStartColumn;
+                    final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+                    int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                    boolean invertCursorTextColor = false;
+                    if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+                        invertCursorTextColor = true;
                     }
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = style;
-                    lastRunInsideCursor = insideCursor;
-                    lastRunInsideSelection = insideSelection;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = fontWidthMismatch;
-                }
-                measuredWidthForRun += measuredCodePointWidth;
-                column += codePointWcWidth;
-                currentCharIndex += charsForCodePoint;
-                while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
-                    // Eat combining chars so that they are treated as part of the last non-combining code point,
-                    // instead of e.g. being considered inside the cursor in the next run.
-                    currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+                    addTextRun(layout, lastRunClusterText, palette, lastRunStartColumn, columnWidthSinceLastRun,
+                        lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
+                        cursorColor, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
                 }
+                measuredWidthForRun = 0.f;
+                lastRunStyle = style;
+                lastRunInsideCursor = insideCursor;
+                lastRunInsideSelection = insideSelection;
+                lastRunStartColumn = column;
+                lastRunStartIndex = currentCharIndex;
+                lastRunFontWidthMismatch = fontWidthMismatch;
+                lastRunClusterText = clusterText;
             }
-
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            boolean invertCursorTextColor = false;
-            if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                invertCursorTextColor = true;
+            measuredWidthForRun += measuredCodePointWidth;
+            column += codePointWcWidth;
+            currentCharIndex += charsForCodePoint;
+            while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+                // Eat combining chars so that they are treated as part of the last non-combining code point,
+                // instead of e.g. being considered inside the cursor in the next run.
+                currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
             }
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+        }
+
+        final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+        boolean invertCursorTextColor = false;
+        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+            invertCursorTextColor = true;
+        }
+        addTextRun(layout, lastRunClusterText, palette, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+            measuredWidthForRun, cursorColor, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+    }
+
+    /** The text of a grapheme cluster, with the code points of zero width kept after it in its cell. */
+    private static char[] getClusterText(GraphemeClusters clusters, int cluster, char[] line, int index, int charsUsedInLine) {
+        char[] text = clusters.getChars(cluster);
+        int end = index;
+        while (end < charsUsedInLine && WcWidth.width(line, end) <= 0)
+            end += Character.isHighSurrogate(line[end]) ? 2 : 1;
+        if (end == index) return text;
+        char[] joined = Arrays.copyOf(text, text.length + end - index);
+        System.arraycopy(line, index, joined, text.length, end - index);
+        return joined;
+    }
+
+    /** Underline the part of links in a row, given as its number from {@link TerminalBuffer#getScrollCount()}. */
+    private void drawLinkUnderlines(Canvas canvas, TerminalLinkDetector.Link[] links, long row, int columns, int color, float y) {
+        mTextPaint.setColor(color);
+        float thickness = Math.max(1.f, mFontLineSpacing / 16.f);
+        for (TerminalLinkDetector.Link link : links) {
+            int startColumn = (row == link.startRow) ? link.startColumn : 0;
+            int endColumn = (row == link.endRow) ? link.endColumn : columns;
+            canvas.drawRect(startColumn * mFontWidth, y - thickness, endColumn * mFontWidth, y, mTextPaint);
         }
     }
 
-    private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
-                             int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
-                             long textStyle, boolean reverseVideo) {
+    /** Add a run to a row layout, with its colors resolved as they are drawn by {@link #drawTextRun}. */
+    private void addTextRun(RowLayout layout, char[] clusterText, int[] palette, int startColumn, int runWidthColumns,
+                            int startCharIndex, int runWidthChars, float mes, int cursor, long textStyle, boolean reverseVideo) {
         int foreColor = TextStyle.decodeForeColor(textStyle);
         final int effect = TextStyle.decodeEffect(textStyle);
         int backColor = TextStyle.decodeBackColor(textStyle);
         final boolean bold = (effect & (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_BLINK)) != 0;
-        final boolean underline = (effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0;
-        final boolean italic = (effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0;
-        final boolean strikeThrough = (effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0;
         final boolean dim = (effect & TextStyle.CHARACTER_ATTRIBUTE_DIM) != 0;
 
         if ((foreColor & 0xff000000) != 0xff000000) {
@@ -186,10 +395,46 @@ public final class TerminalRenderer {
             backColor = tmp;
         }
 
-        float left = startColumn * mFontWidth;
+        if (dim) {
+            int red = (0xFF & (foreColor >> 16));
+            int green = (0xFF & (foreColor >> 8));
+            int blue = (0xFF & foreColor);
+            // Dim color handling used by libvte which in turn took it from xterm
+            // (https://bug735245.bugzilla-attachments.gnome.org/attachment.cgi?id=284267):
+            red = red * 2 / 3;
+            green = green * 2 / 3;
+            blue = blue * 2 / 3;
+            foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
+        }
+
+        final int run = layout.addRun();
+        layout.mStartColumns[run] = startColumn;
+        layout.mColumnCounts[run] = runWidthColumns;
+        layout.mClusterTexts[run] = clusterText;
+        layout.mStartChars[run] = (clusterText == null) ? startCharIndex : 0;
+        layout.mCharCounts[run] = (clusterText == null) ? runWidthChars : clusterText.length;
+        layout.mMeasuredWidths[run] = mes;
+        layout.mForeColors[run] = foreColor;
+        layout.mBackColors[run] = backColor;
+        // Only draw non-default background:
+        layout.mDrawBackgrounds[run] = backColor != palette[TextStyle.COLOR_INDEX_BACKGROUND];
+        layout.mCursorColors[run] = cursor;
+        layout.mEffects[run] = effect;
+    }
+
+    /** Draw a run of a row layout, with the text from the row unless it is a grapheme cluster. */
+    private void drawTextRun(Canvas canvas, RowLayout layout, int run, char[] line, float y, int cursorStyle) {
+        final int effect = layout.mEffects[run];
+        final int runWidthColumns = layout.mColumnCounts[run];
+        final char[] text = (layout.mClusterTexts[run] != null) ? layout.mClusterTexts[run] : line;
+        final int startCharIndex = layout.mStartChars[run];
+        final int runWidthChars = layout.mCharCounts[run];
+        final int cursor = layout.mCursorColors[run];
+
+        float left = layout.mStartColumns[run] * mFontWidth;
         float right = left + runWidthColumns * mFontWidth;
 
-        mes = mes / mFontWidth;
+        float mes = layout.mMeasuredWidths[run] / mFontWidth;
         boolean savedMatrix = false;
         if (Math.abs(mes - runWidthColumns) > 0.01) {
             canvas.save();
@@ -199,9 +444,8 @@ public final class TerminalRenderer {
             savedMatrix = true;
         }
 
-        if (backColor != palette[TextStyle.COLOR_INDEX_BACKGROUND]) {
-            // Only draw non-default background.
-            mTextPaint.setColor(backColor);
+        if (layout.mDrawBackgrounds[run]) {
+            mTextPaint.setColor(layout.mBackColors[run]);
             canvas.drawRect(left, y - mFontLineSpacingAndAscent + mFontAscent, right, y, mTextPaint);
         }
 
@@ -214,31 +458,41 @@ public final class TerminalRenderer {
         }
 
         if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) == 0) {
-            if (dim) {
-                int red = (0xFF & (foreColor >> 16));
-                int green = (0xFF & (foreColor >> 8));
-                int blue = (0xFF & foreColor);
-                // Dim color handling used by libvte which in turn took it from xterm
-                // (https://bug735245.bugzilla-attachments.gnome.org/attachment.cgi?id=284267):
-                red = red * 2 / 3;
-                green = green * 2 / 3;
-                blue = blue * 2 / 3;
-                foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
-            }
-
-            mTextPaint.setFakeBoldText(bold);
-            mTextPaint.setUnderlineText(underline);
-            mTextPaint.setTextSkewX(italic ? -0.35f : 0.f);
-            mTextPaint.setStrikeThruText(strikeThrough);
-            mTextPaint.setColor(foreColor);
+            mTextPaint.setFakeBoldText((effect & (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_BLINK)) != 0);
+            mTextPaint.setUnderlineText((effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0);
+            mTextPaint.setTextSkewX((effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0 ? -0.35f : 0.f);
+            mTextPaint.setStrikeThruText((effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0);
+            mTextPaint.setColor(layout.mForeColors[run]);
 
             // The text alignment is the default Paint.Align.LEFT.
-            canvas.drawTextRun(text, startCharIndex, runWidthChars, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, false, mTextPaint);
+            mTextBackend.drawText(canvas, text, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, savedMatrix, mTextPaint);
         }
 
         if (savedMatrix) canvas.restore();
     }
 
+    /** The number of rows drawn with a layout from the cache, see {@link RowLayout}. */
+    public long getRowLayoutHits() {
+        return mRowLayoutHits;
+    }
+
+    /** The number of rows which had to be laid out before being drawn, see {@link RowLayout}. */
+    public long getRowLayoutMisses() {
+        return mRowLayoutMisses;
+    }
+
+    /**
+     * Record the timings of the frames rendered from now on to the given stats, or stop recording them if null. The
+     * parse lag is only known for frames rendered by a {@link TerminalView}.
+     */
+    public void setFrameStats(TerminalFrameStats stats) {
+        mFrameStats = stats;
+    }
+
+    public TerminalFrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
     public float getFontWidth() {
         return mFontWidth;
     }
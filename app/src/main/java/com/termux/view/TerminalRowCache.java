@@ -0,0 +1,186 @@
+package com.termux.view;
+
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.termux.terminal.TerminalBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The rows drawn by the last frame of a {@link TerminalView}, each recorded in a {@link RenderNode} of its own, so that a
+ * frame records again only the rows which changed and draws the others from their recordings. A row is recorded again
+ * when {@link TerminalBuffer#isRowDirty(int)}, or when what is drawn over its text changed: the cursor, the selection, a
+ * fold line or links. Everything is recorded again when the renderer, the buffer, the size or the colors change.
+ * <p>
+ * Recordings are kept by row, as numbered by {@link TerminalBuffer#getScrollCount()}, not by where the row is shown. A
+ * row which moved, as when scrolling through the transcript or when output scrolls the screen, is drawn from its
+ * recording at its new place, so a scroll only records the rows it brings into view.
+ * <p>
+ * Recordings can only be drawn to a hardware accelerated canvas.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+final class TerminalRowCache {
+
+    /** A recording of a row, with what it was recorded with. */
+    private static final class Row {
+        final RenderNode mNode = new RenderNode("TerminalRow");
+        /** The row recorded, as numbered by {@link TerminalBuffer#getScrollCount()}, if {@link #mRecorded}. */
+        long mRow;
+        int mCursorColumn, mSelectionStart, mSelectionEnd;
+        boolean mFolded;
+        TerminalLinkDetector.Link[] mLinks;
+        boolean mRecorded;
+
+        Row() {
+            // Text may reach into the rows above and below, as when drawn without a cache:
+            mNode.setClipToBounds(false);
+        }
+    }
+
+    /** What the rows were last recorded with, to record all rows again when any of it changes. */
+    private TerminalRenderer mRenderer;
+    private TerminalBuffer mScreen;
+    private int mColumns;
+    private boolean mReverseVideo;
+    private int mCursorShape;
+    private int[] mPalette;
+
+    /** The rows of the current frame by shown row, and those of the last frame not shown again yet. */
+    private Row[] mShown = new Row[0];
+    private Row[] mPrevious = new Row[0];
+    /** Recordings not shown by the last frame, to record other rows into. */
+    private final ArrayList<Row> mUnused = new ArrayList<>();
+    /** How far the rows shown moved since the last frame, from its first shown row, to find a row where it was. */
+    private int mShift;
+
+    /** Start a frame, forgetting all recordings if they were made with something else. */
+    void beginFrame(TerminalRenderer renderer, TerminalBuffer screen, int rows, int columns, boolean reverseVideo, int cursorShape, int[] palette) {
+        if (renderer != mRenderer || screen != mScreen || columns != mColumns || reverseVideo != mReverseVideo
+            || cursorShape != mCursorShape || !Arrays.equals(palette, mPalette)) {
+            clear();
+        }
+        mRenderer = renderer;
+        mScreen = screen;
+        mColumns = columns;
+        mReverseVideo = reverseVideo;
+        mCursorShape = cursorShape;
+        if (mPalette == null || mPalette.length != palette.length) mPalette = palette.clone();
+        else System.arraycopy(palette, 0, mPalette, 0, palette.length);
+
+        // Recordings of the frame before the last one which the last frame did not show again:
+        for (Row row : mPrevious) {
+            if (row == null) continue;
+            row.mNode.discardDisplayList();
+            row.mRecorded = false;
+            mUnused.add(row);
+        }
+        Row[] previous = mShown;
+        mShown = (mPrevious.length == rows) ? mPrevious : new Row[rows];
+        Arrays.fill(mShown, null);
+        mPrevious = previous;
+        mShift = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Draw a shown row from its recording if it is unchanged, wherever it was shown, or else start recording it again.
+     *
+     * @param top The top of the row in the view.
+     * @param row The row as numbered by {@link TerminalBuffer#getScrollCount()}.
+     * @return The canvas to render the row to, followed by {@link #endRow(Canvas, int)}, or null if the row was drawn.
+     */
+    Canvas beginRow(Canvas canvas, int shownRow, int top, long row, boolean dirty, int cursorColumn, int selectionStart,
+                    int selectionEnd, boolean folded, TerminalLinkDetector.Link[] links) {
+        int previousIndex = indexOfPrevious(shownRow, row);
+        Row recording = (previousIndex == -1) ? null : mPrevious[previousIndex];
+        if (recording != null && !dirty && recording.mCursorColumn == cursorColumn && recording.mSelectionStart == selectionStart
+            && recording.mSelectionEnd == selectionEnd && recording.mFolded == folded && recording.mLinks == links) {
+            mPrevious[previousIndex] = null;
+            mShown[shownRow] = recording;
+            if (recording.mNode.getTop() != top) recording.mNode.offsetTopAndBottom(top - recording.mNode.getTop());
+            canvas.drawRenderNode(recording.mNode);
+            return null;
+        }
+
+        // Record into a row not shown anymore, or into the last recording of this row, or else into a new one:
+        if (recording != null) {
+            mPrevious[previousIndex] = null;
+        } else if (!mUnused.isEmpty()) {
+            recording = mUnused.remove(mUnused.size() - 1);
+        } else {
+            recording = new Row();
+        }
+        mShown[shownRow] = recording;
+        recording.mRecorded = true;
+        recording.mRow = row;
+        recording.mCursorColumn = cursorColumn;
+        recording.mSelectionStart = selectionStart;
+        recording.mSelectionEnd = selectionEnd;
+        recording.mFolded = folded;
+        recording.mLinks = links;
+
+        int width = (int) Math.ceil(mColumns * mRenderer.mFontWidth);
+        recording.mNode.setPosition(0, top, width, top + mRenderer.mFontLineSpacing);
+        RecordingCanvas rowCanvas = recording.mNode.beginRecording();
+        // The renderer draws in the coordinates of the view:
+        rowCanvas.translate(0, -top);
+        return rowCanvas;
+    }
+
+    /**
+     * The index in {@link #mPrevious} of the recording of a row, or -1 if none. Rows keep their order when scrolled, so
+     * the row is looked for where the rows before it moved from, before looking through all of them, as when rows in
+     * between were folded or unfolded.
+     */
+    private int indexOfPrevious(int shownRow, long row) {
+        if (mShift != Integer.MIN_VALUE) {
+            int index = shownRow + mShift;
+            if (index >= 0 && index < mPrevious.length && isRecordingOf(mPrevious[index], row)) return index;
+        }
+        for (int index = 0; index < mPrevious.length; index++) {
+            if (isRecordingOf(mPrevious[index], row)) {
+                mShift = index - shownRow;
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isRecordingOf(Row recording, long row) {
+        return recording != null && recording.mRecorded && recording.mRow == row;
+    }
+
+    /** Finish the recording started by {@link #beginRow} and draw it. */
+    void endRow(Canvas canvas, int shownRow) {
+        RenderNode node = mShown[shownRow].mNode;
+        node.endRecording();
+        canvas.drawRenderNode(node);
+    }
+
+    /** Forget all recordings, so that the next frame records all rows. */
+    void clear() {
+        for (Row row : mShown)
+            if (row != null) row.mRecorded = false;
+        for (Row row : mPrevious)
+            if (row != null) row.mRecorded = false;
+        for (Row row : mUnused)
+            row.mRecorded = false;
+    }
+
+    /** Free the recordings, as when the view is detached. */
+    void release() {
+        for (Row row : mShown)
+            if (row != null) row.mNode.discardDisplayList();
+        for (Row row : mPrevious)
+            if (row != null) row.mNode.discardDisplayList();
+        for (Row row : mUnused)
+            row.mNode.discardDisplayList();
+        clear();
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.termux.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Draws the text of the runs of a {@link TerminalRenderer}, after the renderer has drawn their background and cursor.
+ * {@link Canvas} is the default, drawing text with {@link Canvas#drawTextRun}. {@link GlyphAtlasTextBackend} is an
+ * alternative which draws glyphs from a bitmap.
+ */
+interface TerminalTextBackend {
+
+    /**
+     * Draw the text {@code [start, start + count)} of a run, left aligned at x and with its baseline at y, with the paint
+     * as set up for the run: color, bold, italic, underline and strike through.
+     *
+     * @param scaled If the canvas is scaled horizontally to fit the text into its cells, as for code points which the
+     *               typeface does not draw as wide as {@link com.termux.terminal.WcWidth} expects.
+     */
+    void drawText(Canvas canvas, char[] text, int start, int count, float x, float y, boolean scaled, Paint paint);
+
+    /** The default backend, drawing text runs to the canvas. */
+    TerminalTextBackend CANVAS = (canvas, text, start, count, x, y, scaled, paint) ->
+        canvas.drawTextRun(text, start, count, start, count, x, y, false, paint);
+
+}
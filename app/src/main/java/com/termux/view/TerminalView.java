@@ -6,7 +6,9 @@ import android.app.Activity;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Handler;
@@ -17,12 +19,14 @@ import android.text.InputType;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.ActionMode;
+import android.view.Display;
 import android.view.HapticFeedbackConstants;
 import android.view.InputDevice;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MotionEvent;
+import android.view.TextureView;
 import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.ViewTreeObserver;
@@ -37,11 +41,16 @@ import android.widget.Scroller;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import com.termux.terminal.CommandMarks;
 import com.termux.terminal.KeyHandler;
+import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
+import com.termux.terminal.TextStyle;
 import com.termux.view.textselection.TextSelectionCursorController;
 
+import java.io.PrintWriter;
+
 /** View displaying and interacting with a {@link TerminalSession}. */
 public class TerminalView extends View {
 
@@ -55,6 +64,28 @@ public class TerminalView extends View {
 
     public TerminalRenderer mRenderer;
 
+    /** Finds the links shown, for the renderer to underline and for taps to open. */
+    final TerminalLinkDetector mLinkDetector = new TerminalLinkDetector(this);
+
+    /** The frame drawn in {@link #onDraw(Canvas)}, captured into again for each frame. */
+    private final TerminalFrame mFrame = new TerminalFrame();
+    /** The rows of the last frame, created on the first frame drawn on versions which can record them. */
+    private TerminalRowCache mRowCache;
+    /** The buffer, top row and cursor row of the last frame, to invalidate only the rows changed since. */
+    private TerminalBuffer mDrawnScreen;
+    private int mDrawnTopRow, mDrawnCursorRow;
+
+    /** Draws the terminal to a texture view if not null, see {@link #setRenderSurface(TextureView)}. */
+    private TerminalRenderThread mRenderThread;
+
+    /** Draws statistics of the renderer over the terminal if not null, see {@link #setRenderStatsShown(boolean)}. */
+    private Paint mRenderStatsPaint;
+
+    /** Where the timings of frames are recorded to if not null, see {@link #setFrameStatsEnabled(boolean)}. */
+    private TerminalFrameStats mFrameStats;
+    /** When output not shown yet was first processed by the emulator, see {@link #onScreenUpdated()}, or 0 if none. */
+    private long mOutputNanos;
+
     public TerminalViewClient mClient;
 
     private TextSelectionCursorController mTextSelectionCursorController;
@@ -62,15 +93,32 @@ public class TerminalView extends View {
     private Handler mTerminalCursorBlinkerHandler;
     private TerminalCursorBlinkerRunnable mTerminalCursorBlinkerRunnable;
     private int mTerminalCursorBlinkerRate;
+    /** If the cursor blinker was started, even while paused as the view is not shown, see {@link #onVisibilityAggregated}. */
+    private boolean mTerminalCursorBlinkerStarted;
     private boolean mCursorInvisibleIgnoreOnce;
     public static final int TERMINAL_CURSOR_BLINK_RATE_MIN = 100;
     public static final int TERMINAL_CURSOR_BLINK_RATE_MAX = 2000;
 
-    /** The top row of text to display. Ranges from -activeTranscriptRows to 0. */
+    /**
+     * The top row of text to display. Ranges from -activeTranscriptRows to 0. Rows below it are displayed as given by
+     * {@link TerminalBuffer#nextShownRow(int)}, which skips the folded output of commands.
+     */
     int mTopRow;
+
+    /** The number of history rows to reflow per frame after a change of columns. */
+    private static final int REFLOW_ROWS_PER_FRAME = 200;
     int[] mDefaultSelectors = new int[]{-1,-1,-1,-1};
 
     float mScaleFactor = 1.f;
+
+    /** How long a text size change during a pinch has to stay unchanged before it is applied, in milliseconds. */
+    private static final int SCALE_SETTLE_DELAY_MILLIS = 250;
+    /** The text size set during a pinch but not yet applied, or -1. See {@link #setTextSize(int)}. */
+    private int mPendingTextSize = -1;
+    /** The frame at the start of a text size change during a pinch, drawn scaled until the change is applied. */
+    private Bitmap mScalePreviewBitmap;
+    /** The text size {@link #mScalePreviewBitmap} was rendered with. */
+    private int mScalePreviewTextSize;
     final GestureAndScaleRecognizer mGestureRecognizer;
 
     /** Keep track of where mouse touch event started which we report as mouse scroll. */
@@ -162,6 +210,9 @@ public class TerminalView extends View {
                     return true;
                 }
                 requestFocus();
+                int[] columnAndRow = getColumnAndRow(event, true);
+                TerminalLinkDetector.Link link = mLinkDetector.getLinkAt(mEmulator.getScreen(), columnAndRow[0], columnAndRow[1]);
+                if (link != null && mClient.onLinkTapped(link)) return true;
                 mClient.onSingleTapUp(event);
                 return true;
             }
@@ -193,6 +244,11 @@ public class TerminalView extends View {
                 return true;
             }
 
+            @Override
+            public void onScaleEnd() {
+                applyPendingTextSize();
+            }
+
             @Override
             public boolean onFling(final MotionEvent e2, float velocityX, float velocityY) {
                 if (mEmulator == null) return true;
@@ -204,7 +260,10 @@ public class TerminalView extends View {
                 if (mouseTrackingAtStartOfFling) {
                     mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
                 } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    // In shown rows from the top row, as folded output is skipped when scrolling:
+                    TerminalBuffer screen = mEmulator.getScreen();
+                    mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0,
+                        -screen.getShownRowCount(-screen.getActiveTranscriptRows(), mTopRow), screen.getShownRowCount(mTopRow, 0));
                 }
 
                 post(new Runnable() {
@@ -219,8 +278,7 @@ public class TerminalView extends View {
                         if (mScroller.isFinished()) return;
                         boolean more = mScroller.computeScrollOffset();
                         int newY = mScroller.getCurrY();
-                        int diff = mouseTrackingAtStartOfFling ? (newY - mLastY) : (newY - mTopRow);
-                        doScroll(e2, diff);
+                        doScroll(e2, newY - mLastY);
                         mLastY = newY;
                         if (more) post(this);
                     }
@@ -437,7 +495,9 @@ public class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        if (mEmulator == null) return 1;
+        TerminalBuffer screen = mEmulator.getScreen();
+        return screen.getShownRowCount(-screen.getActiveTranscriptRows(), mEmulator.mRows);
     }
 
     @Override
@@ -447,7 +507,9 @@ public class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        TerminalBuffer screen = mEmulator.getScreen();
+        return screen.getShownRowCount(-screen.getActiveTranscriptRows(), mTopRow);
     }
 
     public void onScreenUpdated() {
@@ -456,6 +518,7 @@ public class TerminalView extends View {
 
     public void onScreenUpdated(boolean skipScrolling) {
         if (mEmulator == null) return;
+        if (mFrameStats != null && mOutputNanos == 0) mOutputNanos = System.nanoTime();
 
         int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
@@ -493,11 +556,39 @@ public class TerminalView extends View {
         }
 
         mEmulator.clearScrollCounter();
+        // Output may have been folded, or rows of folded output scrolled into the history:
+        mTopRow = mEmulator.getScreen().toShownRow(mTopRow);
 
-        invalidate();
+        invalidateChangedRows();
         if (mAccessibilityEnabled) setContentDescription(getText());
     }
 
+    /**
+     * Invalidate the rows which changed since the last frame, see {@link TerminalBuffer#isRowDirty(int)}, and those the
+     * cursor moved from and to. Everything is invalidated if other rows are shown, as after scrolling.
+     */
+    private void invalidateChangedRows() {
+        TerminalBuffer screen = mEmulator.getScreen();
+        if (screen != mDrawnScreen || mTopRow != mDrawnTopRow || screen.areAllRowsDirty() || screen.getDirtyScrollRows() != 0) {
+            invalidate();
+            return;
+        }
+        int cursorRow = mEmulator.getCursorRow();
+        int firstChangedRow = -1, lastChangedRow = -1;
+        for (int shownRow = 0, row = mTopRow; shownRow < mEmulator.mRows; shownRow++, row = screen.nextShownRow(row)) {
+            if (row == cursorRow || row == mDrawnCursorRow || screen.isRowDirty(row)) {
+                if (firstChangedRow == -1) firstChangedRow = shownRow;
+                lastChangedRow = shownRow;
+            }
+        }
+        if (firstChangedRow == -1) return;
+        // Text may reach a little into the rows above and below:
+        int lineSpacing = mRenderer.getFontLineSpacing();
+        int top = mRenderer.mFontLineSpacingAndAscent + (firstChangedRow - 1) * lineSpacing;
+        int bottom = mRenderer.mFontLineSpacingAndAscent + (lastChangedRow + 2) * lineSpacing;
+        invalidate(0, Math.max(0, top), getWidth(), Math.min(getHeight(), bottom));
+    }
+
     /** This must be called by the hosting activity in {@link Activity#onContextMenuClosed(Menu)}
      * when context menu for the {@link TerminalView} is started by
      * {@link TextSelectionCursorController#ACTION_MORE} is closed. */
@@ -508,28 +599,90 @@ public class TerminalView extends View {
 
     /**
      * Sets the text size, which in turn sets the number of rows and columns.
+     * <p>
+     * During a pinch the current frame is shown scaled instead, and the text size is applied when the pinch ends or
+     * has not changed it for {@link #SCALE_SETTLE_DELAY_MILLIS}. This avoids resizing the emulator and the pty, with
+     * the foreground program redrawing, for every step of the gesture.
      *
      * @param textSize the new font size, in density-independent pixels.
      */
     public void setTextSize(int textSize) {
-        mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
+        if (mRenderer != null && mEmulator != null && mGestureRecognizer.isInProgress() && getWidth() > 0 && getHeight() > 0) {
+            if (mScalePreviewBitmap == null) {
+                mScalePreviewBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+                mScalePreviewTextSize = mRenderer.mTextSize;
+                int[] sel = mDefaultSelectors;
+                mRenderer.render(mEmulator, new Canvas(mScalePreviewBitmap), mTopRow, sel[0], sel[1], sel[2], sel[3], mLinkDetector);
+            }
+            mPendingTextSize = textSize;
+            removeCallbacks(mApplyPendingTextSize);
+            postDelayed(mApplyPendingTextSize, SCALE_SETTLE_DELAY_MILLIS);
+            invalidate();
+            return;
+        }
+        mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface,
+            mRenderer != null && mRenderer.mUseGlyphAtlas);
         updateSize();
     }
 
+    private final Runnable mApplyPendingTextSize = this::applyPendingTextSize;
+
+    /** Apply a text size change deferred by {@link #setTextSize(int)} during a pinch, if any. */
+    private void applyPendingTextSize() {
+        removeCallbacks(mApplyPendingTextSize);
+        if (mScalePreviewBitmap != null) {
+            mScalePreviewBitmap.recycle();
+            mScalePreviewBitmap = null;
+        }
+        if (mPendingTextSize == -1) return;
+        int textSize = mPendingTextSize;
+        mPendingTextSize = -1;
+        mRenderer = new TerminalRenderer(textSize, mRenderer.mTypeface, mRenderer.mUseGlyphAtlas);
+        updateSize();
+        invalidate();
+    }
+
     public void setTypeface(Typeface newTypeface) {
-        mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
+        mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface, mRenderer.mUseGlyphAtlas);
         updateSize();
         invalidate();
     }
 
+    /**
+     * Draw text from glyphs rasterized once into an atlas bitmap, see {@link GlyphAtlasTextBackend}, instead of by the
+     * canvas. The two are compared by the TerminalRenderBenchmark instrumented test.
+     */
+    public void setGlyphAtlasEnabled(boolean enabled) {
+        if (enabled == mRenderer.mUseGlyphAtlas) return;
+        mRenderer = new TerminalRenderer(mRenderer.mTextSize, mRenderer.mTypeface, enabled);
+        invalidate();
+    }
+
     @Override
     public boolean onCheckIsTextEditor() {
         return true;
     }
 
+    /**
+     * Draw the terminal to the surface of a texture view on a render thread, see {@link TerminalRenderThread}, instead of
+     * in {@link #onDraw(Canvas)}. The texture view should be placed right below this view, which then only draws what is
+     * shown over the terminal, and handles input and layout.
+     *
+     * @param textureView The texture view to draw to, or null to draw in {@link #onDraw(Canvas)} again.
+     */
+    public void setRenderSurface(TextureView textureView) {
+        if (mRenderThread != null) mRenderThread.release();
+        mRenderThread = (textureView == null) ? null : new TerminalRenderThread(this, textureView);
+        // All rows are drawn to the new target, as rows captured for the other one are no longer dirty:
+        mDrawnScreen = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mRowCache != null) mRowCache.clear();
+        invalidate();
+    }
+
     @Override
     public boolean isOpaque() {
-        return true;
+        // The terminal is shown through this view when drawn to a texture view below it:
+        return mRenderThread == null;
     }
 
     /**
@@ -547,11 +700,46 @@ public class TerminalView extends View {
         int column = (int) (event.getX() / mRenderer.mFontWidth);
         int row = (int) ((event.getY() - mRenderer.mFontLineSpacingAndAscent) / mRenderer.mFontLineSpacing);
         if (relativeToScroll) {
-            row += mTopRow;
+            row = getShownRow(row);
         }
         return new int[] { column, row };
     }
 
+    /** The external row displayed at a row of the view, counted from the top, which may be outside of the view. */
+    public int getShownRow(int viewRow) {
+        if (mEmulator == null) return mTopRow + viewRow;
+        TerminalBuffer screen = mEmulator.getScreen();
+        int row = mTopRow;
+        for (int i = 0; i < viewRow; i++) row = screen.nextShownRow(row);
+        for (int i = 0; i > viewRow; i--) row = screen.previousShownRow(row);
+        return row;
+    }
+
+    /** The row of the view, counted from the top, where an external row is displayed, or the row after it if folded. */
+    public int getViewRow(int row) {
+        if (mEmulator == null) return row - mTopRow;
+        TerminalBuffer screen = mEmulator.getScreen();
+        return (row >= mTopRow) ? screen.getShownRowCount(mTopRow, row) : -screen.getShownRowCount(row, mTopRow);
+    }
+
+    /**
+     * Fold the output of the command at the position of an event, or unfold it if folded, see
+     * {@link CommandMarks#setFolded(CommandMarks.Command, boolean)}.
+     *
+     * @return If there was a finished command with output at the position.
+     */
+    public boolean toggleFoldAt(MotionEvent event) {
+        if (mEmulator == null || mEmulator.isAlternateBufferActive()) return false;
+        CommandMarks marks = mEmulator.getScreen().getCommandMarks();
+        int index = marks.indexOfPromptAtOrBefore(getColumnAndRow(event, true)[1]);
+        if (index == -1) return false;
+        CommandMarks.Command command = marks.get(index);
+        if (!marks.setFolded(command, !command.isFolded())) return false;
+        onScreenUpdated(true);
+        awakenScrollBars();
+        return true;
+    }
+
     /** Send a single mouse event code to the terminal. */
     void sendMouseEventCode(MotionEvent e, int button, boolean pressed) {
         int[] columnAndRow = getColumnAndRow(e, false);
@@ -582,7 +770,16 @@ public class TerminalView extends View {
                 // e.g. less, which shifts to the alt screen without mouse handling.
                 handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
             } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                // Do not wait for mReflowPendingHistory if scrolling into history not yet reflowed:
+                if (up && mTopRow <= -mEmulator.getScreen().getActiveTranscriptRows())
+                    mEmulator.reflowPendingHistory(REFLOW_ROWS_PER_FRAME);
+                TerminalBuffer screen = mEmulator.getScreen();
+                if (up) {
+                    int row = screen.previousShownRow(mTopRow);
+                    if (row >= -screen.getActiveTranscriptRows()) mTopRow = row;
+                } else {
+                    mTopRow = Math.min(0, screen.nextShownRow(mTopRow));
+                }
                 if (!awakenScrollBars()) invalidate();
             }
         }
@@ -1002,9 +1199,22 @@ public class TerminalView extends View {
             mTopRow = 0;
             scrollTo(0, 0);
             invalidate();
+
+            // A change of columns only reflows what is needed for the screen, do the rest of the history in the background:
+            removeCallbacks(mReflowPendingHistory);
+            if (mEmulator.getScreen().hasPendingReflow()) post(mReflowPendingHistory);
         }
     }
 
+    private final Runnable mReflowPendingHistory = new Runnable() {
+        @Override
+        public void run() {
+            if (mEmulator == null) return;
+            if (mEmulator.reflowPendingHistory(REFLOW_ROWS_PER_FRAME)) post(this);
+            awakenScrollBars();
+        }
+    };
+
     @Override
     protected void onDraw(Canvas canvas) {
         if (mEmulator == null) {
@@ -1016,19 +1226,59 @@ public class TerminalView extends View {
                 mTextSelectionCursorController.getSelectors(sel);
             }
 
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            if (mScalePreviewBitmap != null) {
+                // Pinch in progress, see setTextSize(). Text is laid out from the top left, so scale from there:
+                canvas.drawColor(mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_BACKGROUND]);
+                float scale = mPendingTextSize / (float) mScalePreviewTextSize;
+                canvas.save();
+                canvas.scale(scale, scale);
+                canvas.drawBitmap(mScalePreviewBitmap, 0, 0, null);
+                canvas.restore();
+                return;
+            }
+
+            mLinkDetector.requestScan();
+            mRenderer.setFrameStats(mFrameStats);
+            long parseLagNanos = (mOutputNanos == 0) ? -1 : System.nanoTime() - mOutputNanos;
+            if (mRenderThread != null) {
+                // Drawn on the render thread from a frame captured here, unless it is still drawing the previous one:
+                if (mRenderThread.requestFrame(mEmulator, mRenderer, mTopRow, sel, mLinkDetector, parseLagNanos)) onFrameCaptured();
+            } else {
+                TerminalRowCache rowCache = null;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    if (mRowCache == null) mRowCache = new TerminalRowCache();
+                    // Recordings are only drawn by a hardware accelerated canvas. This frame makes the cache out of date:
+                    if (canvas.isHardwareAccelerated()) rowCache = mRowCache;
+                    else mRowCache.clear();
+                }
+                mFrame.capture(mEmulator, mTopRow, sel[0], sel[1], sel[2], sel[3], mLinkDetector, false);
+                mFrame.mParseLagNanos = parseLagNanos;
+                mRenderer.render(mFrame, canvas, rowCache);
+                mFrame.clearRows();
+                onFrameCaptured();
+            }
 
             // render the text selection handles
             renderTextSelection();
+            if (mRenderStatsPaint != null) renderRenderStats(canvas);
         }
     }
 
+    /** Remember what a frame was captured from, to invalidate only what changed since, see {@link #invalidateChangedRows()}. */
+    private void onFrameCaptured() {
+        mDrawnScreen = mEmulator.getScreen();
+        mDrawnTopRow = mTopRow;
+        mDrawnCursorRow = mEmulator.getCursorRow();
+        mDrawnScreen.clearDirtyRows();
+        mOutputNanos = 0;
+    }
+
     public TerminalSession getCurrentSession() {
         return mTermSession;
     }
 
     private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, getShownRow(mEmulator.mRows));
     }
 
     public int getCursorX(float x) {
@@ -1036,7 +1286,7 @@ public class TerminalView extends View {
     }
 
     public int getCursorY(float y) {
-        return (int) (((y - 40) / mRenderer.mFontLineSpacing) + mTopRow);
+        return getShownRow((int) ((y - 40) / mRenderer.mFontLineSpacing));
     }
 
     public int getPointX(int cx) {
@@ -1047,7 +1297,7 @@ public class TerminalView extends View {
     }
 
     public int getPointY(int cy) {
-        return Math.round((cy - mTopRow) * mRenderer.mFontLineSpacing);
+        return Math.round(getViewRow(cy) * mRenderer.mFontLineSpacing);
     }
 
     public int getTopRow() {
@@ -1289,6 +1539,7 @@ public class TerminalView extends View {
                 mTerminalCursorBlinkerHandler = new Handler(Looper.getMainLooper());
             mTerminalCursorBlinkerRunnable = new TerminalCursorBlinkerRunnable(mEmulator, mTerminalCursorBlinkerRate);
             mEmulator.setCursorBlinkingEnabled(true);
+            mTerminalCursorBlinkerStarted = true;
             mTerminalCursorBlinkerRunnable.run();
         }
     }
@@ -1297,6 +1548,7 @@ public class TerminalView extends View {
      * Cancel the terminal cursor blinker callbacks
      */
     private void stopTerminalCursorBlinker() {
+        mTerminalCursorBlinkerStarted = false;
         if (mTerminalCursorBlinkerHandler != null && mTerminalCursorBlinkerRunnable != null) {
             if (TERMINAL_VIEW_KEY_LOGGING_ENABLED)
                 mClient.logVerbose(LOG_TAG, "Stopping cursor blinker");
@@ -1304,6 +1556,38 @@ public class TerminalView extends View {
         }
     }
 
+    /**
+     * Pause the cursor blinker while the view is not shown, as when the screen is off or the activity is in the
+     * background, so that it does not keep waking up the main thread. The cursor is shown when blinking resumes.
+     */
+    @Override
+    public void onVisibilityAggregated(boolean isVisible) {
+        super.onVisibilityAggregated(isVisible);
+        if (!mTerminalCursorBlinkerStarted || mTerminalCursorBlinkerHandler == null || mTerminalCursorBlinkerRunnable == null)
+            return;
+        mTerminalCursorBlinkerHandler.removeCallbacks(mTerminalCursorBlinkerRunnable);
+        if (isVisible) {
+            // Toggled to visible by the run:
+            mTerminalCursorBlinkerRunnable.mCursorVisible = false;
+            mTerminalCursorBlinkerRunnable.run();
+        }
+    }
+
+    /**
+     * Invalidate the cell of the cursor, with the cells next to it which a wide character under the cursor takes, as
+     * when the cursor blinks. Nothing is invalidated if the cursor row is not shown.
+     */
+    private void invalidateCursorCell() {
+        if (mEmulator == null) return;
+        int viewRow = getViewRow(mEmulator.getCursorRow());
+        if (viewRow < 0 || viewRow >= mEmulator.mRows) return;
+        int column = mEmulator.getCursorCol();
+        int lineSpacing = mRenderer.getFontLineSpacing();
+        int top = mRenderer.mFontLineSpacingAndAscent + viewRow * lineSpacing;
+        invalidate(Math.max(0, (int) ((column - 1) * mRenderer.mFontWidth)), Math.max(0, top),
+            (int) Math.ceil((column + 2) * mRenderer.mFontWidth), Math.min(getHeight(), top + lineSpacing));
+    }
+
     private class TerminalCursorBlinkerRunnable implements Runnable {
 
         private TerminalEmulator mEmulator;
@@ -1324,14 +1608,15 @@ public class TerminalView extends View {
         public void run() {
             try {
                 if (mEmulator != null) {
-                    // Toggle the blink state and then invalidate() the view so
+                    // Toggle the blink state and then invalidate the cursor cell so
                     // that onDraw() is called, which then calls TerminalRenderer.render()
                     // which checks with TerminalEmulator.shouldCursorBeVisible() to decide whether
-                    // to draw the cursor or not
+                    // to draw the cursor or not. Only the cursor row is recorded again, the
+                    // others are drawn from the row cache.
                     mCursorVisible = !mCursorVisible;
                     //mClient.logVerbose(LOG_TAG, "Toggling cursor blink state to " + mCursorVisible);
                     mEmulator.setCursorBlinkState(mCursorVisible);
-                    invalidate();
+                    invalidateCursorCell();
                 }
             } finally {
                 // Recall the Runnable after mBlinkRate milliseconds to toggle the blink state
@@ -1366,6 +1651,82 @@ public class TerminalView extends View {
         return getTextSelectionCursorController().hide();
     }
 
+    /**
+     * Show statistics of the renderer in the top right corner, to find out why drawing is slow: how many of the rows
+     * drawn were laid out before, see {@link TerminalRenderer#getRowLayoutHits()}.
+     */
+    public void setRenderStatsShown(boolean shown) {
+        if (shown == (mRenderStatsPaint != null)) return;
+        if (shown) {
+            mRenderStatsPaint = new Paint();
+            mRenderStatsPaint.setAntiAlias(true);
+            mRenderStatsPaint.setTextAlign(Paint.Align.RIGHT);
+        } else {
+            mRenderStatsPaint = null;
+        }
+        invalidate();
+    }
+
+    private void renderRenderStats(Canvas canvas) {
+        TerminalRenderer renderer = (mRenderThread != null) ? mRenderThread.getRenderer() : mRenderer;
+        if (renderer == null) return;
+        long hits = renderer.getRowLayoutHits();
+        long rows = hits + renderer.getRowLayoutMisses();
+        String text = "Row layouts cached: " + ((rows == 0) ? 0 : (100 * hits / rows)) + "% of " + rows;
+        if (mFrameStats != null) {
+            TerminalFrameStats.Histogram layout = mFrameStats.getLayout(), draw = mFrameStats.getDraw();
+            text += ", 90th layout " + TerminalFrameStats.formatMillis(layout.getPercentileNanos(90))
+                + " draw " + TerminalFrameStats.formatMillis(draw.getPercentileNanos(90));
+        }
+
+        Paint paint = mRenderStatsPaint;
+        paint.setTextSize(mRenderer.mTextSize);
+        float right = getWidth() - mRenderer.getFontWidth();
+        float bottom = 2 * mRenderer.getFontLineSpacing();
+        paint.setColor(0xC0000000);
+        canvas.drawRect(right - paint.measureText(text) - mRenderer.getFontWidth(), bottom - 1.5f * mRenderer.getFontLineSpacing(),
+            getWidth(), bottom + 0.5f * mRenderer.getFontLineSpacing(), paint);
+        paint.setColor(0xFFFFFFFF);
+        canvas.drawText(text, right, bottom, paint);
+    }
+
+    /**
+     * Record the timings of the frames drawn from now on, see {@link TerminalFrameStats}, or stop recording them and
+     * drop those recorded. Frames are janky when they take longer than a frame of the display the view is on.
+     */
+    public void setFrameStatsEnabled(boolean enabled) {
+        if (enabled == (mFrameStats != null)) return;
+        if (enabled) {
+            Display display = getDisplay();
+            float refreshRate = (display == null || display.getRefreshRate() <= 0) ? 60.f : display.getRefreshRate();
+            mFrameStats = new TerminalFrameStats((long) (1_000_000_000L / refreshRate));
+        } else {
+            mFrameStats = null;
+        }
+        mOutputNanos = 0;
+    }
+
+    /** A copy of the timings of the frames drawn, or null if not recorded, see {@link #setFrameStatsEnabled(boolean)}. */
+    @Nullable
+    public TerminalFrameStats getFrameStats() {
+        return (mFrameStats == null) ? null : mFrameStats.copy();
+    }
+
+    /** Drop the timings of the frames drawn so far, to record those of what is drawn next. */
+    public void resetFrameStats() {
+        if (mFrameStats != null) mFrameStats.reset();
+    }
+
+    /** Write a report of the timings of the frames drawn, as for {@link Activity#dump}. */
+    public void dumpFrameStats(String prefix, PrintWriter writer) {
+        if (mFrameStats == null) {
+            writer.print(prefix);
+            writer.println("Terminal frame stats: not recorded");
+        } else {
+            mFrameStats.dump(prefix, writer);
+        }
+    }
+
     private void renderTextSelection() {
         if (mTextSelectionCursorController != null)
             mTextSelectionCursorController.render();
@@ -1442,6 +1803,9 @@ public class TerminalView extends View {
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        mLinkDetector.cancel();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mRowCache != null) mRowCache.release();
+        mDrawnScreen = null;
 
         if (mTextSelectionCursorController != null) {
             // Might solve the following exception
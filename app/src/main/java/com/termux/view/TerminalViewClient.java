@@ -28,6 +28,13 @@ public interface TerminalViewClient {
      */
     void onSingleTapUp(MotionEvent e);
 
+    /**
+     * On a single tap on a link found by {@link TerminalLinkDetector}.
+     *
+     * @return If the tap was handled, instead of being passed on to {@link #onSingleTapUp(MotionEvent)}.
+     */
+    boolean onLinkTapped(TerminalLinkDetector.Link link);
+
     boolean shouldBackButtonBeMappedToEscape();
 
     boolean shouldEnforceCharBasedInput();
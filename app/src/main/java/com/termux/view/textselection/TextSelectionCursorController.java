@@ -98,12 +98,9 @@ public class TextSelectionCursorController implements CursorController {
         TerminalBuffer screen = terminalView.mEmulator.getScreen();
         if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
             // Selecting something other than whitespace. Expand to word.
-            while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
-                mSelX1--;
-            }
-            while (mSelX2 < terminalView.mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
-                mSelX2++;
-            }
+            int[] wordColumns = screen.getNonBlankColumnRange(mSelX1, mSelY1);
+            mSelX1 = wordColumns[0];
+            mSelX2 = wordColumns[1];
         }
     }
     
@@ -194,8 +191,8 @@ public class TextSelectionCursorController implements CursorController {
             public void onGetContentRect(ActionMode mode, View view, Rect outRect) {
                 int x1 = Math.round(mSelX1 * terminalView.mRenderer.getFontWidth());
                 int x2 = Math.round(mSelX2 * terminalView.mRenderer.getFontWidth());
-                int y1 = Math.round((mSelY1 - 1 - terminalView.getTopRow()) * terminalView.mRenderer.getFontLineSpacing());
-                int y2 = Math.round((mSelY2 + 1 - terminalView.getTopRow()) * terminalView.mRenderer.getFontLineSpacing());
+                int y1 = terminalView.getPointY(mSelY1 - 1);
+                int y2 = terminalView.getPointY(mSelY2 + 1);
 
                 if (x1 > x2) {
                     int tmp = x1;
@@ -244,12 +241,12 @@ public class TextSelectionCursorController implements CursorController {
                 int topRow = terminalView.getTopRow();
 
                 if (mSelY1 <= topRow) {
-                    topRow--;
+                    topRow = screen.previousShownRow(topRow);
                     if (topRow < -scrollRows) {
-                        topRow = -scrollRows;
+                        topRow = terminalView.getTopRow();
                     }
-                } else if (mSelY1 >= topRow + terminalView.mEmulator.mRows) {
-                    topRow++;
+                } else if (mSelY1 >= terminalView.getShownRow(terminalView.mEmulator.mRows)) {
+                    topRow = screen.nextShownRow(topRow);
                     if (topRow > 0) {
                         topRow = 0;
                     }
@@ -284,12 +281,12 @@ public class TextSelectionCursorController implements CursorController {
                 int topRow = terminalView.getTopRow();
 
                 if (mSelY2 <= topRow) {
-                    topRow--;
+                    topRow = screen.previousShownRow(topRow);
                     if (topRow < -scrollRows) {
-                        topRow = -scrollRows;
+                        topRow = terminalView.getTopRow();
                     }
-                } else if (mSelY2 >= topRow + terminalView.mEmulator.mRows) {
-                    topRow++;
+                } else if (mSelY2 >= terminalView.getShownRow(terminalView.mEmulator.mRows)) {
+                    topRow = screen.nextShownRow(topRow);
                     if (topRow > 0) {
                         topRow = 0;
                     }
@@ -0,0 +1,143 @@
+package com.termux.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TerminalFrameStatsTest {
+
+    private static final long BUDGET_NANOS = 16_000_000;
+
+    private static TerminalFrameStats.Histogram histogramOf(long... nanos) {
+        TerminalFrameStats.Histogram histogram = new TerminalFrameStats.Histogram();
+        for (long value : nanos) histogram.record(value);
+        return histogram;
+    }
+
+    @Test
+    public void testBucketBounds() {
+        // Below eight microseconds there is a bucket per microsecond:
+        assertEquals(3_999, histogramOf(3_000, 7_000).getPercentileNanos(50));
+        assertEquals(7_000, histogramOf(3_000, 7_000).getPercentileNanos(100));
+        // Then eight per power of two, here of 8 microseconds from 96 to 103:
+        assertEquals(95_999, histogramOf(95_000, 1_000_000).getPercentileNanos(50));
+        assertEquals(103_999, histogramOf(96_000, 1_000_000).getPercentileNanos(50));
+        assertEquals(103_999, histogramOf(103_999, 1_000_000).getPercentileNanos(50));
+        assertEquals(111_999, histogramOf(104_000, 1_000_000).getPercentileNanos(50));
+        // At most the max, also for durations longer than the last bucket:
+        assertEquals(100_000, histogramOf(100_000).getPercentileNanos(50));
+        long hours = 3_600_000_000_000L * 5;
+        assertEquals(hours, histogramOf(hours).getPercentileNanos(50));
+        assertEquals(hours, histogramOf(hours).getMaxNanos());
+        // Negative durations, as from a clock going back, count as none:
+        assertEquals(0, histogramOf(-5_000).getPercentileNanos(100));
+        assertEquals(1, histogramOf(-5_000).getCount());
+    }
+
+    @Test
+    public void testPercentiles() {
+        TerminalFrameStats.Histogram histogram = new TerminalFrameStats.Histogram();
+        assertEquals(0, histogram.getPercentileNanos(50));
+        assertEquals(0, histogram.getAverageNanos());
+
+        for (int micros = 1; micros <= 100; micros++) histogram.record(micros * 1_000L);
+        assertEquals(100, histogram.getCount());
+        assertEquals(5_050_000, histogram.getTotalNanos());
+        assertEquals(50_500, histogram.getAverageNanos());
+        assertEquals(100_000, histogram.getMaxNanos());
+        // By nearest rank, as the end of the bucket of 48 to 51 microseconds, and so on:
+        assertEquals(1_999, histogram.getPercentileNanos(0));
+        assertEquals(1_999, histogram.getPercentileNanos(1));
+        assertEquals(51_999, histogram.getPercentileNanos(50));
+        assertEquals(95_999, histogram.getPercentileNanos(90));
+        assertEquals(100_000, histogram.getPercentileNanos(99));
+        assertEquals(100_000, histogram.getPercentileNanos(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+
+    @Test
+    public void testHistogramMergeAndCopy() {
+        TerminalFrameStats.Histogram histogram = histogramOf(1_000, 2_000);
+        TerminalFrameStats.Histogram copy = histogram.copy();
+        histogram.record(50_000);
+        assertEquals(2, copy.getCount());
+        assertEquals(2_000, copy.getMaxNanos());
+
+        copy.merge(histogramOf(3_000, 90_000));
+        assertEquals(4, copy.getCount());
+        assertEquals(96_000, copy.getTotalNanos());
+        assertEquals(90_000, copy.getMaxNanos());
+        assertEquals(2_999, copy.getPercentileNanos(50));
+        assertEquals(3, histogram.getCount());
+    }
+
+    @Test
+    public void testJankyFrames() {
+        TerminalFrameStats stats = new TerminalFrameStats(BUDGET_NANOS);
+        // Layout and draw together, not the parse lag, are over the budget:
+        stats.recordFrame(-1, 6_000_000, 10_000_000, 0, 0, 0);
+        stats.recordFrame(-1, 6_000_000, 10_000_001, 0, 0, 0);
+        stats.recordFrame(100_000_000, 1_000_000, 1_000_000, 0, 0, 0);
+        assertEquals(3, stats.getFrameCount());
+        assertEquals(1, stats.getJankyFrameCount());
+        // Only frames showing new output have a parse lag:
+        assertEquals(1, stats.getParseLag().getCount());
+        assertEquals(3, stats.getLayout().getCount());
+        assertEquals(21_000_001, stats.getDraw().getTotalNanos());
+        assertTrue(stats.toString().contains("Janky frames: 1 (33.33%) over 16.00ms"));
+    }
+
+    @Test
+    public void testRowAndRunCounters() {
+        TerminalFrameStats stats = new TerminalFrameStats(BUDGET_NANOS);
+        stats.recordFrame(-1, 0, 1_000_000, 24, 0, 80);
+        stats.recordFrame(-1, 0, 1_000_000, 1, 23, 3);
+        assertEquals(25, stats.getRowsDrawn());
+        assertEquals(23, stats.getRowsFromRecordings());
+        assertEquals(83, stats.getRunsDrawn());
+        assertTrue(stats.toString().contains("Rows drawn: 25, from recordings: 23, runs drawn: 83"));
+
+        stats.reset();
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getRowsDrawn());
+        assertEquals(0, stats.getRowsFromRecordings());
+        assertEquals(0, stats.getRunsDrawn());
+        assertEquals(0, stats.getDraw().getCount());
+    }
+
+    @Test
+    public void testMergeAndCopy() {
+        TerminalFrameStats stats = new TerminalFrameStats(BUDGET_NANOS);
+        stats.recordFrame(2_000_000, 1_000_000, 20_000_000, 10, 5, 30);
+        TerminalFrameStats other = new TerminalFrameStats(BUDGET_NANOS / 2);
+        other.recordFrame(-1, 1_000_000, 10_000_000, 2, 8, 4);
+
+        TerminalFrameStats copy = stats.copy();
+        stats.merge(other);
+        // The frames keep whether they were janky under their own budget, and the merged stats their budget:
+        assertEquals(BUDGET_NANOS, stats.getFrameBudgetNanos());
+        assertEquals(2, stats.getFrameCount());
+        assertEquals(2, stats.getJankyFrameCount());
+        assertEquals(12, stats.getRowsDrawn());
+        assertEquals(13, stats.getRowsFromRecordings());
+        assertEquals(34, stats.getRunsDrawn());
+        assertEquals(1, stats.getParseLag().getCount());
+        assertEquals(2, stats.getDraw().getCount());
+        assertEquals(20_000_000, stats.getDraw().getMaxNanos());
+        // Merging leaves the other stats as they were, and copies do not change with the stats copied:
+        assertEquals(1, other.getFrameCount());
+        assertEquals(1, copy.getFrameCount());
+        assertEquals(10, copy.getRowsDrawn());
+        assertEquals(1, copy.getDraw().getCount());
+
+        // The histograms given are copies too:
+        stats.getDraw().record(1);
+        assertEquals(2, stats.getDraw().getCount());
+    }
+
+}
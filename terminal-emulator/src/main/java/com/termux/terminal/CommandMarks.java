@@ -0,0 +1,306 @@
+package com.termux.terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The shell commands in a {@link TerminalBuffer}, as marked by the shell with OSC 133 semantic prompt sequences:
+ * <ul>
+ * <li>{@code OSC 133 ; A} at the start of the prompt.</li>
+ * <li>{@code OSC 133 ; B} at the end of the prompt, where the command line starts.</li>
+ * <li>{@code OSC 133 ; C} when the command is executed, where its output starts.</li>
+ * <li>{@code OSC 133 ; D [; exit code]} when the command has finished.</li>
+ * </ul>
+ * Marks are kept with a row number which does not change when the screen scrolls (see
+ * {@link TerminalBuffer#getScrollCount()}), and are moved with the text when the buffer is resized. Commands are
+ * dropped when their prompt leaves the history.
+ * <p>
+ * The output of a finished command can be folded, see {@link #setFolded(Command, boolean)}. The rows of folded output
+ * in the history are then skipped by {@link TerminalBuffer#nextShownRow(int)} and the other methods for the rows to
+ * show, while staying in the buffer unchanged so that unfolding shows them again as they were.
+ */
+public final class CommandMarks {
+
+    public static final int MARK_PROMPT = 0;
+    public static final int MARK_COMMAND = 1;
+    public static final int MARK_OUTPUT = 2;
+    public static final int MARK_END = 3;
+    private static final int MARK_COUNT = 4;
+
+    /** The position of a mark, see {@link TerminalBuffer#getScrollCount()} for the row. */
+    static final class Mark {
+        long mRow;
+        int mColumn;
+        /**
+         * If the row is an index in the rows waiting for {@link TerminalBuffer#reflowPendingHistory(int)}, or an index
+         * in the rows reflowed from them before they are added to the history.
+         */
+        boolean mPending;
+    }
+
+    /** A command and the marks received for it so far. */
+    public final class Command {
+        final Mark[] mMarks = new Mark[MARK_COUNT];
+        int mExitCode = -1;
+        boolean mFolded;
+
+        public boolean hasMark(int mark) {
+            return mMarks[mark] != null && !mMarks[mark].mPending;
+        }
+
+        /** The external row of a mark, which is less than the first row of the history if it has scrolled out. */
+        public int getRow(int mark) {
+            return (int) (mMarks[mark].mRow - mBuffer.getScrollCount());
+        }
+
+        public int getColumn(int mark) {
+            return mMarks[mark].mColumn;
+        }
+
+        /** The exit code from {@code OSC 133 ; D ; exit code}, or -1 if not known. */
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        /** If the command has been executed and has finished. */
+        public boolean isFinished() {
+            return mMarks[MARK_OUTPUT] != null && mMarks[MARK_END] != null;
+        }
+
+        /** If the output of the command is folded, see {@link #setFolded(Command, boolean)}. */
+        public boolean isFolded() {
+            return mFolded;
+        }
+    }
+
+    private final TerminalBuffer mBuffer;
+    /** Commands sorted by their prompt row, oldest first. */
+    private final ArrayList<Command> mCommands = new ArrayList<>();
+
+    /** The first and last row of the output of each folded command, in row order, see {@link #updateFoldedRanges()}. */
+    private long[] mFoldedRanges = new long[8];
+    private int mFoldedRangeCount;
+    /** If {@link #mFoldedRanges} is to be rebuilt, as commands or marks changed. */
+    private boolean mFoldedRangesChanged;
+    /** The {@link TerminalBuffer#mLayoutGeneration} of {@link #mFoldedRanges}. */
+    private int mFoldedRangesGeneration;
+
+    CommandMarks(TerminalBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /** Handle a mark at the given position on the screen. */
+    void onMark(int mark, int row, int column, int exitCode) {
+        prune();
+        Command command = mCommands.isEmpty() ? null : mCommands.get(mCommands.size() - 1);
+        if (mark == MARK_PROMPT || command == null || command.mMarks[mark] != null) {
+            // A new prompt, or a shell not sending the prompt start. A previous command without end ends here:
+            if (command != null && command.mMarks[MARK_END] == null && mark == MARK_PROMPT)
+                command.mMarks[MARK_END] = newMark(row, column);
+            command = new Command();
+            mCommands.add(command);
+        }
+        command.mMarks[mark] = newMark(row, column);
+        if (mark == MARK_END) command.mExitCode = exitCode;
+        mFoldedRangesChanged = true;
+    }
+
+    private Mark newMark(int row, int column) {
+        Mark mark = new Mark();
+        mark.mRow = mBuffer.getScrollCount() + row;
+        mark.mColumn = column;
+        return mark;
+    }
+
+    /** The number of commands, including one still in progress. */
+    public int size() {
+        prune();
+        return mCommands.size();
+    }
+
+    /** Get a command, where 0 is the oldest one still in the history. */
+    public Command get(int index) {
+        return mCommands.get(index);
+    }
+
+    /**
+     * The index of the last command with a prompt at or above the given external row, or -1. Jumping to the prompt
+     * before that is then just looking at the index before. Commands in history waiting for a reflow are not found.
+     */
+    public int indexOfPromptAtOrBefore(int row) {
+        prune();
+        long absoluteRow = mBuffer.getScrollCount() + row;
+        // Those are the oldest commands, with a row which is an index in the pending rows instead:
+        int low = 0;
+        while (low < mCommands.size() && firstMark(mCommands.get(low)).mPending) low++;
+        int high = mCommands.size() - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstMark(mCommands.get(mid)).mRow <= absoluteRow) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * If the output of a command can be folded: it has finished, with its marks not waiting for a reflow, and its output
+     * fills at least one row of its own.
+     */
+    public boolean canFold(Command command) {
+        return command.hasMark(MARK_OUTPUT) && command.hasMark(MARK_END) && getFoldStart(command) <= getFoldEnd(command);
+    }
+
+    /**
+     * Fold or unfold the output of a command. The rows of folded output in the history are not shown (see
+     * {@link TerminalBuffer#nextShownRow(int)}), and are compacted as by {@link TerminalBuffer#compactHistory()}. Rows
+     * still on the screen are always shown, as programs may still write to them.
+     *
+     * @return If the command could be folded, see {@link #canFold(Command)}. Unfolding always succeeds.
+     */
+    public boolean setFolded(Command command, boolean folded) {
+        if (folded && !canFold(command)) return false;
+        if (command.mFolded == folded) return true;
+        command.mFolded = folded;
+        mFoldedRangesChanged = true;
+        if (folded) {
+            long scrollCount = mBuffer.getScrollCount();
+            mBuffer.compactRows((int) Math.max(getFoldStart(command) - scrollCount, -mBuffer.getActiveTranscriptRows()),
+                (int) Math.min(getFoldEnd(command) - scrollCount, -1));
+        }
+        return true;
+    }
+
+    /** The first row of the output, after the row of the command line if the output starts on it. */
+    private static long getFoldStart(Command command) {
+        Mark output = command.mMarks[MARK_OUTPUT];
+        return (output.mColumn == 0) ? output.mRow : output.mRow + 1;
+    }
+
+    /** The last row of the output, before the row of the end mark, where the next prompt is. */
+    private static long getFoldEnd(Command command) {
+        return command.mMarks[MARK_END].mRow - 1;
+    }
+
+    private void updateFoldedRanges() {
+        if (!mFoldedRangesChanged && mFoldedRangesGeneration == mBuffer.mLayoutGeneration) return;
+        mFoldedRangesChanged = false;
+        mFoldedRangesGeneration = mBuffer.mLayoutGeneration;
+        mFoldedRangeCount = 0;
+        for (Command command : mCommands) {
+            // A resize may have left too little output to fold, or the marks waiting for a reflow:
+            if (!command.mFolded || !canFold(command)) continue;
+            if (mFoldedRanges.length < 2 * (mFoldedRangeCount + 1))
+                mFoldedRanges = Arrays.copyOf(mFoldedRanges, mFoldedRanges.length * 2);
+            mFoldedRanges[2 * mFoldedRangeCount] = getFoldStart(command);
+            mFoldedRanges[2 * mFoldedRangeCount + 1] = getFoldEnd(command);
+            mFoldedRangeCount++;
+        }
+    }
+
+    /** The index in {@link #mFoldedRanges} of the folded range containing a row, or -1. */
+    int foldedRangeContaining(long row) {
+        updateFoldedRanges();
+        int low = 0, high = mFoldedRangeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mFoldedRanges[2 * mid] > row) high = mid - 1;
+            else if (mFoldedRanges[2 * mid + 1] < row) low = mid + 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    long getFoldedRangeStart(int index) {
+        return mFoldedRanges[2 * index];
+    }
+
+    long getFoldedRangeEnd(int index) {
+        return mFoldedRanges[2 * index + 1];
+    }
+
+    /** The number of rows in {@code [firstRow, lastRow]} which are in folded ranges. */
+    long countFoldedRows(long firstRow, long lastRow) {
+        updateFoldedRanges();
+        long count = 0;
+        for (int i = 0; i < mFoldedRangeCount; i++) {
+            long start = Math.max(firstRow, mFoldedRanges[2 * i]), end = Math.min(lastRow, mFoldedRanges[2 * i + 1]);
+            if (start <= end) count += end - start + 1;
+        }
+        return count;
+    }
+
+    /** The text of the command line, or null if not marked. */
+    public String getCommandText(Command command) {
+        if (!command.hasMark(MARK_COMMAND) || !command.hasMark(MARK_OUTPUT)) return null;
+        return getText(command, MARK_COMMAND, MARK_OUTPUT).trim();
+    }
+
+    /** The output of a finished command, or null if not finished. */
+    public String getOutputText(Command command) {
+        if (!command.hasMark(MARK_OUTPUT) || !command.hasMark(MARK_END)) return null;
+        return getText(command, MARK_OUTPUT, MARK_END);
+    }
+
+    /** The text from one mark up to, not including, another. */
+    private String getText(Command command, int startMark, int endMark) {
+        int startRow = command.getRow(startMark), startColumn = command.getColumn(startMark);
+        int endRow = command.getRow(endMark), endColumn = command.getColumn(endMark) - 1;
+        if (endColumn < 0) {
+            endRow--;
+            endColumn = mBuffer.mColumns - 1;
+        }
+        if (endRow < startRow || (endRow == startRow && endColumn < startColumn)) return "";
+        if (startRow < -mBuffer.getActiveTranscriptRows()) {
+            startRow = -mBuffer.getActiveTranscriptRows();
+            startColumn = 0;
+        }
+        String text = mBuffer.getSelectedText(startColumn, startRow, endColumn, endRow);
+        // Drop the newline before the end mark, which is at the start of a row:
+        return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private static Mark firstMark(Command command) {
+        for (Mark mark : command.mMarks)
+            if (mark != null) return mark;
+        throw new IllegalStateException();
+    }
+
+    /** Drop commands that have left the history. */
+    void prune() {
+        long firstRow = mBuffer.getScrollCount() - mBuffer.getActiveTranscriptRows();
+        int dropped = 0;
+        while (dropped < mCommands.size()) {
+            Mark mark = firstMark(mCommands.get(dropped));
+            if (mark.mPending || mark.mRow >= firstRow) break;
+            dropped++;
+        }
+        if (dropped > 0) {
+            mCommands.subList(0, dropped).clear();
+            mFoldedRangesChanged = true;
+        }
+    }
+
+    void clear() {
+        mCommands.clear();
+        mFoldedRangesChanged = true;
+    }
+
+    /** Note that marks were moved other than by a resize, as when reflowed. */
+    void onMarksMoved() {
+        mFoldedRangesChanged = true;
+    }
+
+    /** All marks, in the order of their rows. */
+    ArrayList<Mark> getMarksInOrder() {
+        ArrayList<Mark> marks = new ArrayList<>();
+        for (Command command : mCommands)
+            for (Mark mark : command.mMarks)
+                if (mark != null) marks.add(mark);
+        return marks;
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The grapheme clusters which would otherwise be split over several cells: emoji joined by zero width joiners, flags
+ * made of two regional indicators, and emoji followed by a skin tone modifier. Code points of zero width are already
+ * kept in the cell of the code point before them by {@link TerminalRow#setChar(int, int, long)}.
+ * <p>
+ * Segmentation is done once, when the emulator writes a code point after another one with DECSET 2027 set, following
+ * the rules of https://unicode.org/reports/tr29/#Grapheme_Cluster_Boundary_Rules which join code points that have a
+ * width of their own. The cluster is interned in a table and written to its cell as a single code point from
+ * {@link #FIRST_ID} on, in the Supplementary Private Use Area-B. A row so still holds one code point per cell. The id
+ * holds the width of the cluster in its lowest bit, so {@link WcWidth#width(int)} returns the width of the whole cluster
+ * without the table. Anything showing or copying the text expands it with {@link #getChars(int)}.
+ * <p>
+ * Each {@link TerminalEmulator} has a table of its own, shared by its buffers and their snapshots, so that the clusters
+ * of a session are freed with it. A table holds at most {@link #MAX_CLUSTERS}, after which code points no longer join
+ * and get cells of their own as before. Code points in the range used for clusters written by an application are
+ * interned as clusters of their own.
+ */
+public final class GraphemeClusters {
+
+    /** The code point for the first cluster of a table. */
+    static final int FIRST_ID = 0x100000;
+    /** The most clusters in a table, to bound the memory an application writing many different ones may use. */
+    static final int MAX_CLUSTERS = 8192;
+    /** The last code point for a cluster, two being used for each index in a table: one for each width. */
+    static final int LAST_ID = FIRST_ID + 2 * MAX_CLUSTERS - 1;
+    /** The longest cluster in java chars, beyond which code points no longer join it. */
+    static final int MAX_CLUSTER_LENGTH = 32;
+
+    private static final char FIRST_HIGH_SURROGATE = Character.highSurrogate(FIRST_ID);
+    private static final char LAST_HIGH_SURROGATE = Character.highSurrogate(LAST_ID);
+
+    private static final int ZERO_WIDTH_JOINER = 0x200D;
+    private static final int FIRST_REGIONAL_INDICATOR = 0x1F1E6;
+    private static final int LAST_REGIONAL_INDICATOR = 0x1F1FF;
+    private static final int FIRST_EMOJI_MODIFIER = 0x1F3FB;
+    private static final int LAST_EMOJI_MODIFIER = 0x1F3FF;
+
+    /** Shown for a cluster not in the table, which can only be a code point of the range written by an application. */
+    private static final char[] UNKNOWN_CLUSTER = {'\uFFFD'};
+
+    // From https://www.unicode.org/Public/15.0.0/ucd/emoji/emoji-data.txt
+    private static final int[][] EXTENDED_PICTOGRAPHIC = {
+        {0x000a9, 0x000a9},  // Copyright Sign
+        {0x000ae, 0x000ae},  // Registered Sign
+        {0x0203c, 0x0203c},  // Double Exclamation Mark
+        {0x02049, 0x02049},  // Exclamation Question Mark
+        {0x02122, 0x02122},  // Trade Mark Sign
+        {0x02139, 0x02139},  // Information Source
+        {0x02194, 0x02199},  // Left Right Arrow        ..South West Arrow
+        {0x021a9, 0x021aa},  // Leftwards Arrow With Hoo..Rightwards Arrow With Ho
+        {0x0231a, 0x0231b},  // Watch                   ..Hourglass
+        {0x02328, 0x02328},  // Keyboard
+        {0x02388, 0x02388},  // Helm Symbol
+        {0x023cf, 0x023cf},  // Eject Symbol
+        {0x023e9, 0x023f3},  // Black Right-pointing Dou..Hourglass With Flowing S
+        {0x023f8, 0x023fa},  // Double Vertical Bar     ..Black Circle For Record
+        {0x024c2, 0x024c2},  // Circled Latin Capital Letter M
+        {0x025aa, 0x025ab},  // Black Small Square      ..White Small Square
+        {0x025b6, 0x025b6},  // Black Right-pointing Triangle
+        {0x025c0, 0x025c0},  // Black Left-pointing Triangle
+        {0x025fb, 0x025fe},  // White Medium Square     ..Black Medium Small Squar
+        {0x02600, 0x02605},  // Black Sun With Rays     ..Black Star
+        {0x02607, 0x02612},  // Lightning               ..Ballot Box With X
+        {0x02614, 0x02685},  // Umbrella With Rain Drops..Die Face-6
+        {0x02690, 0x02705},  // White Flag              ..White Heavy Check Mark
+        {0x02708, 0x02712},  // Airplane                ..Black Nib
+        {0x02714, 0x02714},  // Heavy Check Mark
+        {0x02716, 0x02716},  // Heavy Multiplication X
+        {0x0271d, 0x0271d},  // Latin Cross
+        {0x02721, 0x02721},  // Star Of David
+        {0x02728, 0x02728},  // Sparkles
+        {0x02733, 0x02734},  // Eight Spoked Asterisk   ..Eight Pointed Black Star
+        {0x02744, 0x02744},  // Snowflake
+        {0x02747, 0x02747},  // Sparkle
+        {0x0274c, 0x0274c},  // Cross Mark
+        {0x0274e, 0x0274e},  // Negative Squared Cross Mark
+        {0x02753, 0x02755},  // Black Question Mark Orna..White Exclamation Mark O
+        {0x02757, 0x02757},  // Heavy Exclamation Mark Symbol
+        {0x02763, 0x02767},  // Heavy Heart Exclamation ..Rotated Floral Heart Bul
+        {0x02795, 0x02797},  // Heavy Plus Sign         ..Heavy Division Sign
+        {0x027a1, 0x027a1},  // Black Rightwards Arrow
+        {0x027b0, 0x027b0},  // Curly Loop
+        {0x027bf, 0x027bf},  // Double Curly Loop
+        {0x02934, 0x02935},  // Arrow Pointing Rightward..Arrow Pointing Rightward
+        {0x02b05, 0x02b07},  // Leftwards Black Arrow   ..Downwards Black Arrow
+        {0x02b1b, 0x02b1c},  // Black Large Square      ..White Large Square
+        {0x02b50, 0x02b50},  // White Medium Star
+        {0x02b55, 0x02b55},  // Heavy Large Circle
+        {0x03030, 0x03030},  // Wavy Dash
+        {0x0303d, 0x0303d},  // Part Alternation Mark
+        {0x03297, 0x03297},  // Circled Ideograph Congratulation
+        {0x03299, 0x03299},  // Circled Ideograph Secret
+        {0x1f000, 0x1f0ff},  // Mahjong Tile East Wind  ..(nil)
+        {0x1f10d, 0x1f10f},  // Circled Zero With Slash ..Circled Dollar Sign With
+        {0x1f12f, 0x1f12f},  // Copyleft Symbol
+        {0x1f16c, 0x1f171},  // Raised Mr Sign          ..Negative Squared Latin C
+        {0x1f17e, 0x1f17f},  // Negative Squared Latin C..Negative Squared Latin C
+        {0x1f18e, 0x1f18e},  // Negative Squared Ab
+        {0x1f191, 0x1f19a},  // Squared Cl              ..Squared Vs
+        {0x1f1ad, 0x1f1e5},  // Mask Work Symbol        ..(nil)
+        {0x1f201, 0x1f20f},  // Squared Katakana Koko   ..(nil)
+        {0x1f21a, 0x1f21a},  // Squared Cjk Unified Ideograph-7121
+        {0x1f22f, 0x1f22f},  // Squared Cjk Unified Ideograph-6307
+        {0x1f232, 0x1f23a},  // Squared Cjk Unified Ideo..Squared Cjk Unified Ideo
+        {0x1f23c, 0x1f23f},  // (nil)                   ..(nil)
+        {0x1f249, 0x1f3fa},  // (nil)                   ..Amphora
+        {0x1f400, 0x1f53d},  // Rat                     ..Down-pointing Small Red
+        {0x1f546, 0x1f64f},  // White Latin Cross       ..Person With Folded Hands
+        {0x1f680, 0x1f6ff},  // Rocket                  ..(nil)
+        {0x1f774, 0x1f77f},  // Lot Of Fortune          ..Orcus
+        {0x1f7d5, 0x1f7ff},  // Circled Triangle        ..(nil)
+        {0x1f80c, 0x1f80f},  // (nil)                   ..(nil)
+        {0x1f848, 0x1f84f},  // (nil)                   ..(nil)
+        {0x1f85a, 0x1f85f},  // (nil)                   ..(nil)
+        {0x1f888, 0x1f88f},  // (nil)                   ..(nil)
+        {0x1f8ae, 0x1f8ff},  // (nil)                   ..(nil)
+        {0x1f90c, 0x1f93a},  // Pinched Fingers         ..Fencer
+        {0x1f93c, 0x1f945},  // Wrestlers               ..Goal Net
+        {0x1f947, 0x1faff},  // First Place Medal       ..(nil)
+        {0x1fc00, 0x1fffd},  // (nil)                   ..(nil)
+    };
+
+    /** The ids of the clusters in the table, guarded by this table. */
+    private final Map<String, Integer> mIds = new HashMap<>();
+    /** The text of each cluster, by its index. Replaced when grown, only by {@link #intern(String)}. */
+    private volatile char[][] mTexts = new char[0][];
+
+    /** If a code point is in the range used for the clusters of a table. */
+    public static boolean isCluster(int codePoint) {
+        return codePoint >= FIRST_ID && codePoint <= LAST_ID;
+    }
+
+    /** If a java char is the high surrogate of a code point in the range used for clusters. */
+    static boolean isClusterHighSurrogate(char c) {
+        return c >= FIRST_HIGH_SURROGATE && c <= LAST_HIGH_SURROGATE;
+    }
+
+    /** The width of a cluster, used by {@link WcWidth#width(int)}. */
+    static int width(int id) {
+        return ((id - FIRST_ID) & 1) + 1;
+    }
+
+    /** The index in a table of a cluster. */
+    static int indexOf(int id) {
+        return (id - FIRST_ID) >> 1;
+    }
+
+    /**
+     * The text of a cluster, which must not be modified. May be called on any thread. The lowest bit of the id is not
+     * looked at, so the text at an index is that of {@code FIRST_ID + 2 * index}.
+     */
+    public char[] getChars(int id) {
+        char[][] texts = mTexts;
+        int index = indexOf(id);
+        char[] text = (index >= 0 && index < texts.length) ? texts[index] : null;
+        return (text == null) ? UNKNOWN_CLUSTER : text;
+    }
+
+    /** The number of clusters in the table, which have the indices from 0 on. */
+    synchronized int getCount() {
+        return mIds.size();
+    }
+
+    /**
+     * The id of a cluster, added to the table if not in it.
+     *
+     * @return The id, or -1 if the table is full or the text too long.
+     */
+    synchronized int intern(String text) {
+        Integer id = mIds.get(text);
+        if (id != null) return id;
+        int count = mIds.size();
+        if (count == MAX_CLUSTERS || text.length() > MAX_CLUSTER_LENGTH) return -1;
+
+        char[][] texts = mTexts;
+        if (count == texts.length) texts = Arrays.copyOf(texts, Math.min(MAX_CLUSTERS, Math.max(64, 2 * count)));
+        texts[count] = text.toCharArray();
+        // Published after the entry is complete, for reading without the lock:
+        mTexts = texts;
+        int newId = FIRST_ID + 2 * count + computeWidth(text) - 1;
+        mIds.put(text, newId);
+        return newId;
+    }
+
+    /** The code point to write for a code point written by an application, which may be in the range used for clusters. */
+    int internCodePoint(int codePoint) {
+        if (!isCluster(codePoint)) return codePoint;
+        int id = intern(new String(Character.toChars(codePoint)));
+        return (id == -1) ? UNKNOWN_CLUSTER[0] : id;
+    }
+
+    /**
+     * The width of a cluster: that of its first code point, or two if it has a wide code point or is a flag. Joined
+     * emoji are mostly shown as a single wide glyph.
+     */
+    private static int computeWidth(String text) {
+        int first = text.codePointAt(0);
+        int width = isCluster(first) ? 1 : Math.max(1, WcWidth.width(first));
+        for (int i = Character.charCount(first); i < text.length() && width < 2; ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if ((!isCluster(codePoint) && WcWidth.width(codePoint) == 2) || (isRegionalIndicator(first) && isRegionalIndicator(codePoint)))
+                width = 2;
+        }
+        return width;
+    }
+
+    /**
+     * The cluster a code point forms with the text of a cell, written by the emulator just before it, if the code point
+     * continues it instead of starting a new cell.
+     *
+     * @param text  The text of the row.
+     * @param start The index of the cell in the text.
+     * @param end   The index after the cell, including the code points of zero width kept in it.
+     * @return The id of the joined cluster, or -1 if the code point does not join the cell or the table is full.
+     */
+    int join(char[] text, int start, int end, int codePoint) {
+        StringBuilder cluster = new StringBuilder(end - start + 2);
+        appendExpanded(cluster, text, start, end - start);
+        if (!continuesCluster(cluster, codePoint)) return -1;
+        return intern(cluster.appendCodePoint(codePoint).toString());
+    }
+
+    /** If a code point may continue a cluster, checked before looking at the cell before it. */
+    static boolean mayContinueCluster(int codePoint) {
+        return codePoint >= EXTENDED_PICTOGRAPHIC[0][0] && (isRegionalIndicator(codePoint)
+            || (codePoint >= FIRST_EMOJI_MODIFIER && codePoint <= LAST_EMOJI_MODIFIER) || isExtendedPictographic(codePoint));
+    }
+
+    /** If a code point continues a cluster where it would otherwise start a new cell. */
+    private static boolean continuesCluster(CharSequence cluster, int codePoint) {
+        int length = cluster.length();
+        if (length == 0) return false;
+        // GB9: Emoji modifiers are Extend, but have a width of their own.
+        if (codePoint >= FIRST_EMOJI_MODIFIER && codePoint <= LAST_EMOJI_MODIFIER) return true;
+        // GB11: ExtPict Extend* ZWJ x ExtPict
+        if (cluster.charAt(length - 1) == ZERO_WIDTH_JOINER && isExtendedPictographic(codePoint)) return true;
+        // GB12 and GB13: Pairs of regional indicators, each in a cluster of its own.
+        if (isRegionalIndicator(codePoint)) {
+            int regionalIndicators = 0;
+            for (int i = 0; i < length; ) {
+                int c = Character.codePointAt(cluster, i);
+                if (isRegionalIndicator(c)) regionalIndicators++;
+                i += Character.charCount(c);
+            }
+            return regionalIndicators == 1 && isRegionalIndicator(Character.codePointAt(cluster, 0));
+        }
+        return false;
+    }
+
+    /** Append text, with the text of the clusters it contains instead of their ids. */
+    void appendExpanded(StringBuilder builder, char[] text, int start, int length) {
+        int end = start + length;
+        int copied = start;
+        for (int i = start; i < end - 1; i++) {
+            if (!isClusterHighSurrogate(text[i])) continue;
+            builder.append(text, copied, i - copied);
+            builder.append(getChars(Character.toCodePoint(text[i], text[i + 1])));
+            copied = ++i + 1;
+        }
+        builder.append(text, copied, end - copied);
+    }
+
+    private static boolean isRegionalIndicator(int codePoint) {
+        return codePoint >= FIRST_REGIONAL_INDICATOR && codePoint <= LAST_REGIONAL_INDICATOR;
+    }
+
+    private static boolean isExtendedPictographic(int codePoint) {
+        int bot = 0, top = EXTENDED_PICTOGRAPHIC.length - 1;
+        while (top >= bot) {
+            int mid = (bot + top) >>> 1;
+            if (EXTENDED_PICTOGRAPHIC[mid][1] < codePoint) bot = mid + 1;
+            else if (EXTENDED_PICTOGRAPHIC[mid][0] > codePoint) top = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.termux.terminal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the scrollback of several emulators within one memory budget.
+ * <p>
+ * Each emulator has its own transcript size, so many tabs or windows could otherwise hold more history than the process
+ * can afford. When over the budget, history is first compacted, which does not change it, and then the oldest history
+ * is dropped from the emulators which have been in the background the longest. The emulator in the foreground is
+ * trimmed last, and never below {@link #MIN_FOREGROUND_HISTORY_ROWS} unless asked to.
+ * <p>
+ * Measuring the bytes actually held with {@link TerminalEmulator#getMemoryUsage()} walks every row, so it is only done
+ * when an estimate is over the budget: the bytes last measured of each emulator, plus the rows its history has grown by
+ * since at the average size of a row then. The estimate is cheap enough to check after each output, see
+ * {@link #onTextChanged(TerminalEmulator)}. Trimming goes a bit below the budget, so that it is not done again for the
+ * next few rows of output.
+ * <p>
+ * Not thread safe: all methods must be called on the thread which appends to the emulators.
+ */
+public final class ScrollbackBudget {
+
+    /** The history the foreground emulator keeps when trimmed, unless it may be trimmed fully. */
+    public static final int MIN_FOREGROUND_HISTORY_ROWS = 500;
+    /** Trimming goes this share of the limit below it. */
+    private static final int TRIM_SLACK_DIVISOR = 8;
+
+    private static final class Entry {
+        final TerminalEmulator emulator;
+        /** Called after history has been dropped, so that a view can stop showing rows which are gone. */
+        final Runnable onHistoryTrimmed;
+        boolean foreground;
+        /** When this emulator was last in the foreground, to trim the one unused the longest first. */
+        long lastForegroundTime;
+        /** The bytes held when last measured, with the history rows and the average bytes of a row then. */
+        long measuredBytes, bytesPerRow;
+        int measuredHistoryRows;
+
+        Entry(TerminalEmulator emulator, Runnable onHistoryTrimmed) {
+            this.emulator = emulator;
+            this.onHistoryTrimmed = onHistoryTrimmed;
+        }
+
+        long measure() {
+            measuredBytes = emulator.getMemoryUsage();
+            measuredHistoryRows = emulator.getHistoryRows();
+            bytesPerRow = Math.max(1, measuredBytes / (measuredHistoryRows + emulator.mRows));
+            return measuredBytes;
+        }
+
+        long estimate() {
+            return measuredBytes + Math.max(0, emulator.getHistoryRows() - measuredHistoryRows) * bytesPerRow;
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final long mBudgetBytes;
+    /** Used instead of wall time so that emulators switched within the same millisecond are still ordered. */
+    private long mForegroundCounter;
+
+    public ScrollbackBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    public void register(TerminalEmulator emulator, Runnable onHistoryTrimmed) {
+        if (findEntry(emulator) != null) return;
+        Entry entry = new Entry(emulator, onHistoryTrimmed);
+        entry.measure();
+        mEntries.add(entry);
+        enforceBudget();
+    }
+
+    public void unregister(TerminalEmulator emulator) {
+        Entry entry = findEntry(emulator);
+        if (entry != null) mEntries.remove(entry);
+    }
+
+    /** Note that an emulator is shown or hidden. Going to the background is a good time to check the budget. */
+    public void setForeground(TerminalEmulator emulator, boolean foreground) {
+        Entry entry = findEntry(emulator);
+        if (entry == null) return;
+        entry.foreground = foreground;
+        entry.lastForegroundTime = ++mForegroundCounter;
+        if (!foreground) enforceBudget();
+    }
+
+    /** Check the budget after output has been appended to an emulator, which is cheap unless over the budget. */
+    public void onTextChanged(TerminalEmulator emulator) {
+        if (getUsedBytes() > mBudgetBytes) enforceBudget();
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /** An estimate of the bytes held by the buffers of all registered emulators, at least what was last measured. */
+    public long getUsedBytes() {
+        long bytes = 0;
+        for (Entry entry : mEntries)
+            bytes += entry.estimate();
+        return bytes;
+    }
+
+    /** Measure the bytes held by the buffers of all registered emulators, which walks all their rows. */
+    public long measureUsedBytes() {
+        long bytes = 0;
+        for (Entry entry : mEntries)
+            bytes += entry.measure();
+        return bytes;
+    }
+
+    public void enforceBudget() {
+        trimTo(mBudgetBytes, false);
+    }
+
+    /**
+     * Bring the memory used below a limit, if the estimate is over it: compact all history, and then drop the oldest
+     * history of the emulators which have been in the background the longest.
+     *
+     * @param trimForegroundFully If the foreground emulator may lose all of its history, instead of keeping
+     *                            {@link #MIN_FOREGROUND_HISTORY_ROWS}.
+     */
+    public void trimTo(long limitBytes, boolean trimForegroundFully) {
+        if (getUsedBytes() <= limitBytes) return;
+        // The estimate may be too high, as rows may be smaller than the average or have been dropped since:
+        if (measureUsedBytes() <= limitBytes) return;
+
+        final long targetBytes = limitBytes - limitBytes / TRIM_SLACK_DIVISOR;
+        compactAll();
+        long usedBytes = measureUsedBytes();
+
+        List<Entry> byAge = new ArrayList<>(mEntries);
+        // Background emulators first, the one in the background the longest first:
+        byAge.sort((a, b) -> (a.foreground != b.foreground) ? (a.foreground ? 1 : -1) : Long.compare(a.lastForegroundTime, b.lastForegroundTime));
+        for (Entry entry : byAge) {
+            TerminalEmulator emulator = entry.emulator;
+            int minRows = (entry.foreground && !trimForegroundFully) ? MIN_FOREGROUND_HISTORY_ROWS : 0;
+            boolean trimmed = false;
+            int historyRows;
+            while (usedBytes > targetBytes && (historyRows = emulator.getHistoryRows()) > minRows) {
+                // Drop as many rows as needed at the average size of a row of this emulator, then measure what was
+                // freed. The screen rows make the average too high, so this is repeated until enough is freed:
+                long entryBytes = entry.measuredBytes;
+                long rowsToDrop = (usedBytes - targetBytes + entry.bytesPerRow - 1) / entry.bytesPerRow;
+                emulator.trimHistory((int) Math.max(minRows, historyRows - rowsToDrop));
+                usedBytes -= entryBytes - entry.measure();
+                trimmed = true;
+            }
+            if (trimmed && entry.onHistoryTrimmed != null) entry.onHistoryTrimmed.run();
+        }
+    }
+
+    /** Free what can be freed without losing history: compact it, and release alternate buffers not in use. */
+    public void compactAll() {
+        for (Entry entry : mEntries) {
+            entry.emulator.compactHistory();
+            entry.emulator.releaseAlternateBuffer();
+        }
+    }
+
+    private Entry findEntry(TerminalEmulator emulator) {
+        for (Entry entry : mEntries)
+            if (entry.emulator == emulator) return entry;
+        return null;
+    }
+
+}
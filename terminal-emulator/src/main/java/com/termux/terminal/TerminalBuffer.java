@@ -1,12 +1,23 @@
 package com.termux.terminal;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
  * history.
  * <p>
  * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices.
+ * <p>
+ * Blank lines are not allocated: they reference a shared, immutable blank row per style (see {@link #getBlankRow(long)})
+ * until first written to, at which point {@link #allocateFullLineIfNecessary(int)} takes a row from a small pool of
+ * recycled rows or allocates a new one. In the same way, history lines with the same content share one row, see
+ * {@link #internHistoryRow(int)}.
  */
 public final class TerminalBuffer {
 
@@ -20,6 +31,71 @@ public final class TerminalBuffer {
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
 
+    /** The max number of styles for which a shared blank row is cached in {@link #mBlankRows}. */
+    private static final int MAX_BLANK_ROW_STYLES = 8;
+    /** Shared blank rows, with the style of each in {@link #mBlankRowStyles}. Replaced round-robin when full. */
+    private final TerminalRow[] mBlankRows = new TerminalRow[MAX_BLANK_ROW_STYLES];
+    private final long[] mBlankRowStyles = new long[MAX_BLANK_ROW_STYLES];
+    private int mBlankRowsUsed, mNextBlankRowToReplace;
+    /** Rows no longer referenced from {@link #mLines}, reused by {@link #allocateFullLineIfNecessary(int)}. */
+    private final ArrayDeque<TerminalRow> mRowPool = new ArrayDeque<>();
+
+    /** Stamps of calls to {@link #getMemoryUsage()}, see {@link TerminalRow#mMemoryUsageStamp}. */
+    private static final AtomicInteger sMemoryUsageStamps = new AtomicInteger();
+
+    /** The number of slots in {@link #mInternedRows}, a power of two. */
+    private static final int INTERNED_ROWS = 256;
+    /**
+     * Recent history rows by the slot of their {@link TerminalRow#contentHashCode()}, which is kept in
+     * {@link #mInternedRowHashes}. A row scrolling into the history with the same content as one here is replaced by it,
+     * see {@link #internHistoryRow(int)}.
+     */
+    private final TerminalRow[] mInternedRows = new TerminalRow[INTERNED_ROWS];
+    private final int[] mInternedRowHashes = new int[INTERNED_ROWS];
+
+    /**
+     * History rows not yet reflowed after a change of columns, oldest first and each with the number of columns it was
+     * written with. See {@link #reflowPendingHistory(int)}.
+     */
+    private TerminalRow[] mPendingReflowRows;
+    /** The number of rows at the start of {@link #mPendingReflowRows} which are still to be reflowed. */
+    private int mPendingReflowRowCount;
+    /** The style of the blank cells of rows created when reflowing {@link #mPendingReflowRows}. */
+    private long mPendingReflowStyle;
+    /** If history is left to {@link #reflowPendingHistory(int)} on a change of columns. Turned off by tests to compare. */
+    boolean mDeferReflow = true;
+
+    /** The number of rows scrolled into the history so far, see {@link #getScrollCount()}. */
+    private long mScrollCount;
+    /**
+     * In a buffer, the number of the last releasable snapshot taken of it. In a releasable snapshot, its number, which
+     * the rows only it shares have as {@link TerminalRow#mSnapshotGeneration}, or 0 once released.
+     */
+    private int mSnapshotGeneration;
+    /**
+     * Incremented when rows in the history may have changed or moved other than by scrolling, which invalidates what
+     * {@link TranscriptSearch} has cached about them.
+     */
+    int mLayoutGeneration;
+    private TranscriptSearch mTranscriptSearch;
+    private final CommandMarks mCommandMarks = new CommandMarks(this);
+    /** The marks on {@link #mPendingReflowRows}, in row order and with the index there as row. */
+    private ArrayList<CommandMarks.Mark> mPendingReflowMarks;
+
+    /**
+     * The rows written to since {@link #clearDirtyRows()}, by their {@link #getScrollCount()} number less
+     * {@link #mDirtyFirstRow}, so that a row keeps its bit as the screen scrolls. See {@link #isRowDirty(int)}.
+     */
+    private final BitSet mDirtyRows = new BitSet();
+    /** The scroll count when {@link #clearDirtyRows()} was last called. */
+    private long mDirtyFirstRow;
+    /** The {@link #mLayoutGeneration} when {@link #clearDirtyRows()} was last called. */
+    private int mDirtyLayoutGeneration;
+    /** If all rows are to be considered dirty, as before the first {@link #clearDirtyRows()}. */
+    private boolean mAllRowsDirty = true;
+    /** The grapheme clusters held by the rows, shared with the other buffer of the emulator and with snapshots. */
+    private final GraphemeClusters mClusters;
+
     /**
      * Create a transcript screen.
      *
@@ -29,6 +105,12 @@ public final class TerminalBuffer {
      *                   the top of the screen.
      */
     public TerminalBuffer(int columns, int totalRows, int screenRows) {
+        this(columns, totalRows, screenRows, new GraphemeClusters());
+    }
+
+    /** Create a transcript screen holding the grapheme clusters of a table shared with other buffers of an emulator. */
+    TerminalBuffer(int columns, int totalRows, int screenRows, GraphemeClusters clusters) {
+        mClusters = clusters;
         mColumns = columns;
         mTotalRows = totalRows;
         mScreenRows = screenRows;
@@ -37,16 +119,186 @@ public final class TerminalBuffer {
         blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
     }
 
+    /** Create a snapshot of rows of another buffer, see {@link #snapshot(int, int, boolean)}. */
+    private TerminalBuffer(TerminalBuffer source, int firstRow, int lastRow, boolean releasable) {
+        mClusters = source.mClusters;
+        mColumns = source.mColumns;
+        mScreenRows = source.mScreenRows;
+        mActiveTranscriptRows = Math.max(0, -firstRow);
+        mTotalRows = mActiveTranscriptRows + mScreenRows;
+        mScreenFirstRow = mActiveTranscriptRows;
+        mScrollCount = source.mScrollCount;
+        if (releasable) mSnapshotGeneration = ++source.mSnapshotGeneration;
+        mLines = new TerminalRow[mTotalRows];
+        // Blank rows as read from null lines by getLineForReading(), but taken from the source so that reading the
+        // snapshot never creates them:
+        Arrays.fill(mLines, source.getBlankRow(0));
+        for (int row = firstRow; row <= lastRow; row++) {
+            TerminalRow line = source.mLines[source.externalToInternalRow(row)];
+            if (line == null) continue;
+            // The source copies the row before writing to it again, see allocateFullLineIfNecessary(). Only a row which
+            // nothing else shares can be handed back by releaseSnapshot():
+            line.mSnapshotGeneration = (releasable && !line.mShared) ? mSnapshotGeneration : 0;
+            line.mShared = true;
+            mLines[externalToInternalRow(row)] = line;
+        }
+    }
+
     public String getTranscriptText() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
+        return getTranscriptText(true, false);
     }
 
     public String getTranscriptTextWithoutJoinedLines() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, false).trim();
+        return getTranscriptText(false, false);
     }
 
     public String getTranscriptTextWithFullLinesJoined() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, true, true).trim();
+        return getTranscriptText(true, true);
+    }
+
+    private String getTranscriptText(boolean joinBackLines, boolean joinFullLines) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            writeTranscript(builder, Integer.MIN_VALUE, Integer.MAX_VALUE, joinBackLines, joinFullLines);
+        } catch (IOException e) {
+            // Not thrown by StringBuilder.
+            throw new RuntimeException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write the text of the rows {@code [firstRow, lastRow]} of the transcript and screen, with leading and trailing
+     * whitespace trimmed, as {@link #getTranscriptText()} and its variants return it for all rows. The text is written
+     * row by row without building it in memory, so large transcripts can be streamed to a file.
+     *
+     * @param firstRow The first external row, clamped to the oldest row in the transcript.
+     * @param lastRow  The last external row, clamped to the last screen row.
+     */
+    public void writeTranscript(Appendable out, int firstRow, int lastRow, boolean joinBackLines, boolean joinFullLines) throws IOException {
+        reflowPendingHistory(Integer.MAX_VALUE);
+        firstRow = Math.max(firstRow, -getActiveTranscriptRows());
+        lastRow = Math.min(lastRow, mScreenRows - 1);
+        if (firstRow > lastRow) return;
+        writeSelectedText(new TrimmingWriter(out), 0, firstRow, mColumns, lastRow, joinBackLines, joinFullLines);
+    }
+
+    /**
+     * Take an immutable snapshot of the rows {@code [firstRow, lastRow]}, which may then be read from another thread
+     * while this buffer keeps changing. Rows are not copied: they are marked {@link TerminalRow#mShared}, so this buffer
+     * replaces them with a copy before writing to them again.
+     * <p>
+     * The snapshot is a buffer with the same columns, screen rows and row numbers as this one, where rows outside of the
+     * range are blank and the history starts at {@code firstRow}. It must only be read, and by one thread at a time.
+     * Command marks are not included.
+     *
+     * @param firstRow The first external row, clamped to the oldest row in the transcript.
+     * @param lastRow  The last external row, clamped to the last screen row.
+     */
+    public TerminalBuffer snapshot(int firstRow, int lastRow) {
+        return snapshot(firstRow, lastRow, false);
+    }
+
+    /**
+     * Take a snapshot as by {@link #snapshot(int, int)}, which if releasable is to be handed back with
+     * {@link #releaseSnapshot(TerminalBuffer)} once no longer read. This is for snapshots taken over and over, as of each
+     * frame drawn on another thread, whose rows would otherwise stay shared and be copied on every write after.
+     */
+    public TerminalBuffer snapshot(int firstRow, int lastRow, boolean releasable) {
+        if (firstRow < -mActiveTranscriptRows) reflowPendingHistory(Integer.MAX_VALUE);
+        firstRow = Math.max(firstRow, -mActiveTranscriptRows);
+        lastRow = Math.min(lastRow, mScreenRows - 1);
+        return new TerminalBuffer(this, firstRow, lastRow, releasable);
+    }
+
+    /**
+     * Hand back a releasable snapshot of this buffer which is no longer read, see {@link #snapshot(int, int, boolean)}.
+     * Rows shared by nothing but the snapshot are no longer shared, so they are written to in place again, and reused
+     * once dropped. Rows this buffer copied while the snapshot was read are left to the garbage collector.
+     */
+    public void releaseSnapshot(TerminalBuffer snapshot) {
+        final int generation = snapshot.mSnapshotGeneration;
+        if (generation == 0) return;
+        for (TerminalRow line : snapshot.mLines) {
+            if (line.mSnapshotGeneration == generation) {
+                line.mSnapshotGeneration = 0;
+                line.mShared = false;
+            }
+        }
+        snapshot.mSnapshotGeneration = 0;
+    }
+
+    /** The table of the grapheme clusters held by the rows, to expand them with {@link GraphemeClusters#getChars(int)}. */
+    public GraphemeClusters getGraphemeClusters() {
+        return mClusters;
+    }
+
+    /**
+     * The number of times the screen has scrolled up one row. Adding it to an external row gives a number for the row
+     * which does not change when the screen scrolls, as long as the layout is not changed by a resize.
+     */
+    public long getScrollCount() {
+        return mScrollCount;
+    }
+
+    /**
+     * If the content of an external row may differ from what the same row, as numbered by {@link #getScrollCount()},
+     * held when {@link #clearDirtyRows()} was last called. This lets a view draw again only the rows which changed since
+     * its last frame, wherever scrolling has moved them. Rows which were in the history then are not dirty, as history is
+     * not written to, unless {@link #areAllRowsDirty()}.
+     */
+    public boolean isRowDirty(int row) {
+        if (areAllRowsDirty()) return true;
+        long index = mScrollCount + row - mDirtyFirstRow;
+        return index >= 0 && mDirtyRows.get((int) index);
+    }
+
+    /** If all rows are dirty, as after a resize or after more output than the bits are kept for. */
+    public boolean areAllRowsDirty() {
+        return mAllRowsDirty || mDirtyLayoutGeneration != mLayoutGeneration;
+    }
+
+    /** The number of rows the screen has scrolled up since {@link #clearDirtyRows()}. */
+    public int getDirtyScrollRows() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mScrollCount - mDirtyFirstRow));
+    }
+
+    /** Note that the rows as they are now have been drawn, see {@link #isRowDirty(int)}. */
+    public void clearDirtyRows() {
+        mDirtyRows.clear();
+        mDirtyFirstRow = mScrollCount;
+        mDirtyLayoutGeneration = mLayoutGeneration;
+        mAllRowsDirty = false;
+    }
+
+    /** Mark all rows as dirty, as when something changed how they are drawn. */
+    void markAllRowsDirty() {
+        mAllRowsDirty = true;
+        mDirtyRows.clear();
+    }
+
+    /** Mark the external rows {@code [firstRow, endRow)} as dirty, see {@link #isRowDirty(int)}. */
+    private void markRowsDirty(int firstRow, int endRow) {
+        if (firstRow >= endRow || areAllRowsDirty()) return;
+        long first = mScrollCount + firstRow - mDirtyFirstRow;
+        long end = first + (endRow - firstRow);
+        if (first < 0 || end > mTotalRows) {
+            // Rows written to far away from where the bits start, which they cannot tell apart from all rows:
+            markAllRowsDirty();
+        } else {
+            mDirtyRows.set((int) first, (int) end);
+        }
+    }
+
+    /** The shell commands marked in this buffer, see {@link CommandMarks}. */
+    public CommandMarks getCommandMarks() {
+        return mCommandMarks;
+    }
+
+    /** Get the {@link TranscriptSearch} for this buffer, created on first use. */
+    public TranscriptSearch getTranscriptSearch() {
+        if (mTranscriptSearch == null) mTranscriptSearch = new TranscriptSearch(this);
+        return mTranscriptSearch;
     }
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
@@ -59,6 +311,17 @@ public final class TerminalBuffer {
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines, boolean joinFullLines) {
         final StringBuilder builder = new StringBuilder();
+        try {
+            writeSelectedText(builder, selX1, selY1, selX2, selY2, joinBackLines, joinFullLines);
+        } catch (IOException e) {
+            // Not thrown by StringBuilder.
+            throw new RuntimeException(e);
+        }
+        return builder.toString();
+    }
+
+    /** Write what {@link #getSelectedText(int, int, int, int, boolean, boolean)} returns, row by row. */
+    public void writeSelectedText(Appendable builder, int selX1, int selY1, int selX2, int selY2, boolean joinBackLines, boolean joinFullLines) throws IOException {
         final int columns = mColumns;
 
         if (selY1 < -getActiveTranscriptRows()) selY1 = -getActiveTranscriptRows();
@@ -73,7 +336,7 @@ public final class TerminalBuffer {
             } else {
                 x2 = columns;
             }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
+            TerminalRow lineObject = getLineForReading(externalToInternalRow(row));
             int x1Index = lineObject.findStartOfColumn(x1);
             int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
             if (x2Index == x1Index) {
@@ -96,25 +359,112 @@ public final class TerminalBuffer {
 
             int len = lastPrintingCharIndex - x1Index + 1;
             if (lastPrintingCharIndex != -1 && len > 0)
-                builder.append(line, x1Index, len);
+                appendChars(builder, line, x1Index, len);
 
             boolean lineFillsWidth = lastPrintingCharIndex == x2Index - 1;
             if ((!joinBackLines || !rowLineWrap) && (!joinFullLines || !lineFillsWidth)
                 && row < selY2 && row < mScreenRows - 1) builder.append('\n');
         }
-        return builder.toString();
+    }
+
+    /**
+     * Append characters without wrapping them in a {@link CharSequence} for the common kinds of output, with the text of
+     * the {@link GraphemeClusters} they contain instead of their ids.
+     */
+    private void appendChars(Appendable out, char[] text, int start, int length) throws IOException {
+        int end = start + length;
+        for (int i = start; i < end - 1; i++) {
+            if (GraphemeClusters.isClusterHighSurrogate(text[i])) {
+                appendCharsAsIs(out, text, start, i - start);
+                char[] cluster = mClusters.getChars(Character.toCodePoint(text[i], text[i + 1]));
+                appendCharsAsIs(out, cluster, 0, cluster.length);
+                start = i + 2;
+                i++;
+            }
+        }
+        appendCharsAsIs(out, text, start, end - start);
+    }
+
+    private static void appendCharsAsIs(Appendable out, char[] text, int start, int length) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(text, start, length);
+        } else if (out instanceof Writer) {
+            ((Writer) out).write(text, start, length);
+        } else {
+            for (int i = start; i < start + length; i++) out.append(text[i]);
+        }
+    }
+
+    /** Drops leading and trailing whitespace, as {@link String#trim()} does, while writing through to the output. */
+    private static final class TrimmingWriter extends Writer {
+        private final Appendable mOut;
+        private boolean mStarted;
+        /** Whitespace which is only written if followed by something else. */
+        private char[] mPendingWhitespace = new char[64];
+        private int mPendingWhitespaceLength;
+
+        TrimmingWriter(Appendable out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(char[] text, int start, int length) throws IOException {
+            int end = start + length;
+            if (!mStarted) {
+                while (start < end && text[start] <= ' ') start++;
+                if (start == end) return;
+                mStarted = true;
+            }
+            int last = end - 1;
+            while (last >= start && text[last] <= ' ') last--;
+            if (last >= start) {
+                appendCharsAsIs(mOut, mPendingWhitespace, 0, mPendingWhitespaceLength);
+                mPendingWhitespaceLength = 0;
+                appendCharsAsIs(mOut, text, start, last + 1 - start);
+            }
+            int whitespaceLength = end - last - 1;
+            if (mPendingWhitespaceLength + whitespaceLength > mPendingWhitespace.length)
+                mPendingWhitespace = Arrays.copyOf(mPendingWhitespace, 2 * (mPendingWhitespaceLength + whitespaceLength));
+            System.arraycopy(text, last + 1, mPendingWhitespace, mPendingWhitespaceLength, whitespaceLength);
+            mPendingWhitespaceLength += whitespaceLength;
+        }
+
+        @Override
+        public Writer append(char c) throws IOException {
+            // Skip the locking and copying of Writer.write(int) for the newline after each row:
+            if (c <= ' ') {
+                if (mStarted) {
+                    if (mPendingWhitespaceLength == mPendingWhitespace.length)
+                        mPendingWhitespace = Arrays.copyOf(mPendingWhitespace, 2 * mPendingWhitespaceLength);
+                    mPendingWhitespace[mPendingWhitespaceLength++] = c;
+                }
+            } else {
+                write(c);
+            }
+            return this;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mOut instanceof Writer) ((Writer) mOut).flush();
+        }
+
+        @Override
+        public void close() {
+        }
     }
 
     public String getWordAtLocation(int x, int y) {
         // Set y1 and y2 to the lines where the wrapped line starts and ends.
         // I.e. if a line that is wrapped to 3 lines starts at line 4, and this
         // is called with y=5, then y1 would be set to 4 and y2 would be set to 6.
+        // Rows filling the width are joined as well, as getSelectedText() does with joinFullLines.
         int y1 = y;
         int y2 = y;
-        while (y1 > 0 && !getSelectedText(0, y1 - 1, mColumns, y, true, true).contains("\n")) {
+        while (y1 > 0 && isJoinedWithNextRow(y1 - 1)) {
             y1--;
         }
-        while (y2 < mScreenRows && !getSelectedText(0, y, mColumns, y2 + 1, true, true).contains("\n")) {
+        while (y2 < mScreenRows && isJoinedWithNextRow(y2)) {
             y2++;
         }
 
@@ -144,6 +494,97 @@ public final class TerminalBuffer {
         return text.substring(x1 + 1, x2);
     }
 
+    /**
+     * If {@link #getSelectedText(int, int, int, int, boolean, boolean)} with both lines joined does not put a newline
+     * after a row, which is when it is wrapped or its last cell is not blank.
+     */
+    private boolean isJoinedWithNextRow(int row) {
+        if (row >= mScreenRows - 1) return false;
+        TerminalRow line = getLineForReading(externalToInternalRow(row));
+        int spaceUsed = line.getSpaceUsed();
+        return line.mLineWrap || spaceUsed == 0 || line.mText[spaceUsed - 1] != ' ';
+    }
+
+    /**
+     * Expand from a column to the left and right over cells which are not blank, meaning that
+     * {@link #getSelectedText(int, int, int, int)} of the single cell is not empty. Done in a single pass over the row.
+     *
+     * @return The first and last column, inclusive.
+     */
+    public int[] getNonBlankColumnRange(int column, int row) {
+        TerminalRow line = getLineForReading(externalToInternalRow(row));
+        boolean[] nonBlank = new boolean[mColumns];
+        int currentColumn = 0;
+        for (int i = 0; i < line.getSpaceUsed() && currentColumn < mColumns; ) {
+            char c = line.mText[i++];
+            int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, line.mText[i++]) : c;
+            int width = WcWidth.width(codePoint);
+            if (width <= 0) continue;
+            for (int j = currentColumn; j < currentColumn + width && j < mColumns; j++) nonBlank[j] = c != ' ';
+            currentColumn += width;
+        }
+        // Trailing space is kept in the text of wrapped rows:
+        if (line.mLineWrap) nonBlank[mColumns - 1] = true;
+
+        int first = column, last = column;
+        while (first > 0 && nonBlank[first - 1]) first--;
+        while (last < mColumns - 1 && nonBlank[last + 1]) last++;
+        return new int[]{first, last};
+    }
+
+    /** The first row of the logical line, consisting of rows joined by line wrapping, which the given row is part of. */
+    public int getLogicalLineStart(int row) {
+        final int topRow = -mActiveTranscriptRows;
+        while (row > topRow && getLineWrap(row - 1)) row--;
+        return row;
+    }
+
+    /** The last row of the logical line, consisting of rows joined by line wrapping, which the given row is part of. */
+    public int getLogicalLineEnd(int row) {
+        while (row < mScreenRows - 1 && getLineWrap(row)) row++;
+        return row;
+    }
+
+    /**
+     * The external row shown after a row, which is the next row unless that is in the output of a folded command in the
+     * history, see {@link CommandMarks#setFolded(CommandMarks.Command, boolean)}. Folded output is skipped at once
+     * however long it is. Screen rows are always shown.
+     */
+    public int nextShownRow(int row) {
+        int next = row + 1;
+        if (next >= 0) return next;
+        int range = mCommandMarks.foldedRangeContaining(mScrollCount + next);
+        return (range < 0) ? next : (int) Math.min(0, mCommandMarks.getFoldedRangeEnd(range) + 1 - mScrollCount);
+    }
+
+    /**
+     * The external row shown before a row, see {@link #nextShownRow(int)}. This is above the history if all rows above
+     * are folded.
+     */
+    public int previousShownRow(int row) {
+        int previous = row - 1;
+        if (previous >= 0) return previous;
+        int range = mCommandMarks.foldedRangeContaining(mScrollCount + previous);
+        return (range < 0) ? previous : (int) (mCommandMarks.getFoldedRangeStart(range) - 1 - mScrollCount);
+    }
+
+    /** The row itself if shown, or else the first row shown after the folded output it is in. */
+    public int toShownRow(int row) {
+        if (row >= 0) return row;
+        int range = mCommandMarks.foldedRangeContaining(mScrollCount + row);
+        return (range < 0) ? row : (int) Math.min(0, mCommandMarks.getFoldedRangeEnd(range) + 1 - mScrollCount);
+    }
+
+    /** The number of shown rows in {@code [firstRow, endRow)}, see {@link #nextShownRow(int)}. */
+    public int getShownRowCount(int firstRow, int endRow) {
+        if (endRow <= firstRow) return 0;
+        int count = endRow - firstRow;
+        int lastHistoryRow = Math.min(endRow, 0) - 1;
+        if (lastHistoryRow >= firstRow)
+            count -= (int) mCommandMarks.countFoldedRows(mScrollCount + firstRow, mScrollCount + lastHistoryRow);
+        return count;
+    }
+
     public int getActiveTranscriptRows() {
         return mActiveTranscriptRows;
     }
@@ -181,26 +622,34 @@ public final class TerminalBuffer {
     }
 
     public void setLineWrap(int row) {
-        mLines[externalToInternalRow(row)].mLineWrap = true;
+        int internalRow = externalToInternalRow(row);
+        TerminalRow line = mLines[internalRow];
+        if (line == null || !line.mLineWrap) allocateFullLineIfNecessary(internalRow).mLineWrap = true;
     }
 
     public boolean getLineWrap(int row) {
-        return mLines[externalToInternalRow(row)].mLineWrap;
+        return getLineForReading(externalToInternalRow(row)).mLineWrap;
     }
 
     public void clearLineWrap(int row) {
-        mLines[externalToInternalRow(row)].mLineWrap = false;
+        int internalRow = externalToInternalRow(row);
+        TerminalRow line = mLines[internalRow];
+        if (line != null && line.mLineWrap) allocateFullLineIfNecessary(internalRow).mLineWrap = false;
     }
 
     /**
      * Resize the screen which this transcript backs. Currently, this only works if the number of columns does not
      * change or the rows expand (that is, it only works when shrinking the number of rows).
+     * <p>
+     * When the number of columns changes only the logical lines needed to fill the new screen are reflowed here. Older
+     * history is kept as it is and reflowed later by {@link #reflowPendingHistory(int)}, giving the same result.
      *
      * @param newColumns The number of columns the screen should have.
      * @param newRows    The number of rows the screen should have.
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        mLayoutGeneration++;
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
@@ -215,36 +664,84 @@ public final class TerminalBuffer {
                     }
                 }
             } else if (shiftDownOfTopRow < 0) {
-                // Negative shift down = expanding. Only move screen up if there is transcript to show:
+                // Negative shift down = expanding. Only move screen up if there is transcript to show, including history
+                // still to be reflowed after an earlier change of columns, as if it had been reflowed then:
+                reflowPendingHistory(-shiftDownOfTopRow);
                 int actualShift = Math.max(shiftDownOfTopRow, -mActiveTranscriptRows);
                 if (shiftDownOfTopRow != actualShift) {
                     // The new lines revealed by the resizing are not all from the transcript. Blank the below ones.
                     for (int i = 0; i < actualShift - shiftDownOfTopRow; i++)
-                        allocateFullLineIfNecessary((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle);
+                        setBlankLine((mScreenFirstRow + mScreenRows + i) % mTotalRows, currentStyle);
                     shiftDownOfTopRow = actualShift;
                 }
             }
             mScreenFirstRow += shiftDownOfTopRow;
             mScreenFirstRow = (mScreenFirstRow < 0) ? (mScreenFirstRow + mTotalRows) : (mScreenFirstRow % mTotalRows);
+            // Keep the numbers from getScrollCount() for the rows, which all moved by the same amount:
+            mScrollCount += shiftDownOfTopRow;
             mTotalRows = newTotalRows;
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
             cursor[1] -= shiftDownOfTopRow;
             mScreenRows = newRows;
         } else {
+            // Reflowing twice does not always give the same result as reflowing once, so finish an earlier resize first:
+            reflowPendingHistory(Integer.MAX_VALUE);
+
             // Copy away old state and update new:
             TerminalRow[] oldLines = mLines;
             mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
-                mLines[i] = new TerminalRow(newColumns, currentStyle);
 
             final int oldActiveTranscriptRows = mActiveTranscriptRows;
             final int oldScreenFirstRow = mScreenFirstRow;
             final int oldScreenRows = mScreenRows;
             final int oldTotalRows = mTotalRows;
+
+            // Find the first row to reflow now. It must start a chunk for reflowRows() and leave more than newRows
+            // lines ending in a newline below it, so that those alone fill the new screen and scroll into the history:
+            int firstReflowedOldRow = -oldActiveTranscriptRows;
+            int newlinesBelow = 0;
+            for (int externalOldRow = oldScreenRows - 1; mDeferReflow && externalOldRow > -oldActiveTranscriptRows; externalOldRow--) {
+                if (isEndOfReflowChunk(oldLines[oldInternalRow(externalOldRow, oldScreenFirstRow, oldTotalRows)])) newlinesBelow++;
+                if (externalOldRow <= 0 && newlinesBelow > newRows
+                    && isEndOfReflowChunk(oldLines[oldInternalRow(externalOldRow - 1, oldScreenFirstRow, oldTotalRows)])) {
+                    firstReflowedOldRow = externalOldRow;
+                    break;
+                }
+            }
+            int deferredRows = firstReflowedOldRow + oldActiveTranscriptRows;
+            if (deferredRows > 0) {
+                mPendingReflowRows = new TerminalRow[deferredRows];
+                for (int i = 0; i < deferredRows; i++)
+                    mPendingReflowRows[i] = oldLines[oldInternalRow(i - oldActiveTranscriptRows, oldScreenFirstRow, oldTotalRows)];
+                mPendingReflowRowCount = deferredRows;
+                mPendingReflowStyle = currentStyle;
+            }
+
+            // Marks are moved with the text, see moveMarks(). Those on the deferred rows are moved when reflowed:
+            mCommandMarks.prune();
+            final long oldScrollCount = mScrollCount;
+            final ArrayList<CommandMarks.Mark> marks = mCommandMarks.getMarksInOrder();
+            int nextMark = 0;
+            while (nextMark < marks.size() && marks.get(nextMark).mRow - oldScrollCount < firstReflowedOldRow) {
+                CommandMarks.Mark mark = marks.get(nextMark++);
+                mark.mRow += oldActiveTranscriptRows - oldScrollCount;
+                mark.mPending = true;
+                if (mPendingReflowMarks == null) mPendingReflowMarks = new ArrayList<>();
+                mPendingReflowMarks.add(mark);
+            }
             mTotalRows = newTotalRows;
             mScreenRows = newRows;
             mActiveTranscriptRows = mScreenFirstRow = 0;
-            mColumns = newColumns;
+            if (mColumns != newColumns) {
+                // Pooled, shared blank and interned rows have the old number of columns:
+                mColumns = newColumns;
+                mRowPool.clear();
+                mBlankRowsUsed = mNextBlankRowToReplace = 0;
+                Arrays.fill(mBlankRows, null);
+                Arrays.fill(mInternedRows, null);
+            }
+            // The new lines are not allocated until written to:
+            Arrays.fill(mLines, getBlankRow(currentStyle));
 
             int newCursorRow = -1;
             int newCursorColumn = -1;
@@ -259,21 +756,20 @@ public final class TerminalBuffer {
             // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
             // keep track how many blank lines we have skipped if we later on find a non-blank line.
             int skippedBlankLines = 0;
-            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
-                // Do what externalToInternalRow() does but for the old state:
-                int internalOldRow = oldScreenFirstRow + externalOldRow;
-                internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
-
-                TerminalRow oldLine = oldLines[internalOldRow];
+            for (int externalOldRow = firstReflowedOldRow; externalOldRow < oldScreenRows; externalOldRow++) {
+                TerminalRow oldLine = oldLines[oldInternalRow(externalOldRow, oldScreenFirstRow, oldTotalRows)];
                 boolean cursorAtThisRow = externalOldRow == oldCursorRow;
                 // The cursor may only be on a non-null line, which we should not skip:
                 if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                    nextMark = moveMarks(marks, nextMark, oldScrollCount + externalOldRow, Integer.MAX_VALUE,
+                        mScrollCount + currentOutputExternalRow + skippedBlankLines, 0);
                     skippedBlankLines++;
                     continue;
                 } else if (skippedBlankLines > 0) {
                     // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
                     for (int i = 0; i < skippedBlankLines; i++) {
                         if (currentOutputExternalRow == mScreenRows - 1) {
+                            if (newCursorPlaced) newCursorRow--;
                             scrollDownOneLine(0, mScreenRows, currentStyle);
                         } else {
                             currentOutputExternalRow++;
@@ -318,6 +814,10 @@ public final class TerminalBuffer {
                         currentOutputExternalColumn = 0;
                     }
 
+                    if (displayWidth > 0)
+                        nextMark = moveMarks(marks, nextMark, oldScrollCount + externalOldRow, currentOldCol,
+                            mScrollCount + currentOutputExternalRow, currentOutputExternalColumn);
+
                     int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
                     int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
                     setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
@@ -333,6 +833,8 @@ public final class TerminalBuffer {
                         if (justToCursor && newCursorPlaced) break;
                     }
                 }
+                nextMark = moveMarks(marks, nextMark, oldScrollCount + externalOldRow, Integer.MAX_VALUE,
+                    mScrollCount + currentOutputExternalRow, currentOutputExternalColumn);
                 // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
                 if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
                     if (currentOutputExternalRow == mScreenRows - 1) {
@@ -347,12 +849,199 @@ public final class TerminalBuffer {
 
             cursor[0] = newCursorColumn;
             cursor[1] = newCursorRow;
+
+            // Marks on blank rows at the bottom, which are not copied, end up on the last row:
+            for (CommandMarks.Mark mark : marks) {
+                if (!mark.mPending && mark.mRow > mScrollCount + mScreenRows - 1) {
+                    mark.mRow = mScrollCount + mScreenRows - 1;
+                    mark.mColumn = 0;
+                }
+            }
         }
 
         // Handle cursor scrolling off screen:
         if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
     }
 
+    /**
+     * Move the marks from index {@code next}, which are on {@code oldRow} at or before {@code oldColumn}, to a new
+     * position. Reflowing visits rows and columns in order, so the marks to move next are always first.
+     *
+     * @return The index of the next mark to move.
+     */
+    private static int moveMarks(ArrayList<CommandMarks.Mark> marks, int next, long oldRow, int oldColumn, long newRow, int newColumn) {
+        while (next < marks.size()) {
+            CommandMarks.Mark mark = marks.get(next);
+            if (mark.mRow > oldRow || (mark.mRow == oldRow && mark.mColumn > oldColumn)) break;
+            mark.mRow = newRow;
+            mark.mColumn = newColumn;
+            next++;
+        }
+        return next;
+    }
+
+    /** Do what {@link #externalToInternalRow(int)} does but for the state before a resize. */
+    private static int oldInternalRow(int externalOldRow, int oldScreenFirstRow, int oldTotalRows) {
+        int internalOldRow = oldScreenFirstRow + externalOldRow;
+        return (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
+    }
+
+    /**
+     * If reflowing a row is always followed by a newline, so that reflowing the rows after it starts from a clean state
+     * (first column of a new row, no skipped blank lines) and does not depend on the rows before it.
+     */
+    private static boolean isEndOfReflowChunk(TerminalRow row) {
+        return row != null && !row.mLineWrap && !row.isBlank();
+    }
+
+    /** If there is history left to be reflowed by {@link #reflowPendingHistory(int)}. */
+    public boolean hasPendingReflow() {
+        return mPendingReflowRowCount > 0;
+    }
+
+    /**
+     * Reflow history left over from the last change of columns in {@link #resize(int, int, int, int[], long, boolean)},
+     * newest first, adding the reflowed rows to the top of the transcript. External row numbers of rows already in the
+     * transcript are not changed by this.
+     *
+     * @param maxRows Stop when at least this many rows have been added.
+     * @return The number of rows added to the transcript.
+     */
+    public int reflowPendingHistory(int maxRows) {
+        int addedRows = 0;
+        while (mPendingReflowRowCount > 0 && addedRows < maxRows) {
+            final int end = mPendingReflowRowCount;
+            int start = end - 1;
+            while (start > 0 && !isEndOfReflowChunk(mPendingReflowRows[start - 1])) start--;
+
+            ArrayList<CommandMarks.Mark> marks = new ArrayList<>();
+            while (mPendingReflowMarks != null && !mPendingReflowMarks.isEmpty()
+                && mPendingReflowMarks.get(mPendingReflowMarks.size() - 1).mRow >= start) {
+                marks.add(0, mPendingReflowMarks.remove(mPendingReflowMarks.size() - 1));
+            }
+
+            ArrayList<TerminalRow> reflowedRows = reflowRows(mPendingReflowRows, start, end, mPendingReflowStyle, marks);
+            Arrays.fill(mPendingReflowRows, start, end, null);
+            mPendingReflowRowCount = start;
+
+            // The marks now have an index in reflowedRows as row:
+            long firstRow = mScrollCount - mActiveTranscriptRows - reflowedRows.size();
+            for (CommandMarks.Mark mark : marks) {
+                mark.mRow += firstRow;
+                mark.mPending = false;
+            }
+            if (!marks.isEmpty()) mCommandMarks.onMarksMoved();
+
+            for (int i = reflowedRows.size() - 1; i >= 0; i--) {
+                if (mActiveTranscriptRows >= mTotalRows - mScreenRows) {
+                    // No room for older history, which would have been scrolled out of a full reflow as well:
+                    clearPendingReflow();
+                    return addedRows;
+                }
+                mActiveTranscriptRows++;
+                int internalRow = externalToInternalRow(-mActiveTranscriptRows);
+                recycleRow(mLines[internalRow]);
+                mLines[internalRow] = reflowedRows.get(i);
+                internHistoryRow(internalRow);
+                addedRows++;
+            }
+        }
+        if (mPendingReflowRowCount == 0) mPendingReflowRows = null;
+        return addedRows;
+    }
+
+    private void clearPendingReflow() {
+        mPendingReflowRows = null;
+        mPendingReflowRowCount = 0;
+        if (mPendingReflowMarks != null) {
+            // Let the commands of the marks on rows which are dropped be pruned:
+            for (CommandMarks.Mark mark : mPendingReflowMarks) {
+                mark.mRow = Long.MIN_VALUE;
+                mark.mPending = false;
+            }
+            mPendingReflowMarks = null;
+            mCommandMarks.onMarksMoved();
+        }
+    }
+
+    /**
+     * Reflow the rows {@code [start, end)} into rows of the current number of columns, in the same way as the loop in
+     * {@link #resize(int, int, int, int[], long, boolean)} does. The rows must start a chunk and the last one must end it,
+     * see {@link #isEndOfReflowChunk(TerminalRow)}. The marks on the rows are moved to the index of their new row in the
+     * returned list.
+     */
+    private ArrayList<TerminalRow> reflowRows(TerminalRow[] rows, int start, int end, long style, ArrayList<CommandMarks.Mark> marks) {
+        final ArrayList<TerminalRow> output = new ArrayList<>();
+        int currentOutputRow = 0;
+        int currentOutputColumn = 0;
+        int skippedBlankLines = 0;
+        int nextMark = 0;
+        for (int oldRow = start; oldRow < end; oldRow++) {
+            TerminalRow oldLine = rows[oldRow];
+            if (oldLine == null || oldLine.isBlank()) {
+                nextMark = moveMarks(marks, nextMark, oldRow, Integer.MAX_VALUE, currentOutputRow + skippedBlankLines, 0);
+                skippedBlankLines++;
+                continue;
+            } else if (skippedBlankLines > 0) {
+                currentOutputRow += skippedBlankLines;
+                currentOutputColumn = 0;
+                skippedBlankLines = 0;
+            }
+
+            int lastNonSpaceIndex = 0;
+            if (oldLine.mLineWrap) {
+                lastNonSpaceIndex = oldLine.getSpaceUsed();
+            } else {
+                for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+                    if (oldLine.mText[i] != ' ') lastNonSpaceIndex = i + 1;
+            }
+
+            int currentOldCol = 0;
+            long styleAtCol = 0;
+            for (int i = 0; i < lastNonSpaceIndex; i++) {
+                char c = oldLine.mText[i];
+                int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+                int displayWidth = WcWidth.width(codePoint);
+                if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+
+                if (currentOutputColumn + displayWidth > mColumns) {
+                    getReflowOutputRow(output, currentOutputRow, style).mLineWrap = true;
+                    currentOutputRow++;
+                    currentOutputColumn = 0;
+                }
+
+                if (displayWidth > 0)
+                    nextMark = moveMarks(marks, nextMark, oldRow, currentOldCol, currentOutputRow, currentOutputColumn);
+
+                int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputColumn > 0) ? 1 : 0);
+                getReflowOutputRow(output, currentOutputRow, style).setChar(currentOutputColumn - offsetDueToCombiningChar, codePoint, styleAtCol);
+
+                if (displayWidth > 0) {
+                    currentOldCol += displayWidth;
+                    currentOutputColumn += displayWidth;
+                }
+            }
+            nextMark = moveMarks(marks, nextMark, oldRow, Integer.MAX_VALUE, currentOutputRow, currentOutputColumn);
+            if (!oldLine.mLineWrap) {
+                currentOutputRow++;
+                currentOutputColumn = 0;
+            }
+        }
+
+        // The last row ended with a newline, so the current output row belongs to the next chunk:
+        while (output.size() < currentOutputRow) output.add(null);
+        for (int i = 0; i < currentOutputRow; i++)
+            if (output.get(i) == null) output.set(i, getBlankRow(style));
+        return output;
+    }
+
+    private TerminalRow getReflowOutputRow(ArrayList<TerminalRow> output, int index, long style) {
+        while (output.size() <= index) output.add(null);
+        TerminalRow row = output.get(index);
+        if (row == null) output.set(index, row = obtainRow(style));
+        return row;
+    }
+
     /**
      * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
      * into account.
@@ -393,18 +1082,52 @@ public final class TerminalBuffer {
 
         // Update the screen location in the ring buffer:
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScrollCount++;
         // Note that the history has grown if not already full:
-        if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
+        if (mActiveTranscriptRows < mTotalRows - mScreenRows) {
+            mActiveTranscriptRows++;
+        } else if (mPendingReflowRows != null) {
+            // Rows not yet reflowed are older than the one just scrolled out of the history:
+            clearPendingReflow();
+        }
+
+        if (mActiveTranscriptRows > 0) internHistoryRow(externalToInternalRow(-1));
 
         // Blank the newly revealed line above the bottom margin:
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
+        setBlankLine(externalToInternalRow(bottomMargin - 1), style);
+        // The rows outside of the margins kept their place on the screen, so their numbers changed. So did that of the
+        // row scrolled into the history below them, which is the top row of the margins instead of the screen:
+        markRowsDirty((topMargin > 0) ? -1 : 0, topMargin);
+        markRowsDirty(bottomMargin - 1, mScreenRows);
+    }
+
+    /**
+     * Share one row between history lines with the same content, as written by progress bars, spinners or repeated
+     * output. A row in the history is no longer written to, so if an earlier row with the same content is still known
+     * it replaces this one, and both are marked {@link TerminalRow#mShared} so that a write copies them. Otherwise this
+     * row is remembered for later rows. Readers see no difference.
+     */
+    private void internHistoryRow(int internalRow) {
+        TerminalRow line = mLines[internalRow];
+        if (line == null) return;
+        int hash = line.contentHashCode();
+        int slot = internedRowSlot(hash);
+        TerminalRow interned = mInternedRows[slot];
+        if (interned != null && interned != line && mInternedRowHashes[slot] == hash && interned.contentEquals(line)) {
+            interned.mShared = true;
+            interned.mSnapshotGeneration = 0;
+            mLines[internalRow] = interned;
+            recycleRow(line);
         } else {
-            mLines[blankRow].clear(style);
+            mInternedRows[slot] = line;
+            mInternedRowHashes[slot] = hash;
         }
     }
 
+    private static int internedRowSlot(int hash) {
+        return (hash ^ (hash >>> 16)) & (INTERNED_ROWS - 1);
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two positions can overlap. All characters
      * of the source and destination must be within the bounds of the screen, or else an InvalidParameterException will
@@ -421,11 +1144,15 @@ public final class TerminalBuffer {
         if (w == 0) return;
         if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows || dx < 0 || dx + w > mColumns || dy < 0 || dy + h > mScreenRows)
             throw new IllegalArgumentException();
+        markRowsDirty(dy, dy + h);
         boolean copyingUp = sy > dy;
         for (int y = 0; y < h; y++) {
             int y2 = copyingUp ? y : (h - (y + 1));
-            TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
-            allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
+            TerminalRow destinationRow = allocateFullLineIfNecessary(externalToInternalRow(dy + y2));
+            // Read the source after allocating, so that copying within a shared row reads the private copy written to,
+            // as it does when the row is not shared:
+            TerminalRow sourceRow = getLineForReading(externalToInternalRow(sy + y2));
+            destinationRow.copyInterval(sourceRow, sx, sx + w, dx);
         }
     }
 
@@ -439,31 +1166,114 @@ public final class TerminalBuffer {
             throw new IllegalArgumentException(
                 "Illegal arguments! blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
         }
-        for (int y = 0; y < h; y++)
+        markRowsDirty(sy, sy + h);
+        final boolean blankingFullLines = val == ' ' && sx == 0 && w == mColumns;
+        for (int y = 0; y < h; y++) {
+            if (blankingFullLines) {
+                // Clearing whole lines, as when erasing the display, frees them instead of writing spaces. The line wrap
+                // flag is not touched by setChar(), so keep lines with it set:
+                int internalRow = externalToInternalRow(sy + y);
+                TerminalRow line = mLines[internalRow];
+                if (line == null || !line.mLineWrap) {
+                    setBlankLine(internalRow, style);
+                    continue;
+                }
+            }
             for (int x = 0; x < w; x++)
                 setChar(sx + x, sy + y, val, style);
+        }
     }
 
+    /**
+     * Get a row at an internal index for writing. If the line is not allocated or references a {@link TerminalRow#mShared}
+     * row, a private row is taken from the pool of recycled rows (or allocated) and filled with the previous content.
+     */
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        TerminalRow line = mLines[row];
+        if (line == null) {
+            return mLines[row] = obtainRow(0);
+        } else if (line.mShared) {
+            TerminalRow copy = obtainRow(line.getStyle(0));
+            copy.copyFrom(line);
+            return mLines[row] = copy;
+        }
+        return line;
+    }
+
+    /**
+     * Get a row at an internal index for reading only. The returned row may be shared between several lines, so it must
+     * not be modified - use {@link #allocateFullLineIfNecessary(int)} for that.
+     */
+    public TerminalRow getLineForReading(int row) {
+        TerminalRow line = mLines[row];
+        return (line == null) ? getBlankRow(0) : line;
+    }
+
+    /** Get the shared, immutable blank row with the specified style. */
+    TerminalRow getBlankRow(long style) {
+        for (int i = 0; i < mBlankRowsUsed; i++)
+            if (mBlankRowStyles[i] == style) return mBlankRows[i];
+
+        TerminalRow blankRow = new TerminalRow(mColumns, style);
+        blankRow.mShared = true;
+        int index;
+        if (mBlankRowsUsed < MAX_BLANK_ROW_STYLES) {
+            index = mBlankRowsUsed++;
+        } else {
+            // Lines still referencing the replaced row keep it, it is just no longer handed out:
+            index = mNextBlankRowToReplace;
+            mNextBlankRowToReplace = (mNextBlankRowToReplace + 1) % MAX_BLANK_ROW_STYLES;
+        }
+        mBlankRows[index] = blankRow;
+        mBlankRowStyles[index] = style;
+        return blankRow;
+    }
+
+    /** Make the line at an internal index blank, recycling the row it previously held. */
+    private void setBlankLine(int row, long style) {
+        recycleRow(mLines[row]);
+        mLines[row] = getBlankRow(style);
+    }
+
+    private TerminalRow obtainRow(long style) {
+        TerminalRow row = mRowPool.poll();
+        // A pooled row may still be in mInternedRows, and have been shared from there since it was recycled:
+        while (row != null && row.mShared) row = mRowPool.poll();
+        if (row == null) return new TerminalRow(mColumns, style);
+        row.clear(style);
+        return row;
+    }
+
+    private void recycleRow(TerminalRow row) {
+        // Keep at most a screen worth of rows, which is what scrolling through full screens of output churns through:
+        if (row == null || row.mShared || row.mStyle.length != mColumns || mRowPool.size() >= mScreenRows) return;
+        row.mLineWrap = false;
+        mRowPool.push(row);
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
         if (row  < 0 || row >= mScreenRows || column < 0 || column >= mColumns)
             throw new IllegalArgumentException("TerminalBuffer.setChar(): row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        markRowsDirty(row, row + 1);
         row = externalToInternalRow(row);
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /** See {@link TerminalRow#getJoinedCluster(GraphemeClusters, int, int)}. */
+    int getJoinedCluster(int column, int row, int codePoint) {
+        return getLineForReading(externalToInternalRow(row)).getJoinedCluster(mClusters, column, codePoint);
+    }
+
     public long getStyleAt(int externalRow, int column) {
-        return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
+        return getLineForReading(externalToInternalRow(externalRow)).getStyle(column);
     }
 
     /** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
     public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
                                  int bottom, int right) {
+        markRowsDirty(top, bottom);
         for (int y = top; y < bottom; y++) {
-            TerminalRow line = mLines[externalToInternalRow(y)];
+            TerminalRow line = allocateFullLineIfNecessary(externalToInternalRow(y));
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
             int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
             for (int x = startOfLine; x < endOfLine; x++) {
@@ -481,9 +1291,124 @@ public final class TerminalBuffer {
                 }
                 line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
             }
+            line.mVersion++;
         }
     }
 
+    /** The number of history rows waiting for {@link #reflowPendingHistory(int)}. */
+    int getPendingReflowRows() {
+        return mPendingReflowRowCount;
+    }
+
+    /**
+     * The approximate number of bytes held by the rows of this buffer, including history not yet reflowed, and the array
+     * referencing them. A row shared between several lines is counted once. Rows shared with snapshots are counted as
+     * well, even though they may also be kept alive by a snapshot.
+     */
+    public long getMemoryUsage() {
+        long bytes = TerminalRow.ARRAY_HEADER_BYTES + 4L * mLines.length;
+        // Shared rows are stamped when counted instead of being collected in a set, so that measuring allocates nothing:
+        final int stamp = sMemoryUsageStamps.incrementAndGet();
+        for (TerminalRow row : mLines) {
+            if (row != null && (!row.mShared || row.mMemoryUsageStamp != stamp)) {
+                row.mMemoryUsageStamp = stamp;
+                bytes += row.getMemoryUsage();
+            }
+        }
+        if (mPendingReflowRows != null) {
+            bytes += TerminalRow.ARRAY_HEADER_BYTES + 4L * mPendingReflowRows.length;
+            for (int i = 0; i < mPendingReflowRowCount; i++) {
+                TerminalRow row = mPendingReflowRows[i];
+                if (row != null && (!row.mShared || row.mMemoryUsageStamp != stamp)) {
+                    row.mMemoryUsageStamp = stamp;
+                    bytes += row.getMemoryUsage();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reduce the memory held by the history without changing what it shows: blank rows are replaced by the shared blank
+     * row of their style, and text arrays are shrunk to the text they hold. Rows shared with a snapshot keep their text
+     * array, as the snapshot may be reading it.
+     */
+    public void compactHistory() {
+        compactRows(-mActiveTranscriptRows, -1);
+    }
+
+    /** Compact the history rows {@code [firstRow, lastRow]} as {@link #compactHistory()} does. */
+    void compactRows(int firstRow, int lastRow) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            int internalRow = externalToInternalRow(row);
+            TerminalRow line = mLines[internalRow];
+            if (line == null || line == getBlankRowIfCached(line.getStyle(0))) continue;
+            if (!line.mLineWrap && line.isBlank() && hasSingleStyle(line)) {
+                mLines[internalRow] = getBlankRow(line.getStyle(0));
+            } else if (!line.mShared) {
+                line.trimText();
+            }
+        }
+    }
+
+    private TerminalRow getBlankRowIfCached(long style) {
+        for (int i = 0; i < mBlankRowsUsed; i++)
+            if (mBlankRowStyles[i] == style) return mBlankRows[i];
+        return null;
+    }
+
+    private boolean hasSingleStyle(TerminalRow line) {
+        long style = line.getStyle(0);
+        for (int column = 1; column < mColumns; column++)
+            if (line.getStyle(column) != style) return false;
+        return true;
+    }
+
+    /**
+     * Drop the oldest history so that at most {@code maxRows} rows are left, starting with history not yet reflowed.
+     * The external row numbers of the rows which are left do not change.
+     */
+    public void trimHistory(int maxRows) {
+        maxRows = Math.max(0, maxRows);
+        if (mPendingReflowRowCount > 0 && mActiveTranscriptRows + mPendingReflowRowCount > maxRows) clearPendingReflow();
+        if (mActiveTranscriptRows <= maxRows) return;
+        for (int row = -mActiveTranscriptRows; row < -maxRows; row++) {
+            int internalRow = externalToInternalRow(row);
+            mLines[internalRow] = null;
+        }
+        mActiveTranscriptRows = maxRows;
+        markAllRowsDirty();
+        mCommandMarks.prune();
+    }
+
+    /**
+     * Replace all rows with restored ones, see {@link TerminalStateStore}. The oldest history rows are dropped if there
+     * are more than fit.
+     *
+     * @param rows     The rows, oldest first and with the screen rows last.
+     * @param firstRow The number of the first row, as counted by {@link #getScrollCount()}.
+     */
+    void restore(int columns, int screenRows, int totalRows, TerminalRow[] rows, long firstRow) {
+        final int keptRows = Math.min(rows.length, totalRows);
+        mColumns = columns;
+        mScreenRows = screenRows;
+        mTotalRows = totalRows;
+        mLines = new TerminalRow[totalRows];
+        System.arraycopy(rows, rows.length - keptRows, mLines, 0, keptRows);
+        // The rows may also be referenced by the store, which expects them to not change:
+        for (int i = 0; i < keptRows; i++)
+            mLines[i].mShared = true;
+        mActiveTranscriptRows = mScreenFirstRow = keptRows - screenRows;
+        mScrollCount = firstRow + rows.length - screenRows;
+        mRowPool.clear();
+        mBlankRowsUsed = mNextBlankRowToReplace = 0;
+        Arrays.fill(mBlankRows, null);
+        Arrays.fill(mInternedRows, null);
+        clearPendingReflow();
+        mCommandMarks.clear();
+        mLayoutGeneration++;
+    }
+
     public void clearTranscript() {
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
@@ -492,6 +1417,10 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        Arrays.fill(mInternedRows, null);
+        clearPendingReflow();
+        mLayoutGeneration++;
+        mCommandMarks.prune();
     }
 
 }
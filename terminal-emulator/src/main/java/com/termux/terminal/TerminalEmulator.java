@@ -2,6 +2,8 @@ package com.termux.terminal;
 
 import android.util.Base64;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
@@ -129,6 +131,12 @@ public final class TerminalEmulator {
     private static final int DECSET_BIT_LEFTRIGHT_MARGIN_MODE = 1 << 11;
     /** Not really DECSET bit... - http://www.vt100.net/docs/vt510-rm/DECSACE */
     private static final int DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE = 1 << 12;
+    /**
+     * DECSET 2027 - if code points are joined into grapheme clusters measured as a whole, see {@link GraphemeClusters}.
+     * Not set by default, as applications count the width of each code point like wcwidth(3), and set by those which
+     * know of the mode.
+     */
+    private static final int DECSET_BIT_GRAPHEME_CLUSTERS = 1 << 13;
 
 
     private String mTitle;
@@ -161,15 +169,28 @@ public final class TerminalEmulator {
     private int mCursorStyle = DEFAULT_TERMINAL_CURSOR_STYLE;
 
 
+    /** The grapheme clusters written by this emulator, held by both of its buffers. */
+    private final GraphemeClusters mClusters = new GraphemeClusters();
     /** The normal screen buffer. Stores the characters that appear on the screen of the emulated terminal. */
-    private final TerminalBuffer mMainBuffer;
+    final TerminalBuffer mMainBuffer;
     /**
      * The alternate screen buffer, exactly as large as the display and contains no additional saved lines (so that when
      * the alternate screen buffer is active, you cannot scroll back to view saved lines).
      * <p>
+     * It is cleared each time it is switched to, so what it holds is not needed once left. Most sessions never use it, so
+     * it is only created when first switched to, and released {@link #ALT_BUFFER_RELEASE_DELAY_NANOS} after being left
+     * (see {@link #releaseAlternateBuffer()}). Null when released.
+     * <p>
      * See http://www.xfree86.org/current/ctlseqs.html#The%20Alternate%20Screen%20Buffer
      */
-    final TerminalBuffer mAltBuffer;
+    TerminalBuffer mAltBuffer;
+    /**
+     * How long the alternate buffer is kept after being left, so that programs switching back and forth, like a pager
+     * started several times in a row, reuse it.
+     */
+    static final long ALT_BUFFER_RELEASE_DELAY_NANOS = 10_000_000_000L;
+    /** When the alternate buffer was last left, as given by {@link System#nanoTime()}. Moved back by tests. */
+    long mAltBufferLeftNanos;
     /** The current screen buffer, pointing at either {@link #mMainBuffer} or {@link #mAltBuffer}. */
     private TerminalBuffer mScreen;
 
@@ -268,6 +289,11 @@ public final class TerminalEmulator {
     private byte mUtf8ToFollow, mUtf8Index;
     private final byte[] mUtf8InputBuffer = new byte[4];
     private int mLastEmittedCodePoint = -1;
+    /**
+     * The column of the cell written by the last code point, and its width, which a code point printed right after it
+     * may join as a grapheme cluster. -1 if anything else was done since.
+     */
+    private int mClusterColumn = -1, mClusterWidth;
 
     public final TerminalColors mColors = new TerminalColors();
 
@@ -319,6 +345,8 @@ public final class TerminalEmulator {
                 return DECSET_BIT_MOUSE_PROTOCOL_SGR;
             case 2004:
                 return DECSET_BIT_BRACKETED_PASTE_MODE;
+            case 2027:
+                return DECSET_BIT_GRAPHEME_CLUSTERS;
             default:
                 return -1;
             // throw new IllegalArgumentException("Unsupported decset: " + decsetBit);
@@ -327,8 +355,7 @@ public final class TerminalEmulator {
 
     public TerminalEmulator(TerminalOutput session, int columns, int rows, int cellWidthPixels, int cellHeightPixels, Integer transcriptRows, TerminalSessionClient client) {
         mSession = session;
-        mScreen = mMainBuffer = new TerminalBuffer(columns, getTerminalTranscriptRows(transcriptRows), rows);
-        mAltBuffer = new TerminalBuffer(columns, rows, rows);
+        mScreen = mMainBuffer = new TerminalBuffer(columns, getTerminalTranscriptRows(transcriptRows), rows, mClusters);
         mClient = client;
         mRows = rows;
         mColumns = columns;
@@ -410,10 +437,21 @@ public final class TerminalEmulator {
             mRightMargin = mColumns;
         }
 
+        // Creating a new alternate buffer when switched to is cheaper than resizing the old one:
+        releaseAlternateBuffer();
         resizeScreen();
     }
 
+    /**
+     * Release the alternate buffer if it is not in use, to be created again when switched to. This is done by itself a
+     * while after it is left, see {@link #mAltBuffer}.
+     */
+    public void releaseAlternateBuffer() {
+        if (mScreen != mAltBuffer) mAltBuffer = null;
+    }
+
     private void resizeScreen() {
+        mClusterColumn = -1;
         final int[] cursor = {mCursorCol, mCursorRow};
         int newTotalRows = (mScreen == mAltBuffer) ? mRows : mMainBuffer.mTotalRows;
         mScreen.resize(mColumns, mRows, newTotalRows, cursor, getStyle(), isAlternateBufferActive());
@@ -421,6 +459,37 @@ public final class TerminalEmulator {
         mCursorRow = cursor[1];
     }
 
+    /**
+     * Reflow some of the history of the main buffer which was left as it was by a change of columns, see
+     * {@link TerminalBuffer#reflowPendingHistory(int)}.
+     *
+     * @return If there is more history left to reflow.
+     */
+    public boolean reflowPendingHistory(int maxRows) {
+        mMainBuffer.reflowPendingHistory(maxRows);
+        return mMainBuffer.hasPendingReflow();
+    }
+
+    /** The approximate number of bytes held by the rows of both buffers, see {@link TerminalBuffer#getMemoryUsage()}. */
+    public long getMemoryUsage() {
+        return mMainBuffer.getMemoryUsage() + (mAltBuffer == null ? 0 : mAltBuffer.getMemoryUsage());
+    }
+
+    /** The number of rows in the history of the main buffer, including rows not yet reflowed after a resize. */
+    public int getHistoryRows() {
+        return mMainBuffer.getActiveTranscriptRows() + mMainBuffer.getPendingReflowRows();
+    }
+
+    /** Reduce the memory held by the history without changing it, see {@link TerminalBuffer#compactHistory()}. */
+    public void compactHistory() {
+        mMainBuffer.compactHistory();
+    }
+
+    /** Drop the oldest history of the main buffer, see {@link TerminalBuffer#trimHistory(int)}. */
+    public void trimHistory(int maxRows) {
+        mMainBuffer.trimHistory(maxRows);
+    }
+
     public int getCursorRow() {
         return mCursorRow;
     }
@@ -500,6 +569,8 @@ public final class TerminalEmulator {
     public void append(byte[] buffer, int length) {
         for (int i = 0; i < length; i++)
             processByte(buffer[i]);
+        if (mAltBuffer != null && mScreen != mAltBuffer && System.nanoTime() - mAltBufferLeftNanos > ALT_BUFFER_RELEASE_DELAY_NANOS)
+            releaseAlternateBuffer();
     }
 
     private void processByte(byte byteToProcess) {
@@ -568,6 +639,9 @@ public final class TerminalEmulator {
     }
 
     public void processCodePoint(int b) {
+        // Only a code point printed right after another one may join its grapheme cluster:
+        if (b < 32 || mEscapeState != ESC_NONE) mClusterColumn = -1;
+
         // The Application Program-Control (APC) string might be arbitrary non-printable characters, so handle that early.
         if (mEscapeState == ESC_APC) {
             doApc(b);
@@ -1207,7 +1281,8 @@ public final class TerminalEmulator {
                 break;
             case 4: // DECSCLM-Scrolling Mode. Ignore.
                 break;
-            case 5: // Reverse video. No action.
+            case 5: // Reverse video. Nothing to do but draw all rows again.
+                mScreen.markAllRowsDirty();
                 break;
             case 6: // Set: Origin Mode. Reset: Normal Cursor Mode. Ansi name: DECOM.
                 if (setting) setCursorPosition(0, 0);
@@ -1251,8 +1326,10 @@ public final class TerminalEmulator {
             case 1049: {
                 // Set: Save cursor as in DECSC and use Alternate Screen Buffer, clearing it first.
                 // Reset: Use Normal Screen Buffer and restore cursor as in DECRC.
+                if (setting && mAltBuffer == null) mAltBuffer = new TerminalBuffer(mColumns, mRows, mRows, mClusters);
                 TerminalBuffer newScreen = setting ? mAltBuffer : mMainBuffer;
                 if (newScreen != mScreen) {
+                    if (!setting) mAltBufferLeftNanos = System.nanoTime();
                     boolean resized = !(newScreen.mColumns == mColumns && newScreen.mScreenRows == mRows);
                     if (setting) saveCursor();
                     mScreen = newScreen;
@@ -1277,6 +1354,9 @@ public final class TerminalEmulator {
             case 2004:
                 // Bracketed paste mode - setting bit is enough.
                 break;
+            case 2027:
+                // Grapheme cluster mode - setting bit is enough.
+                break;
             default:
                 unknownParameter(externalBit);
                 break;
@@ -2056,7 +2136,7 @@ public final class TerminalEmulator {
                                 return;
                             } else {
                                 mColors.tryParseColor(colorIndex, textParameter.substring(parsingPairStart, i));
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 colorIndex = -1;
                                 parsingPairStart = -1;
                             }
@@ -2092,7 +2172,7 @@ public final class TerminalEmulator {
                                     + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
                             } else {
                                 mColors.tryParseColor(specialIndex, colorSpec);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                             }
                             specialIndex++;
                             if (endOfInput || (specialIndex > TextStyle.COLOR_INDEX_CURSOR) || ++charIndex >= textParameter.length())
@@ -2120,7 +2200,7 @@ public final class TerminalEmulator {
                 // parameters are given, the entire table will be reset.
                 if (textParameter.isEmpty()) {
                     mColors.reset();
-                    mSession.onColorsChanged();
+                    onColorsChanged();
                 } else {
                     int lastIndex = 0;
                     for (int charIndex = 0; ; charIndex++) {
@@ -2129,7 +2209,7 @@ public final class TerminalEmulator {
                             try {
                                 int colorToReset = Integer.parseInt(textParameter.substring(lastIndex, charIndex));
                                 mColors.reset(colorToReset);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 if (endOfInput) break;
                                 charIndex++;
                                 lastIndex = charIndex;
@@ -2144,10 +2224,30 @@ public final class TerminalEmulator {
             case 111: // Reset background color.
             case 112: // Reset cursor color.
                 mColors.reset(TextStyle.COLOR_INDEX_FOREGROUND + (value - 110));
-                mSession.onColorsChanged();
+                onColorsChanged();
                 break;
             case 119: // Reset highlight color.
                 break;
+            case 133:
+                // Semantic prompt marks from shell integration: "133;A" prompt start, "133;B" command start, "133;C"
+                // command executed and "133;D[;exit code]" command finished. Any further options are ignored.
+                int mark = (textParameter.length() == 1 || (textParameter.length() > 1 && textParameter.charAt(1) == ';'))
+                    ? "ABCD".indexOf(textParameter.charAt(0)) : -1;
+                if (mark == -1) {
+                    unknownParameter(value);
+                    break;
+                }
+                int exitCode = -1;
+                if (mark == CommandMarks.MARK_END && textParameter.startsWith("D;")) {
+                    int exitCodeEnd = textParameter.indexOf(';', 2);
+                    try {
+                        exitCode = Integer.parseInt(textParameter.substring(2, exitCodeEnd == -1 ? textParameter.length() : exitCodeEnd));
+                    } catch (NumberFormatException e) {
+                        // Ignore.
+                    }
+                }
+                mScreen.getCommandMarks().onMark(mark, mCursorRow, mCursorCol, exitCode);
+                break;
             default:
                 unknownParameter(value);
                 break;
@@ -2452,6 +2552,11 @@ public final class TerminalEmulator {
             }
         }
 
+        // Code points in the range used for grapheme clusters are interned as clusters of their own:
+        codePoint = mClusters.internCodePoint(codePoint);
+        if (mClusterColumn != -1 && GraphemeClusters.mayContinueCluster(codePoint)
+            && isDecsetInternalBitSet(DECSET_BIT_GRAPHEME_CLUSTERS) && joinCluster(codePoint)) return;
+
         final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
         final int displayWidth = WcWidth.width(codePoint);
         final boolean cursorInLastColumn = mCursorCol == mRightMargin - 1;
@@ -2469,6 +2574,7 @@ public final class TerminalEmulator {
         } else if (cursorInLastColumn && displayWidth == 2) {
             // The behaviour when a wide character is output with cursor in the last column when
             // autowrap is disabled is not obvious - it's ignored here.
+            mClusterColumn = -1;
             return;
         }
 
@@ -2488,6 +2594,10 @@ public final class TerminalEmulator {
         // TODO: Check if there are thread synchronization issues with mCursorCol and mCursorRow, possibly causing others bugs too.
         if (column < 0) column = 0;
         mScreen.setChar(column, mCursorRow, codePoint, getStyle());
+        if (displayWidth > 0) {
+            mClusterColumn = column;
+            mClusterWidth = displayWidth;
+        }
 
         if (autoWrap && displayWidth > 0)
             mAboutToAutoWrap = (mCursorCol == mRightMargin - displayWidth);
@@ -2495,6 +2605,35 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /**
+     * Join a code point to the grapheme cluster of the cell written just before it, if it continues it instead of
+     * starting a new cell. The cluster may be wider than the cell, such as a flag of two regional indicators of width 1.
+     *
+     * @return false if the code point is to be written as usual.
+     */
+    private boolean joinCluster(int codePoint) {
+        final int column = mClusterColumn;
+        final int cluster = mScreen.getJoinedCluster(column, mCursorRow, codePoint);
+        if (cluster == -1) return false;
+        final int width = WcWidth.width(cluster);
+        if (width > mClusterWidth) {
+            if (column + width > mRightMargin) return false;
+            if (mInsertMode) {
+                // Move the characters after the cell right, as for a new character:
+                int destCol = column + width;
+                if (destCol < mRightMargin)
+                    mScreen.blockCopy(column + mClusterWidth, mCursorRow, mRightMargin - destCol, 1, destCol, mCursorRow);
+            }
+        }
+        mScreen.setChar(column, mCursorRow, cluster, getStyle());
+        mClusterWidth = width;
+
+        if (isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP))
+            mAboutToAutoWrap = (column == mRightMargin - width);
+        mCursorCol = Math.min(column + width, mRightMargin - 1);
+        return true;
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2564,6 +2703,12 @@ public final class TerminalEmulator {
         mUtf8Index = mUtf8ToFollow = 0;
 
         mColors.reset();
+        onColorsChanged();
+    }
+
+    /** Tell the session that the colors changed, which also changes how all rows are drawn. */
+    private void onColorsChanged() {
+        mScreen.markAllRowsDirty();
         mSession.onColorsChanged();
     }
 
@@ -2599,6 +2744,155 @@ public final class TerminalEmulator {
         if (bracketed) mSession.write("\033[201~");
     }
 
+    /**
+     * Write the cursor, modes, margins, colors and other state apart from the rows of the buffers, see
+     * {@link TerminalStateStore}. Escape sequences being parsed are not included.
+     */
+    void writeState(TerminalStateStore.Output out) {
+        out.putInt(mRows);
+        out.putInt(mColumns);
+        out.putBoolean(isAlternateBufferActive());
+        out.putInt(mCursorRow);
+        out.putInt(mCursorCol);
+        out.putInt(mCursorStyle);
+        out.putInt(mCurrentDecSetFlags);
+        out.putInt(mSavedDecSetFlags);
+        out.putBoolean(mInsertMode);
+        out.putBoolean(mAboutToAutoWrap);
+        out.putInt(mTopMargin);
+        out.putInt(mBottomMargin);
+        out.putInt(mLeftMargin);
+        out.putInt(mRightMargin);
+        out.putInt(mForeColor);
+        out.putInt(mBackColor);
+        out.putInt(mUnderlineColor);
+        out.putInt(mEffect);
+        out.putBoolean(mUseLineDrawingG0);
+        out.putBoolean(mUseLineDrawingG1);
+        out.putBoolean(mUseLineDrawingUsesG0);
+        for (SavedScreenState state : new SavedScreenState[]{mSavedStateMain, mSavedStateAlt}) {
+            out.putInt(state.mSavedCursorRow);
+            out.putInt(state.mSavedCursorCol);
+            out.putInt(state.mSavedEffect);
+            out.putInt(state.mSavedForeColor);
+            out.putInt(state.mSavedBackColor);
+            out.putInt(state.mSavedDecFlags);
+            out.putBoolean(state.mUseLineDrawingG0);
+            out.putBoolean(state.mUseLineDrawingG1);
+            out.putBoolean(state.mUseLineDrawingUsesG0);
+        }
+        for (boolean tabStop : mTabStop)
+            out.putBoolean(tabStop);
+        for (int color : mColors.mCurrentColors)
+            out.putInt(color);
+        out.putString(mTitle);
+    }
+
+    /**
+     * Restore state written by {@link #writeState(TerminalStateStore.Output)} together with the rows of the buffers,
+     * oldest first with the screen rows last. Nothing is changed if the state is not valid. State saved at another size
+     * is restored at that size and then resized to the size of this emulator, as that of the view and the process.
+     *
+     * @throws IOException if the state is not valid.
+     */
+    void restoreState(ByteBuffer in, TerminalRow[] mainRows, int mainColumns, int mainScreenRows, long mainFirstRow,
+                      TerminalRow[] altRows, int altColumns, int altScreenRows, long altFirstRow) throws IOException {
+        final int currentRows = mRows, currentColumns = mColumns;
+        final int rows = in.getInt();
+        final int columns = in.getInt();
+        final boolean altBufferActive = in.get() != 0;
+        // The buffer not in use keeps its size until switched to, and the alternate one is only saved while in use:
+        if (altBufferActive ? (altRows == null || altColumns != columns || altScreenRows != rows) : (mainColumns != columns || mainScreenRows != rows)
+            || (altRows != null && altRows.length != altScreenRows))
+            throw new IOException("Invalid size: " + columns + "x" + rows);
+        final int cursorRow = in.getInt();
+        final int cursorCol = in.getInt();
+        if (cursorRow < 0 || cursorRow >= rows || cursorCol < 0 || cursorCol >= columns)
+            throw new IOException("Invalid cursor: " + cursorCol + "," + cursorRow);
+        final int cursorStyle = in.getInt();
+        final int currentDecSetFlags = in.getInt();
+        final int savedDecSetFlags = in.getInt();
+        final boolean insertMode = in.get() != 0;
+        final boolean aboutToAutoWrap = in.get() != 0;
+        final int topMargin = in.getInt(), bottomMargin = in.getInt(), leftMargin = in.getInt(), rightMargin = in.getInt();
+        if (topMargin < 0 || topMargin >= bottomMargin || bottomMargin > rows || leftMargin < 0 || leftMargin >= rightMargin || rightMargin > columns)
+            throw new IOException("Invalid margins");
+        final int foreColor = in.getInt(), backColor = in.getInt(), underlineColor = in.getInt(), effect = in.getInt();
+        final boolean useLineDrawingG0 = in.get() != 0, useLineDrawingG1 = in.get() != 0, useLineDrawingUsesG0 = in.get() != 0;
+        final SavedScreenState[] savedStates = {new SavedScreenState(), new SavedScreenState()};
+        for (SavedScreenState state : savedStates) {
+            state.mSavedCursorRow = in.getInt();
+            state.mSavedCursorCol = in.getInt();
+            state.mSavedEffect = in.getInt();
+            state.mSavedForeColor = in.getInt();
+            state.mSavedBackColor = in.getInt();
+            state.mSavedDecFlags = in.getInt();
+            state.mUseLineDrawingG0 = in.get() != 0;
+            state.mUseLineDrawingG1 = in.get() != 0;
+            state.mUseLineDrawingUsesG0 = in.get() != 0;
+        }
+        final boolean[] tabStop = new boolean[columns];
+        for (int i = 0; i < columns; i++)
+            tabStop[i] = in.get() != 0;
+        final int[] colors = new int[TextStyle.NUM_INDEXED_COLORS];
+        for (int i = 0; i < colors.length; i++)
+            colors[i] = in.getInt();
+        final String title = TerminalStateStore.getString(in);
+
+        mRows = rows;
+        mColumns = columns;
+        mMainBuffer.restore(mainColumns, mainScreenRows, Math.max(mMainBuffer.mTotalRows, mainScreenRows), mainRows, mainFirstRow);
+        if (altRows == null) {
+            mAltBuffer = null;
+        } else {
+            if (mAltBuffer == null) mAltBuffer = new TerminalBuffer(altColumns, altScreenRows, altScreenRows, mClusters);
+            mAltBuffer.restore(altColumns, altScreenRows, altScreenRows, altRows, altFirstRow);
+        }
+        mScreen = altBufferActive ? mAltBuffer : mMainBuffer;
+        mCursorRow = cursorRow;
+        mCursorCol = cursorCol;
+        mCursorStyle = cursorStyle;
+        mCurrentDecSetFlags = currentDecSetFlags;
+        mSavedDecSetFlags = savedDecSetFlags;
+        mInsertMode = insertMode;
+        mAboutToAutoWrap = aboutToAutoWrap;
+        mClusterColumn = -1;
+        mTopMargin = topMargin;
+        mBottomMargin = bottomMargin;
+        mLeftMargin = leftMargin;
+        mRightMargin = rightMargin;
+        mForeColor = foreColor;
+        mBackColor = backColor;
+        mUnderlineColor = underlineColor;
+        mEffect = effect;
+        mUseLineDrawingG0 = useLineDrawingG0;
+        mUseLineDrawingG1 = useLineDrawingG1;
+        mUseLineDrawingUsesG0 = useLineDrawingUsesG0;
+        copySavedState(savedStates[0], mSavedStateMain);
+        copySavedState(savedStates[1], mSavedStateAlt);
+        mTabStop = tabStop;
+        System.arraycopy(colors, 0, mColors.mCurrentColors, 0, colors.length);
+        setTitle(title);
+        mArgIndex = 0;
+        mContinueSequence = false;
+        mEscapeState = ESC_NONE;
+        mUtf8Index = mUtf8ToFollow = 0;
+        resize(currentColumns, currentRows, mCellWidthPixels, mCellHeightPixels);
+        onColorsChanged();
+    }
+
+    private static void copySavedState(SavedScreenState from, SavedScreenState to) {
+        to.mSavedCursorRow = from.mSavedCursorRow;
+        to.mSavedCursorCol = from.mSavedCursorCol;
+        to.mSavedEffect = from.mSavedEffect;
+        to.mSavedForeColor = from.mSavedForeColor;
+        to.mSavedBackColor = from.mSavedBackColor;
+        to.mSavedDecFlags = from.mSavedDecFlags;
+        to.mUseLineDrawingG0 = from.mUseLineDrawingG0;
+        to.mUseLineDrawingG1 = from.mUseLineDrawingG1;
+        to.mUseLineDrawingUsesG0 = from.mUseLineDrawingUsesG0;
+    }
+
     /** http://www.vt100.net/docs/vt510-rm/DECSC */
     static final class SavedScreenState {
         /** Saved state of the cursor position, Used to implement the save/restore cursor position escape sequences. */
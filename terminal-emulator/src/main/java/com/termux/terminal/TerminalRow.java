@@ -5,12 +5,19 @@ import java.util.Arrays;
 /**
  * A row in a terminal, composed of a fixed number of cells.
  * <p>
- * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering. A grapheme cluster
+ * which would otherwise be split over several cells is stored as the single code point of its id, see
+ * {@link GraphemeClusters}.
  */
 public final class TerminalRow {
 
     private static final float SPARE_CAPACITY_FACTOR = 1.5f;
 
+    /** Bytes of the header of an object or array, used for {@link #getMemoryUsage()}. */
+    static final int ARRAY_HEADER_BYTES = 16;
+    /** Bytes of a row object with its fields, not counting the arrays. */
+    private static final int ROW_OBJECT_BYTES = 48;
+
     /**
      * Max combining characters that can exist in a column, that are separate from the base character
      * itself. Any additional combining characters will be ignored and not added to the column.
@@ -49,6 +56,24 @@ public final class TerminalRow {
     final long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
+    /**
+     * If this row instance is shared between several lines of a {@link TerminalBuffer}, or with a snapshot taken by
+     * {@link TerminalBuffer#snapshot(int, int)}, and must not be modified. The buffer replaces it with a private copy
+     * before the first write, see {@link TerminalBuffer#allocateFullLineIfNecessary(int)}.
+     */
+    boolean mShared;
+    /**
+     * The number of the releasable snapshot which is the only one to share this row, which hands it back when released,
+     * or 0. See {@link TerminalBuffer#snapshot(int, int, boolean)}.
+     */
+    int mSnapshotGeneration;
+    /**
+     * Incremented whenever the text or styles change, so that what is computed from them can be kept until then. See
+     * {@link #getVersion()}.
+     */
+    int mVersion;
+    /** The stamp of the last {@link TerminalBuffer#getMemoryUsage()} to count this row, to count a shared row once. */
+    int mMemoryUsageStamp;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
@@ -84,6 +109,69 @@ public final class TerminalRow {
         }
     }
 
+    /** Make this row a copy of another row with the same number of columns. The copy is never {@link #mShared}. */
+    void copyFrom(TerminalRow other) {
+        mVersion++;
+        if (other.mStyle.length != mColumns)
+            throw new IllegalArgumentException("TerminalRow.copyFrom(): columns=" + other.mStyle.length + ", mColumns=" + mColumns);
+        if (mText.length < other.mSpaceUsed) mText = new char[other.mText.length];
+        System.arraycopy(other.mText, 0, mText, 0, other.mSpaceUsed);
+        System.arraycopy(other.mStyle, 0, mStyle, 0, mColumns);
+        mSpaceUsed = other.mSpaceUsed;
+        mLineWrap = other.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = other.mHasNonOneWidthOrSurrogateChars;
+    }
+
+    /**
+     * A hash for {@link #contentEquals(TerminalRow)}. Only the style of the first and last cell is included, as rows
+     * with the same text mostly have the same styles, and hashing every cell would cost more than comparing the few
+     * rows with the same hash.
+     */
+    int contentHashCode() {
+        int hash = mLineWrap ? 1 : 0;
+        for (int i = 0; i < mSpaceUsed; i++)
+            hash = 31 * hash + mText[i];
+        hash = 31 * hash + Long.hashCode(mStyle[0]);
+        return 31 * hash + Long.hashCode(mStyle[mStyle.length - 1]);
+    }
+
+    /** If this row shows the same as another one: the same text, styles and line wrap. */
+    boolean contentEquals(TerminalRow other) {
+        if (mSpaceUsed != other.mSpaceUsed || mLineWrap != other.mLineWrap || mStyle.length != other.mStyle.length) return false;
+        for (int i = 0; i < mSpaceUsed; i++)
+            if (mText[i] != other.mText[i]) return false;
+        return Arrays.equals(mStyle, other.mStyle);
+    }
+
+    /**
+     * The approximate number of bytes held by this row: the object itself and its two arrays, assuming 16 byte object
+     * headers.
+     */
+    long getMemoryUsage() {
+        return ROW_OBJECT_BYTES + ARRAY_HEADER_BYTES + 2L * mText.length + ARRAY_HEADER_BYTES + 8L * mStyle.length;
+    }
+
+    /** Shrink {@link #mText} to the text it holds, which is safe as {@link #setChar(int, int, long)} grows it as needed. */
+    void trimText() {
+        if (mText.length > mSpaceUsed && mText.length > mColumns) mText = Arrays.copyOf(mText, Math.max(mSpaceUsed, mColumns));
+    }
+
+    /** Replace the text of this row, as read by {@link TerminalStateStore}. */
+    void setText(char[] text, int spaceUsed, boolean hasNonOneWidthOrSurrogateChars) {
+        mVersion++;
+        mText = text;
+        mSpaceUsed = (short) spaceUsed;
+        mHasNonOneWidthOrSurrogateChars = hasNonOneWidthOrSurrogateChars;
+    }
+
+    /**
+     * A number which changes whenever the text or styles of this row change. Together with the identity of the row it
+     * tells whether the row changed since it was last looked at.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
     public int getSpaceUsed() {
         return mSpaceUsed;
     }
@@ -127,6 +215,21 @@ public final class TerminalRow {
         }
     }
 
+    /**
+     * The grapheme cluster which a code point forms with the cell starting at a column, if it continues it instead of
+     * starting a new cell. See {@link GraphemeClusters#join(char[], int, int, int)}.
+     *
+     * @param clusters The table of the buffer of the row, to intern the cluster in.
+     * @return The id of the cluster, or -1 if the code point does not join the cell.
+     */
+    int getJoinedCluster(GraphemeClusters clusters, int column, int codePoint) {
+        final int start = findStartOfColumn(column);
+        int end = start + (Character.isHighSurrogate(mText[start]) ? 2 : 1);
+        while (end < mSpaceUsed && WcWidth.width(mText, end) <= 0)
+            end += Character.isHighSurrogate(mText[end]) ? 2 : 1;
+        return clusters.join(mText, start, end, codePoint);
+    }
+
     private boolean wideDisplayCharacterStartingAt(int column) {
         for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed; ) {
             char c = mText[currentCharIndex++];
@@ -142,6 +245,7 @@ public final class TerminalRow {
     }
 
     public void clear(long style) {
+        mVersion++;
         Arrays.fill(mText, ' ');
         Arrays.fill(mStyle, style);
         mSpaceUsed = (short) mColumns;
@@ -153,6 +257,7 @@ public final class TerminalRow {
         if (columnToSet  < 0 || columnToSet >= mStyle.length)
             throw new IllegalArgumentException("TerminalRow.setChar(): columnToSet=" + columnToSet + ", codePoint=" + codePoint + ", style=" + style);
 
+        mVersion++;
         mStyle[columnToSet] = style;
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
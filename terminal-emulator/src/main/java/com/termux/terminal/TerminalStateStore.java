@@ -0,0 +1,451 @@
+package com.termux.terminal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Saves the state of a {@link TerminalEmulator} to a file and restores it, so that a session can be shown as it was
+ * after the process has been killed.
+ * <p>
+ * The file is a journal of frames. A full frame holds the rows of the main buffer, and of the alternate buffer if in
+ * use, together with the cursor, modes, margins and colors. A delta frame appended after it holds the same state but only the rows changed since the previous
+ * frame. When the journal has grown to twice the size of its full frame, it is replaced by a new full frame.
+ * <p>
+ * Rows hold {@link GraphemeClusters} by their id in the table of the emulator, so a frame also holds the clusters added
+ * to the table since the previous frame, and the ids are mapped to those of the restoring emulator when read.
+ * <p>
+ * Rows changed since the last write are found without any bookkeeping while writing to the buffer:
+ * {@link #capture(TerminalEmulator)} takes snapshots with {@link TerminalBuffer#snapshot(int, int)}, after which the
+ * buffer replaces a row with a copy before writing to it. A row which is the same instance at the same row number (see
+ * {@link TerminalBuffer#getScrollCount()}) as when last written is therefore unchanged.
+ * <p>
+ * Capturing is cheap and must be done on the thread that appends to the emulator, while {@link #write(State)} can be
+ * done on any thread.
+ */
+public final class TerminalStateStore {
+
+    private static final int FILE_MAGIC = 0x54534e50;
+    private static final int FILE_VERSION = 4;
+    private static final int FILE_HEADER_LENGTH = 8;
+
+    private static final byte FRAME_FULL = 1;
+    private static final byte FRAME_DELTA = 2;
+
+    private static final int ROW_LINE_WRAP = 1;
+    private static final int ROW_NON_ONE_WIDTH_OR_SURROGATE_CHARS = 1 << 1;
+    /** The row has only spaces, one per column, so the text is not written. */
+    private static final int ROW_BLANK_TEXT = 1 << 2;
+
+    /** The state of an emulator as taken by {@link #capture(TerminalEmulator)}, to be given to {@link #write(State)}. */
+    public static final class State {
+        final byte[] mEmulatorState;
+        final TerminalBuffer mMainRows;
+        /** Null if the alternate buffer is not in use, as it is cleared when switched to. */
+        final TerminalBuffer mAltRows;
+        /** The grapheme clusters of the emulator, and the number of them then, which includes all those in the rows. */
+        final GraphemeClusters mClusters;
+        final int mClusterCount;
+
+        State(byte[] emulatorState, TerminalBuffer mainRows, TerminalBuffer altRows, GraphemeClusters clusters) {
+            mEmulatorState = emulatorState;
+            mMainRows = mainRows;
+            mAltRows = altRows;
+            mClusters = clusters;
+            mClusterCount = clusters.getCount();
+        }
+    }
+
+    /** A growing buffer to encode frames in. */
+    static final class Output {
+        private ByteBuffer mBuffer = ByteBuffer.allocate(1 << 16);
+
+        private void ensureRemaining(int bytes) {
+            if (mBuffer.remaining() >= bytes) return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes));
+            mBuffer.flip();
+            bigger.put(mBuffer);
+            mBuffer = bigger;
+        }
+
+        void putByte(int value) {
+            ensureRemaining(1);
+            mBuffer.put((byte) value);
+        }
+
+        void putBoolean(boolean value) {
+            putByte(value ? 1 : 0);
+        }
+
+        void putShort(int value) {
+            ensureRemaining(2);
+            mBuffer.putShort((short) value);
+        }
+
+        void putInt(int value) {
+            ensureRemaining(4);
+            mBuffer.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensureRemaining(8);
+            mBuffer.putLong(value);
+        }
+
+        void putBytes(byte[] bytes) {
+            ensureRemaining(bytes.length);
+            mBuffer.put(bytes);
+        }
+
+        void putChars(char[] chars, int length) {
+            ensureRemaining(2 * length);
+            mBuffer.asCharBuffer().put(chars, 0, length);
+            mBuffer.position(mBuffer.position() + 2 * length);
+        }
+
+        /** Put a string which may be null. */
+        void putString(String value) {
+            if (value == null) {
+                putInt(-1);
+            } else {
+                putInt(value.length());
+                putChars(value.toCharArray(), value.length());
+            }
+        }
+
+        int length() {
+            return mBuffer.position();
+        }
+
+        void reset() {
+            mBuffer.clear();
+        }
+    }
+
+    /** Get a string written by {@link Output#putString(String)}. */
+    static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * length);
+        return new String(chars);
+    }
+
+    /** The rows of a buffer as they are in the file, oldest first. */
+    private static final class FileRows {
+        TerminalRow[] mRows;
+        int mColumns, mScreenRows;
+        /** The number of the first row, counted as by {@link TerminalBuffer#getScrollCount()}. */
+        long mFirstRow;
+
+        /** The rows of a buffer being written, to become {@link #mRows} once the frame is in the file. */
+        TerminalRow[] mWrittenRows;
+        int mWrittenColumns, mWrittenScreenRows;
+        long mWrittenFirstRow;
+
+        void write(Output out, TerminalBuffer rows, boolean full) {
+            if (rows == null) {
+                out.putInt(0);
+                mWrittenRows = null;
+                return;
+            }
+            final int historyRows = rows.getActiveTranscriptRows();
+            final int rowCount = historyRows + rows.mScreenRows;
+            final long firstRow = rows.getScrollCount() - historyRows;
+            out.putInt(rows.mColumns);
+            out.putInt(rows.mScreenRows);
+            out.putLong(firstRow);
+            out.putInt(rowCount);
+
+            TerminalRow[] written = new TerminalRow[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                TerminalRow row = rows.getLineForReading(rows.externalToInternalRow(i - historyRows));
+                written[i] = row;
+                if (!full && mRows != null) {
+                    long index = firstRow + i - mFirstRow;
+                    if (index >= 0 && index < mRows.length && mRows[(int) index] == row) continue;
+                }
+                out.putInt(i);
+                writeRow(out, row, rows.mColumns);
+            }
+            out.putInt(-1);
+
+            mWrittenRows = written;
+            mWrittenColumns = rows.mColumns;
+            mWrittenScreenRows = rows.mScreenRows;
+            mWrittenFirstRow = firstRow;
+        }
+
+        void onWritten() {
+            mRows = mWrittenRows;
+            mColumns = mWrittenColumns;
+            mScreenRows = mWrittenScreenRows;
+            mFirstRow = mWrittenFirstRow;
+            mWrittenRows = null;
+        }
+
+        void read(ByteBuffer in, boolean full, int[] clusterIds) throws IOException {
+            final int columns = in.getInt();
+            if (columns == 0) {
+                mRows = null;
+                return;
+            }
+            final int screenRows = in.getInt();
+            final long firstRow = in.getLong();
+            final int rowCount = in.getInt();
+            if (columns < 2 || screenRows < 2 || rowCount < screenRows || rowCount > TerminalEmulator.TERMINAL_TRANSCRIPT_ROWS_MAX + screenRows)
+                throw new IOException("Invalid rows: columns=" + columns + ", screenRows=" + screenRows + ", rowCount=" + rowCount);
+
+            TerminalRow[] rows = new TerminalRow[rowCount];
+            int index;
+            while ((index = in.getInt()) != -1) {
+                if (index < 0 || index >= rowCount) throw new IOException("Invalid row index: " + index);
+                rows[index] = readRow(in, columns, clusterIds);
+            }
+            for (int i = 0; i < rowCount; i++) {
+                if (rows[i] != null) continue;
+                // Unchanged since the previous frame:
+                long previousIndex = firstRow + i - mFirstRow;
+                if (full || mRows == null || previousIndex < 0 || previousIndex >= mRows.length || mColumns != columns)
+                    throw new IOException("Missing row " + i);
+                rows[i] = mRows[(int) previousIndex];
+            }
+
+            mRows = rows;
+            mColumns = columns;
+            mScreenRows = screenRows;
+            mFirstRow = firstRow;
+        }
+    }
+
+    private final File mFile;
+    private final FileRows mMainRows = new FileRows(), mAltRows = new FileRows();
+    private final Output mOutput = new Output();
+    /** If the next frame must be a full one, as the file does not end with a complete frame known to this instance. */
+    private boolean mNeedsFullFrame = true;
+    /** The number of grapheme clusters of the table of the emulator in the file. */
+    private int mClusterCount;
+    private long mFileLength, mFullFrameLength;
+
+    public TerminalStateStore(File file) {
+        mFile = file;
+    }
+
+    /** Capture the state of an emulator, to be written by {@link #write(State)}. */
+    public static State capture(TerminalEmulator emulator) {
+        Output out = new Output();
+        emulator.writeState(out);
+        byte[] emulatorState = new byte[out.length()];
+        out.mBuffer.flip();
+        out.mBuffer.get(emulatorState);
+
+        // History not yet reflowed after a resize would otherwise be lost, so it is reflowed now. This is only done on
+        // the first capture after a change of columns, and costs no more than the resize would without deferring it:
+        TerminalBuffer main = emulator.mMainBuffer;
+        main.reflowPendingHistory(Integer.MAX_VALUE);
+        return new State(emulatorState, main.snapshot(-main.getActiveTranscriptRows(), Integer.MAX_VALUE),
+            emulator.isAlternateBufferActive() ? emulator.mAltBuffer.snapshot(0, Integer.MAX_VALUE) : null,
+            main.getGraphemeClusters());
+    }
+
+    /** Write a captured state to the file, only appending the rows changed since the last write when possible. */
+    public synchronized void write(State state) throws IOException {
+        boolean full = mNeedsFullFrame;
+        int frameLength = encodeFrame(state, full);
+        if (!full && mFileLength + frameLength > 2 * mFullFrameLength) {
+            full = true;
+            frameLength = encodeFrame(state, true);
+        }
+
+        mNeedsFullFrame = true;
+        ByteBuffer frame = mOutput.mBuffer;
+        if (full) {
+            File tempFile = new File(mFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+                header.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+                out.write(header.array());
+                out.write(frame.array(), 0, frameLength);
+            }
+            if (!tempFile.renameTo(mFile)) throw new IOException("Failed to rename " + tempFile + " to " + mFile);
+            mFileLength = mFullFrameLength = FILE_HEADER_LENGTH + frameLength;
+        } else {
+            try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+                out.write(frame.array(), 0, frameLength);
+            }
+            mFileLength += frameLength;
+        }
+        mMainRows.onWritten();
+        mAltRows.onWritten();
+        mClusterCount = state.mClusterCount;
+        mNeedsFullFrame = false;
+    }
+
+    /** Encode a frame in {@link #mOutput}, starting with its length. */
+    private int encodeFrame(State state, boolean full) {
+        Output out = mOutput;
+        out.reset();
+        out.putInt(0);
+        out.putByte(full ? FRAME_FULL : FRAME_DELTA);
+        out.putInt(state.mEmulatorState.length);
+        out.putBytes(state.mEmulatorState);
+        // The clusters not in the file yet, which the table has in the order of their indices:
+        int firstCluster = full ? 0 : mClusterCount;
+        out.putInt(firstCluster);
+        out.putInt(state.mClusterCount - firstCluster);
+        for (int i = firstCluster; i < state.mClusterCount; i++)
+            out.putString(new String(state.mClusters.getChars(GraphemeClusters.FIRST_ID + 2 * i)));
+        mMainRows.write(out, state.mMainRows, full);
+        mAltRows.write(out, state.mAltRows, full);
+        int length = out.length();
+        out.mBuffer.putInt(0, length - 4);
+        return length;
+    }
+
+    /**
+     * Restore the state of an emulator from the file. A frame cut short by the process being killed while writing it is
+     * skipped. A screen saved at another size is resized to the size of the emulator.
+     *
+     * @return false if there is no saved state.
+     * @throws IOException if the file could not be read or is not valid, in which case the emulator is unchanged.
+     */
+    public synchronized boolean restore(TerminalEmulator emulator) throws IOException {
+        if (!mFile.isFile()) return false;
+        byte[] data = new byte[(int) mFile.length()];
+        try (InputStream in = new FileInputStream(mFile)) {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) throw new IOException("Unexpected end of " + mFile);
+                read += count;
+            }
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(data);
+        byte[] emulatorState = null;
+        boolean complete = true;
+        // The ids in the emulator of the clusters in the file, by their index there:
+        int[] clusterIds = new int[0];
+        mMainRows.mRows = mAltRows.mRows = null;
+        try {
+            if (data.length < FILE_HEADER_LENGTH || in.getInt() != FILE_MAGIC || in.getInt() != FILE_VERSION)
+                throw new IOException("Not a terminal state file: " + mFile);
+            while (in.hasRemaining()) {
+                int frameLength = (in.remaining() < 4) ? -1 : in.getInt();
+                if (frameLength < 1 || frameLength > in.remaining()) {
+                    complete = false;
+                    break;
+                }
+                ByteBuffer frame = ByteBuffer.wrap(data, in.position(), frameLength);
+                in.position(in.position() + frameLength);
+                boolean full = frame.get() == FRAME_FULL;
+                emulatorState = new byte[frame.getInt()];
+                frame.get(emulatorState);
+                clusterIds = readClusters(frame, full ? new int[0] : clusterIds, emulator.mMainBuffer.getGraphemeClusters());
+                mMainRows.read(frame, full, clusterIds);
+                mAltRows.read(frame, full, clusterIds);
+                if (full) mFullFrameLength = FILE_HEADER_LENGTH + 4 + frameLength;
+            }
+            if (emulatorState == null) throw new IOException("No frame in " + mFile);
+            emulator.restoreState(ByteBuffer.wrap(emulatorState),
+                mMainRows.mRows, mMainRows.mColumns, mMainRows.mScreenRows, mMainRows.mFirstRow,
+                mAltRows.mRows, mAltRows.mColumns, mAltRows.mScreenRows, mAltRows.mFirstRow);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            mMainRows.mRows = mAltRows.mRows = null;
+            throw new IOException("Invalid terminal state in " + mFile, e);
+        } catch (IOException e) {
+            mMainRows.mRows = mAltRows.mRows = null;
+            throw e;
+        }
+
+        // The restored rows are what the file holds, so only rows changed after this need to be written:
+        mFileLength = data.length;
+        // The clusters of the file may have other ids in the emulator, so it cannot be appended to:
+        mNeedsFullFrame = !complete || clusterIds.length > 0;
+        return true;
+    }
+
+    /** Read the clusters added to the table in a frame, and intern them in the table of the emulator restored. */
+    private static int[] readClusters(ByteBuffer in, int[] clusterIds, GraphemeClusters clusters) throws IOException {
+        final int first = in.getInt();
+        final int count = in.getInt();
+        if (first != clusterIds.length || count < 0 || count > GraphemeClusters.MAX_CLUSTERS - first)
+            throw new IOException("Invalid grapheme clusters: first=" + first + ", count=" + count);
+        int[] ids = Arrays.copyOf(clusterIds, first + count);
+        for (int i = first; i < ids.length; i++) {
+            String cluster = getString(in);
+            if (cluster == null || cluster.isEmpty()) throw new IOException("Invalid grapheme cluster");
+            ids[i] = clusters.intern(cluster);
+            if (ids[i] == -1) throw new IOException("Too many grapheme clusters");
+        }
+        return ids;
+    }
+
+    private static void writeRow(Output out, TerminalRow row, int columns) {
+        int spaceUsed = row.getSpaceUsed();
+        boolean blankText = spaceUsed == columns && !row.mHasNonOneWidthOrSurrogateChars && row.isBlank();
+        out.putShort(spaceUsed);
+        out.putByte((row.mLineWrap ? ROW_LINE_WRAP : 0)
+            | (row.mHasNonOneWidthOrSurrogateChars ? ROW_NON_ONE_WIDTH_OR_SURROGATE_CHARS : 0)
+            | (blankText ? ROW_BLANK_TEXT : 0));
+        if (!blankText) out.putChars(row.mText, spaceUsed);
+
+        // Styles as runs of equal styles:
+        final long[] styles = row.mStyle;
+        int runs = 1;
+        for (int column = 1; column < columns; column++)
+            if (styles[column] != styles[column - 1]) runs++;
+        out.putShort(runs);
+        int runStart = 0;
+        for (int column = 1; column <= columns; column++) {
+            if (column == columns || styles[column] != styles[runStart]) {
+                out.putShort(column - runStart);
+                out.putLong(styles[runStart]);
+                runStart = column;
+            }
+        }
+    }
+
+    private static TerminalRow readRow(ByteBuffer in, int columns, int[] clusterIds) throws IOException {
+        final int spaceUsed = in.getShort() & 0xFFFF;
+        final int flags = in.get();
+        final boolean nonOneWidthOrSurrogateChars = (flags & ROW_NON_ONE_WIDTH_OR_SURROGATE_CHARS) != 0;
+        // The fast path of TerminalRow.setChar() needs one char per column without such chars:
+        if (spaceUsed > Short.MAX_VALUE || (!nonOneWidthOrSurrogateChars && spaceUsed != columns))
+            throw new IOException("Invalid row length: " + spaceUsed);
+
+        TerminalRow row = new TerminalRow(columns, 0);
+        row.mLineWrap = (flags & ROW_LINE_WRAP) != 0;
+        if ((flags & ROW_BLANK_TEXT) == 0) {
+            char[] text = (spaceUsed <= row.mText.length) ? row.mText : new char[spaceUsed];
+            in.asCharBuffer().get(text, 0, spaceUsed);
+            in.position(in.position() + 2 * spaceUsed);
+            for (int i = 0; i < spaceUsed - 1; i++) {
+                if (!GraphemeClusters.isClusterHighSurrogate(text[i])) continue;
+                int index = GraphemeClusters.indexOf(Character.toCodePoint(text[i], text[i + 1]));
+                if (index >= clusterIds.length) throw new IOException("Unknown grapheme cluster: " + index);
+                // Ids are all in the same range of supplementary code points, so the two chars are replaced in place:
+                Character.toChars(clusterIds[index], text, i++);
+            }
+            row.setText(text, spaceUsed, nonOneWidthOrSurrogateChars);
+        }
+
+        final int runs = in.getShort() & 0xFFFF;
+        int column = 0;
+        for (int i = 0; i < runs; i++) {
+            int length = in.getShort() & 0xFFFF;
+            long style = in.getLong();
+            if (column + length > columns) throw new IOException("Invalid row styles");
+            for (int end = column + length; column < end; column++) row.mStyle[column] = style;
+        }
+        if (column != columns) throw new IOException("Invalid row styles");
+        return row;
+    }
+
+}
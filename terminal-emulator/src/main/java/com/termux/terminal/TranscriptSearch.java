@@ -0,0 +1,369 @@
+package com.termux.terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Literal and regular expression search in the logical (unwrapped) lines of a {@link TerminalBuffer}, see
+ * {@link TerminalBuffer#getTranscriptSearch()}.
+ * <p>
+ * Each row gets a 256 bit signature of the case folded trigrams starting in it. A query only looks at the text of lines
+ * whose signatures contain all trigrams of a literal that any match must contain. Signatures of rows in the history
+ * are kept until the buffer is resized or the history cleared, since those rows are not changed otherwise, so only
+ * rows scrolled into the history since the last search and the rows on the screen need new ones.
+ * <p>
+ * A search runs in steps on the thread owning the emulator, see {@link Query#step(int)}, so that it can be spread
+ * over frames and cancelled when the query changes.
+ */
+public final class TranscriptSearch {
+
+    /** The number of longs in the signature of a row. */
+    private static final int SIGNATURE_LONGS = 4;
+
+    private final TerminalBuffer mBuffer;
+
+    /** Row signatures, indexed by the row number from {@link #absoluteRow(int)} modulo {@link #mCapacity}. */
+    private long[] mSignatures;
+    /** The row number from {@link #absoluteRow(int)} each cached signature belongs to, or Long.MIN_VALUE. */
+    private long[] mSignatureRows;
+    private int mCapacity;
+    /** The {@link TerminalBuffer#mLayoutGeneration} the cached signatures are for. */
+    private int mGeneration;
+
+    /** The text of the line being looked at, case folded as well, and where each of its rows starts in it. */
+    private final StringBuilder mLineText = new StringBuilder();
+    private final StringBuilder mFoldedLineText = new StringBuilder();
+    private int[] mRowStarts = new int[8];
+    private final long[] mLineSignature = new long[SIGNATURE_LONGS];
+    /** The signature of a row which is not cached since it may still change. */
+    private final long[] mUncachedSignature = new long[SIGNATURE_LONGS];
+
+    TranscriptSearch(TerminalBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /** A match, with rows as returned by {@link #absoluteRow(int)} and the end column exclusive. */
+    public static final class Match {
+        public final long startRow, endRow;
+        public final int startColumn, endColumn;
+
+        Match(long startRow, int startColumn, long endRow, int endColumn) {
+            this.startRow = startRow;
+            this.startColumn = startColumn;
+            this.endRow = endRow;
+            this.endColumn = endColumn;
+        }
+    }
+
+    /**
+     * Start a search. Matches do not span logical lines.
+     *
+     * @param query      The text or regular expression to search for.
+     * @param regex      If the query is a regular expression.
+     * @param ignoreCase If case should be ignored.
+     * @param maxMatches Stop after this many matches.
+     * @throws java.util.regex.PatternSyntaxException If the query is not a valid regular expression.
+     */
+    public Query query(String query, boolean regex, boolean ignoreCase, int maxMatches) {
+        int flags = (regex ? 0 : Pattern.LITERAL) | (ignoreCase ? (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE) : 0);
+        Pattern pattern = Pattern.compile(query, flags);
+        String required = regex ? requiredLiteral(query) : query;
+        long[] requiredSignature = new long[SIGNATURE_LONGS];
+        if (required != null) {
+            StringBuilder folded = new StringBuilder(required.length());
+            for (int i = 0; i < required.length(); i++) folded.append(foldCase(required.charAt(i)));
+            addTrigrams(folded, 0, folded.length(), requiredSignature, 0);
+        }
+        return new Query(pattern, requiredSignature, maxMatches);
+    }
+
+    /**
+     * The number for an external row which stays the same when the screen scrolls, see
+     * {@link TerminalBuffer#getScrollCount()}.
+     */
+    public long absoluteRow(int externalRow) {
+        return mBuffer.getScrollCount() + externalRow;
+    }
+
+    /** The external row for a number from {@link #absoluteRow(int)}, which may no longer be in the buffer. */
+    public int externalRow(long absoluteRow) {
+        return (int) (absoluteRow - mBuffer.getScrollCount());
+    }
+
+    /** A search of the buffer from the last row and up. */
+    public final class Query {
+        private final Pattern mPattern;
+        private final long[] mRequiredSignature;
+        private final int mMaxMatches;
+        private final List<Match> mMatches = new ArrayList<>();
+        private int mGeneration;
+        /** The row number from {@link #absoluteRow(int)} of the last row of the next line to search. */
+        private long mNextRow;
+        private boolean mDone;
+        private volatile boolean mCancelled;
+
+        Query(Pattern pattern, long[] requiredSignature, int maxMatches) {
+            mPattern = pattern;
+            mRequiredSignature = requiredSignature;
+            mMaxMatches = maxMatches;
+            restart();
+        }
+
+        private void restart() {
+            mMatches.clear();
+            mGeneration = mBuffer.mLayoutGeneration;
+            mNextRow = absoluteRow(mBuffer.mScreenRows - 1);
+            mDone = false;
+        }
+
+        /**
+         * Search at least the given number of rows, or until done. If the buffer was resized since the last step the
+         * search starts over.
+         *
+         * @return If there is more to search.
+         */
+        public boolean step(int maxRows) {
+            if (mCancelled || mDone) return false;
+            if (mGeneration != mBuffer.mLayoutGeneration) restart();
+            updateCache();
+
+            int topRow = -mBuffer.getActiveTranscriptRows();
+            int rowsSearched = 0;
+            int lastRow = externalRow(mNextRow);
+            while (rowsSearched < maxRows) {
+                if (lastRow < topRow && mBuffer.hasPendingReflow()) {
+                    // History left from a change of columns is reflowed as the search reaches it:
+                    mBuffer.reflowPendingHistory(Math.max(1, maxRows - rowsSearched));
+                    topRow = -mBuffer.getActiveTranscriptRows();
+                    continue;
+                }
+                if (lastRow < topRow || mMatches.size() >= mMaxMatches) {
+                    mDone = true;
+                    return false;
+                }
+                int firstRow = mBuffer.getLogicalLineStart(lastRow);
+                searchLine(firstRow, lastRow);
+                rowsSearched += lastRow - firstRow + 1;
+                lastRow = firstRow - 1;
+            }
+            mNextRow = absoluteRow(lastRow);
+            return true;
+        }
+
+        private void searchLine(int firstRow, int lastRow) {
+            boolean haveText = false;
+            Arrays.fill(mLineSignature, 0);
+            for (int row = firstRow; row <= lastRow; row++) {
+                int slot = cachedSignatureSlot(row);
+                if (slot < 0) {
+                    // Compute the signatures of all rows of the line at once:
+                    buildLineText(firstRow, lastRow);
+                    haveText = true;
+                    Arrays.fill(mLineSignature, 0);
+                    for (int r = firstRow; r <= lastRow; r++) {
+                        int rowIndex = r - firstRow;
+                        long[] target = mSignatures;
+                        int offset = cacheableSlot(r, lastRow);
+                        if (offset < 0) {
+                            target = mUncachedSignature;
+                            offset = 0;
+                        } else {
+                            mSignatureRows[offset / SIGNATURE_LONGS] = absoluteRow(r);
+                        }
+                        Arrays.fill(target, offset, offset + SIGNATURE_LONGS, 0);
+                        addTrigrams(mFoldedLineText, mRowStarts[rowIndex], mRowStarts[rowIndex + 1], target, offset);
+                        for (int i = 0; i < SIGNATURE_LONGS; i++) mLineSignature[i] |= target[offset + i];
+                    }
+                    break;
+                }
+                for (int i = 0; i < SIGNATURE_LONGS; i++) mLineSignature[i] |= mSignatures[slot + i];
+            }
+            for (int i = 0; i < SIGNATURE_LONGS; i++)
+                if ((mLineSignature[i] & mRequiredSignature[i]) != mRequiredSignature[i]) return;
+
+            if (!haveText) buildLineText(firstRow, lastRow);
+            Matcher matcher = mPattern.matcher(mLineText);
+            while (matcher.find() && mMatches.size() < mMaxMatches) {
+                if (matcher.end() == matcher.start()) continue;
+                int startRow = rowOfOffset(matcher.start(), firstRow, lastRow);
+                int endRow = rowOfOffset(matcher.end() - 1, firstRow, lastRow);
+                mMatches.add(new Match(absoluteRow(startRow), columnOfOffset(startRow, firstRow, matcher.start()),
+                    absoluteRow(endRow), columnOfOffset(endRow, firstRow, matcher.end())));
+            }
+        }
+
+        /** The matches found so far, from the last row and up and left to right within a line. */
+        public List<Match> getMatches() {
+            return mMatches;
+        }
+
+        /** Stop the search, which may be called from any thread. */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /** If the whole buffer has been searched, or the max number of matches found. */
+        public boolean isDone() {
+            return mDone;
+        }
+    }
+
+    private void updateCache() {
+        if (mSignatures == null || mGeneration != mBuffer.mLayoutGeneration || mCapacity != mBuffer.mTotalRows) {
+            mCapacity = mBuffer.mTotalRows;
+            mGeneration = mBuffer.mLayoutGeneration;
+            mSignatures = new long[mCapacity * SIGNATURE_LONGS];
+            mSignatureRows = new long[mCapacity];
+            Arrays.fill(mSignatureRows, Long.MIN_VALUE);
+        }
+    }
+
+    /** The offset in {@link #mSignatures} of the cached signature of an external row, or -1 if not cached. */
+    private int cachedSignatureSlot(int row) {
+        long absoluteRow = absoluteRow(row);
+        int slot = (int) Math.floorMod(absoluteRow, (long) mCapacity);
+        return (mSignatureRows[slot] == absoluteRow) ? slot * SIGNATURE_LONGS : -1;
+    }
+
+    /**
+     * The offset in {@link #mSignatures} to store the signature of a row at, or -1 if it should not be stored since the
+     * row or the rest of its line may still change.
+     */
+    private int cacheableSlot(int row, int lastRowOfLine) {
+        if (lastRowOfLine >= 0) return -1;
+        return (int) Math.floorMod(absoluteRow(row), (long) mCapacity) * SIGNATURE_LONGS;
+    }
+
+    /**
+     * Build the text of the rows of a logical line into {@link #mLineText}, the same way as the transcript text, with the
+     * text of the grapheme clusters in it instead of their ids.
+     */
+    private void buildLineText(int firstRow, int lastRow) {
+        mLineText.setLength(0);
+        if (mRowStarts.length < lastRow - firstRow + 2) mRowStarts = new int[(lastRow - firstRow + 2) * 2];
+        for (int row = firstRow; row <= lastRow; row++) {
+            mRowStarts[row - firstRow] = mLineText.length();
+            TerminalRow line = mBuffer.getLineForReading(mBuffer.externalToInternalRow(row));
+            int end = line.getSpaceUsed();
+            if (row == lastRow) while (end > 0 && line.mText[end - 1] == ' ') end--;
+            mBuffer.getGraphemeClusters().appendExpanded(mLineText, line.mText, 0, end);
+        }
+        mRowStarts[lastRow - firstRow + 1] = mLineText.length();
+
+        mFoldedLineText.setLength(0);
+        for (int i = 0; i < mLineText.length(); i++) mFoldedLineText.append(foldCase(mLineText.charAt(i)));
+    }
+
+    private int rowOfOffset(int offset, int firstRow, int lastRow) {
+        int row = firstRow;
+        while (row < lastRow && mRowStarts[row - firstRow + 1] <= offset) row++;
+        return row;
+    }
+
+    /**
+     * The column in a row of the line in {@link #mLineText} where the character at the given offset starts. The width of
+     * a grapheme cluster is that of its id in the row, not of the code points in its text.
+     */
+    private int columnOfOffset(int row, int firstRow, int offset) {
+        final TerminalRow line = mBuffer.getLineForReading(mBuffer.externalToInternalRow(row));
+        final GraphemeClusters clusters = mBuffer.getGraphemeClusters();
+        final int spaceUsed = line.getSpaceUsed();
+        int column = 0;
+        for (int i = 0, lineOffset = mRowStarts[row - firstRow]; lineOffset < offset && i < spaceUsed; ) {
+            int codePoint = Character.codePointAt(line.mText, i, spaceUsed);
+            i += Character.charCount(codePoint);
+            lineOffset += GraphemeClusters.isCluster(codePoint) ? clusters.getChars(codePoint).length : Character.charCount(codePoint);
+            int width = WcWidth.width(codePoint);
+            if (width > 0) column += width;
+        }
+        return column;
+    }
+
+    /**
+     * Map characters which {@link Pattern#CASE_INSENSITIVE} with {@link Pattern#UNICODE_CASE} may match to each other
+     * to the same character, so that signatures work for case insensitive search.
+     */
+    private static char foldCase(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /** Set the bits for the trigrams of text starting in {@code [start, end)}, which may continue past end. */
+    private static void addTrigrams(CharSequence text, int start, int end, long[] signature, int offset) {
+        for (int i = start; i < end && i + 2 < text.length(); i++) {
+            int bit = ((text.charAt(i) * 0x9E3779B1) ^ (text.charAt(i + 1) * 0x85EBCA6B) ^ (text.charAt(i + 2) * 0xC2B2AE35)) >>> 24;
+            signature[offset + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * The longest literal which any match of a regular expression must contain, or null if none is found. This is
+     * conservative: alternations and inline flags such as {@code (?x)}, which may change what the rest means, give up,
+     * and characters made optional by a quantifier end a literal.
+     */
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') != -1) return null;
+        String best = null;
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= regex.length(); i++) {
+            char c = (i < regex.length()) ? regex.charAt(i) : 0;
+            boolean literal;
+            char literalChar = c;
+            int consumed = 1;
+            if (i == regex.length()) {
+                literal = false;
+            } else if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(i + 1);
+                // Escapes like \x41, \p{L}, \Q...\E and back references are followed by more than a character:
+                if (Character.isDigit(next) || "xucpPNkQE".indexOf(next) != -1) break;
+                literal = !Character.isLetter(next);
+                literalChar = next;
+                consumed = 2;
+            } else {
+                literal = "[](){}.^$*+?".indexOf(c) == -1;
+            }
+
+            if (c == '[') {
+                // Skip the character class:
+                int j = i + 1;
+                if (j < regex.length() && regex.charAt(j) == '^') j++;
+                if (j < regex.length() && regex.charAt(j) == ']') j++;
+                while (j < regex.length() && regex.charAt(j) != ']') j += (regex.charAt(j) == '\\') ? 2 : 1;
+                consumed = j - i + 1;
+            } else if (c == '(') {
+                if (i + 2 < regex.length() && regex.charAt(i + 1) == '?') {
+                    char flag = regex.charAt(i + 2);
+                    if (Character.isLetter(flag) || flag == '-') return null;
+                }
+                // Skip the group, which may be optional:
+                int depth = 0;
+                int j = i;
+                for (; j < regex.length(); j++) {
+                    char g = regex.charAt(j);
+                    if (g == '\\') j++;
+                    else if (g == '(') depth++;
+                    else if (g == ')' && --depth == 0) break;
+                }
+                consumed = j - i + 1;
+            }
+
+            char quantifier = (i + consumed < regex.length()) ? regex.charAt(i + consumed) : 0;
+            boolean optional = quantifier == '?' || quantifier == '*' || quantifier == '{';
+            if (literal && !optional) current.append(literalChar);
+            if (!literal || optional || quantifier == '+') {
+                if (best == null || current.length() > best.length()) best = current.toString();
+                current.setLength(0);
+            }
+            i += consumed - 1;
+        }
+        if (best == null || current.length() > best.length()) best = current.toString();
+        return best.isEmpty() ? null : best;
+    }
+
+}
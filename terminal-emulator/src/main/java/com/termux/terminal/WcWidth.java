@@ -1,10 +1,17 @@
 package com.termux.terminal;
 
+import java.util.Arrays;
+
 /**
  * Implementation of wcwidth(3) for Unicode 15.
  *
  * Implementation from https://github.com/jquast/wcwidth but we return 0 for unprintable characters.
  *
+ * The widths of all code points are looked up in a two-level table built from {@link #ZERO_WIDTH} and
+ * {@link #WIDE_EASTASIAN} when the class is loaded: {@link #BLOCK_INDEX} gives the offset of the block of a code point
+ * in {@link #BLOCK_WIDTHS}, which holds the widths of the code points of each distinct block packed into 2 bits each.
+ * Most blocks are the same (all width 1, or all width 2 for CJK), so the tables take about 15 kB.
+ *
  * IMPORTANT:
  * Must be kept in sync with the following:
  * https://github.com/termux/wcwidth
@@ -490,6 +497,114 @@ public final class WcWidth {
     };
 
 
+    /** The number of code points in a block of the two-level table is 2 to the power of this. */
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    /** The number of ints holding the 2 bit widths of the code points in a block. */
+    private static final int INTS_PER_BLOCK = BLOCK_SIZE / 16;
+    /** The number of code points covered by the table, which is all of Unicode. */
+    private static final int CODE_POINTS = Character.MAX_CODE_POINT + 1;
+
+    /** The offset in {@link #BLOCK_WIDTHS} of the widths of each block of code points. */
+    private static final char[] BLOCK_INDEX = new char[CODE_POINTS >> BLOCK_SHIFT];
+    /** The widths of the code points of the distinct blocks, 16 per int starting at the lowest bits. */
+    private static final int[] BLOCK_WIDTHS;
+
+    static {
+        int[] widths = new int[16 * INTS_PER_BLOCK];
+        int usedInts = 0, narrowOffset = -1, wideOffset = -1;
+        int[] blockWidths = new int[INTS_PER_BLOCK];
+        int zeroWidthRange = 0, wideRange = 0;
+        for (int block = 0; block < BLOCK_INDEX.length; block++) {
+            int first = block << BLOCK_SHIFT, last = first + BLOCK_SIZE - 1;
+            if (first < 0x2100) {
+                // The special cases in computeWidth() are all below 0x2100:
+                Arrays.fill(blockWidths, 0);
+                for (int i = 0; i < BLOCK_SIZE; i++)
+                    blockWidths[i >> 4] |= computeWidth(first + i) << ((i & 15) << 1);
+            } else {
+                zeroWidthRange = skipRanges(ZERO_WIDTH, zeroWidthRange, first);
+                wideRange = skipRanges(WIDE_EASTASIAN, wideRange, first);
+                int nextZeroWidth = (zeroWidthRange < ZERO_WIDTH.length) ? ZERO_WIDTH[zeroWidthRange][0] : CODE_POINTS;
+                int nextWide = (wideRange < WIDE_EASTASIAN.length) ? WIDE_EASTASIAN[wideRange][0] : CODE_POINTS;
+                boolean wide = nextWide <= first;
+                // The last code point from the first one on with the same width, in which case whole blocks are the same:
+                int sameWidthEnd = wide ? Math.min(WIDE_EASTASIAN[wideRange][1], nextZeroWidth - 1) : Math.min(nextWide, nextZeroWidth) - 1;
+                if (sameWidthEnd >= last) {
+                    int sharedOffset = wide ? wideOffset : narrowOffset;
+                    if (sharedOffset >= 0) {
+                        int endBlock = Math.min(BLOCK_INDEX.length, (sameWidthEnd + 1) >> BLOCK_SHIFT);
+                        Arrays.fill(BLOCK_INDEX, block, endBlock, (char) sharedOffset);
+                        block = endBlock - 1;
+                        continue;
+                    }
+                    Arrays.fill(blockWidths, wide ? 0xAAAAAAAA : 0x55555555);
+                } else {
+                    // Zero width is checked before wide:
+                    Arrays.fill(blockWidths, 0x55555555);
+                    paintRanges(blockWidths, first, last, WIDE_EASTASIAN, wideRange, 2);
+                    paintRanges(blockWidths, first, last, ZERO_WIDTH, zeroWidthRange, 0);
+                }
+            }
+
+            // Blocks of one width throughout are shared, and the others compared with those before them:
+            int uniformBits = blockWidths[0];
+            for (int i = 1; i < INTS_PER_BLOCK && uniformBits != 0; i++)
+                if (blockWidths[i] != uniformBits) uniformBits = 0;
+            int offset = -1;
+            if (uniformBits == 0x55555555) {
+                offset = narrowOffset;
+            } else if (uniformBits == 0xAAAAAAAA) {
+                offset = wideOffset;
+            } else {
+                for (int other = 0; other < usedInts && offset < 0; other += INTS_PER_BLOCK)
+                    if (blockEquals(widths, other, blockWidths)) offset = other;
+            }
+
+            if (offset < 0) {
+                if (usedInts + INTS_PER_BLOCK > widths.length) widths = Arrays.copyOf(widths, widths.length * 2);
+                System.arraycopy(blockWidths, 0, widths, usedInts, INTS_PER_BLOCK);
+                offset = usedInts;
+                usedInts += INTS_PER_BLOCK;
+                if (uniformBits == 0x55555555) narrowOffset = offset;
+                else if (uniformBits == 0xAAAAAAAA) wideOffset = offset;
+            }
+            BLOCK_INDEX[block] = (char) offset;
+        }
+        BLOCK_WIDTHS = Arrays.copyOf(widths, usedInts);
+    }
+
+    /** The first range of a sorted table which does not end before a code point. */
+    private static int skipRanges(int[][] table, int range, int ucs) {
+        while (range < table.length && table[range][1] < ucs) range++;
+        return range;
+    }
+
+    /** Set the width of the code points of a block in the ranges of a table, starting at the first range not before it. */
+    private static void paintRanges(int[] blockWidths, int first, int last, int[][] table, int range, int width) {
+        for (int i = range; i < table.length && table[i][0] <= last; i++) {
+            int start = Math.max(first, table[i][0]) - first, end = Math.min(last, table[i][1]) - first;
+            while (start <= end) {
+                int index = start >> 4;
+                if ((start & 15) == 0 && end - start >= 15) {
+                    // All 16 code points of the int:
+                    blockWidths[index] = width * 0x55555555;
+                    start += 16;
+                } else {
+                    int shift = (start & 15) << 1;
+                    blockWidths[index] = (blockWidths[index] & ~(3 << shift)) | (width << shift);
+                    start++;
+                }
+            }
+        }
+    }
+
+    private static boolean blockEquals(int[] widths, int offset, int[] blockWidths) {
+        for (int i = 0; i < INTS_PER_BLOCK; i++)
+            if (widths[offset + i] != blockWidths[i]) return false;
+        return true;
+    }
+
     private static boolean intable(int[][] table, int c) {
         // First quick check f|| Latin1 etc. characters.
         if (c < table[0][0]) return false;
@@ -512,6 +627,18 @@ public final class WcWidth {
 
     /** Return the terminal display width of a code point: 0, 1 || 2. */
     public static int width(int ucs) {
+        // A grapheme cluster interned as a single code point, see GraphemeClusters:
+        if (ucs >= GraphemeClusters.FIRST_ID && ucs <= GraphemeClusters.LAST_ID) return GraphemeClusters.width(ucs);
+        if (ucs < 0 || ucs >= CODE_POINTS) return (ucs < 0) ? 0 : 1;
+        int bits = BLOCK_WIDTHS[BLOCK_INDEX[ucs >> BLOCK_SHIFT] + ((ucs & (BLOCK_SIZE - 1)) >> 4)];
+        return (bits >>> ((ucs & 15) << 1)) & 3;
+    }
+
+    /**
+     * The width of a code point from the tables, as {@link #width(int)} returns it from the two-level table. Package
+     * private so that tests can compare the two.
+     */
+    static int computeWidth(int ucs) {
         if (ucs == 0 ||
             ucs == 0x034F ||
             (0x200B <= ucs && ucs <= 0x200F) ||
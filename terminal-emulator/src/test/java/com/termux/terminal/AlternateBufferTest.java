@@ -0,0 +1,92 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AlternateBufferTest {
+
+    /** Let the alternate buffer be left longer ago than it is kept for. */
+    private static void letReleaseDelayPass(TerminalEmulator emulator) {
+        emulator.mAltBufferLeftNanos -= TerminalEmulator.ALT_BUFFER_RELEASE_DELAY_NANOS + 1;
+    }
+
+    @Test
+    public void testCreatedWhenSwitchedTo() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "main\r\n");
+        assertNull(emulator.mAltBuffer);
+        long mainOnlyMemory = emulator.getMemoryUsage();
+
+        for (String mode : new String[]{"47", "1047", "1049"}) {
+            append(emulator, "\033[?" + mode + "h");
+            assertTrue(mode, emulator.isAlternateBufferActive());
+            assertNotNull(emulator.mAltBuffer);
+            assertTrue(emulator.getMemoryUsage() > mainOnlyMemory);
+            append(emulator, "\033[?" + mode + "l");
+            assertFalse(emulator.isAlternateBufferActive());
+            letReleaseDelayPass(emulator);
+            append(emulator, "");
+            assertNull(emulator.mAltBuffer);
+        }
+        assertEquals("main", emulator.getScreen().getTranscriptText());
+    }
+
+    @Test
+    public void testKeptForDelayAfterLeft() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "\033[?1049hless\033[?1049l");
+        TerminalBuffer altBuffer = emulator.mAltBuffer;
+        assertNotNull(altBuffer);
+        append(emulator, "output");
+        assertSame(altBuffer, emulator.mAltBuffer);
+
+        // Switching back within the delay reuses it, cleared:
+        append(emulator, "\033[?1049h");
+        assertSame(altBuffer, emulator.mAltBuffer);
+        assertEquals("", emulator.getScreen().getTranscriptText());
+        append(emulator, "\033[?1049l");
+
+        letReleaseDelayPass(emulator);
+        append(emulator, "\r\nmore");
+        assertNull(emulator.mAltBuffer);
+        assertEquals("output\nmore", emulator.getScreen().getTranscriptText());
+    }
+
+    @Test
+    public void testNotReleasedWhileActive() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "\033[?1049h");
+        letReleaseDelayPass(emulator);
+        append(emulator, "top");
+        emulator.releaseAlternateBuffer();
+        assertNotNull(emulator.mAltBuffer);
+        assertTrue(emulator.isAlternateBufferActive());
+        assertEquals("top", emulator.getScreen().getTranscriptText());
+    }
+
+    @Test
+    public void testResize() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "\033[?1049h\033[?1049l");
+        assertNotNull(emulator.mAltBuffer);
+        // An alternate buffer not in use is released instead of resized:
+        emulator.resize(30, 8, 10, 20);
+        assertNull(emulator.mAltBuffer);
+
+        append(emulator, "\033[?1049hvim");
+        emulator.resize(25, 6, 10, 20);
+        assertTrue(emulator.isAlternateBufferActive());
+        assertEquals(25, emulator.mAltBuffer.mColumns);
+        assertEquals(6, emulator.mAltBuffer.mScreenRows);
+        assertEquals("vim", emulator.getScreen().getTranscriptText());
+    }
+
+}
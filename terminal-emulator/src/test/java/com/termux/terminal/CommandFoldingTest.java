@@ -0,0 +1,156 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static com.termux.terminal.TerminalTestSupport.runCommand;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandFoldingTest {
+
+    private static final String OUTPUT = "out 0\r\nout 1\r\nout 2\r\nout 3\r\nout 4\r\nout 5\r\nout 6\r\nout 7\r\nout 8\r\nout 9\r\n";
+
+    /** The rows shown from the top of the history to the bottom of the screen. */
+    private static List<Integer> shownRows(TerminalBuffer screen) {
+        List<Integer> rows = new ArrayList<>();
+        for (int row = screen.toShownRow(-screen.getActiveTranscriptRows()); row < screen.mScreenRows; row = screen.nextShownRow(row))
+            rows.add(row);
+        return rows;
+    }
+
+    /** An emulator with a command with ten rows of output which has scrolled into the history. */
+    private static TerminalEmulator newEmulatorWithOutput() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        runCommand(emulator, "seq", OUTPUT, 0);
+        runCommand(emulator, "ls", "more 0\r\nmore 1\r\nmore 2\r\nmore 3\r\nmore 4\r\nmore 5\r\n", 0);
+        return emulator;
+    }
+
+    @Test
+    public void testFoldedOutputIsSkipped() {
+        TerminalEmulator emulator = newEmulatorWithOutput();
+        TerminalBuffer screen = emulator.getScreen();
+        CommandMarks marks = screen.getCommandMarks();
+        CommandMarks.Command seq = marks.get(0);
+        int promptRow = seq.getRow(CommandMarks.MARK_PROMPT), endRow = seq.getRow(CommandMarks.MARK_END);
+        assertEquals(promptRow + 11, endRow);
+        assertTrue(endRow < 0);
+        List<Integer> unfoldedRows = shownRows(screen);
+        String text = screen.getTranscriptText();
+
+        assertTrue(marks.canFold(seq));
+        assertTrue(marks.setFolded(seq, true));
+        assertTrue(seq.isFolded());
+        assertEquals(endRow, screen.nextShownRow(promptRow));
+        assertEquals(promptRow, screen.previousShownRow(endRow));
+        assertEquals(endRow, screen.toShownRow(promptRow + 5));
+        assertEquals(unfoldedRows.size() - 10, shownRows(screen).size());
+        assertEquals(unfoldedRows.size() - 10, screen.getShownRowCount(-screen.getActiveTranscriptRows(), screen.mScreenRows));
+
+        long absolutePromptRow = screen.getScrollCount() + promptRow;
+        assertEquals(-1, marks.foldedRangeContaining(absolutePromptRow));
+        int range = marks.foldedRangeContaining(absolutePromptRow + 1);
+        assertEquals(range, marks.foldedRangeContaining(absolutePromptRow + 10));
+        assertEquals(absolutePromptRow + 1, marks.getFoldedRangeStart(range));
+        assertEquals(absolutePromptRow + 10, marks.getFoldedRangeEnd(range));
+        assertEquals(-1, marks.foldedRangeContaining(absolutePromptRow + 11));
+        assertEquals(10, marks.countFoldedRows(absolutePromptRow, absolutePromptRow + 20));
+        assertEquals(3, marks.countFoldedRows(absolutePromptRow + 8, absolutePromptRow + 20));
+        // Folding only hides the rows:
+        assertEquals(text, screen.getTranscriptText());
+        assertEquals("out 0\nout 1\nout 2\nout 3\nout 4\nout 5\nout 6\nout 7\nout 8\nout 9", marks.getOutputText(seq));
+
+        assertTrue(marks.setFolded(seq, false));
+        assertEquals(unfoldedRows, shownRows(screen));
+        assertEquals(text, screen.getTranscriptText());
+    }
+
+    @Test
+    public void testScreenRowsAreShown() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        runCommand(emulator, "seq", OUTPUT, 0);
+        append(emulator, "$ \r\n$ ");
+        TerminalBuffer screen = emulator.getScreen();
+        CommandMarks marks = screen.getCommandMarks();
+        CommandMarks.Command seq = marks.get(0);
+        // The output continues on the screen, where it is still shown:
+        assertTrue(seq.getRow(CommandMarks.MARK_END) > 0);
+        assertTrue(marks.setFolded(seq, true));
+        assertEquals(0, screen.nextShownRow(seq.getRow(CommandMarks.MARK_PROMPT)));
+        assertEquals(1, screen.nextShownRow(0));
+        // Of the history only the prompt row is left:
+        assertEquals(1, shownRows(screen).size() - screen.mScreenRows);
+    }
+
+    @Test
+    public void testCannotFoldWithoutOutput() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        runCommand(emulator, "true", "", 0);
+        append(emulator, "\033]133;A\007$ \033]133;B\007sleep\r\n\033]133;C\007");
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        assertFalse(marks.canFold(marks.get(0)));
+        assertFalse(marks.setFolded(marks.get(0), true));
+        // Not finished:
+        assertFalse(marks.canFold(marks.get(1)));
+        assertFalse(marks.get(1).isFolded());
+    }
+
+    @Test
+    public void testFoldScrollAndUnfold() {
+        // The same output to an emulator where nothing is folded, to compare with:
+        TerminalEmulator emulator = newEmulatorWithOutput(), reference = newEmulatorWithOutput();
+        TerminalBuffer screen = emulator.getScreen();
+        CommandMarks marks = screen.getCommandMarks();
+        CommandMarks.Command seq = marks.get(0);
+        assertTrue(marks.setFolded(seq, true));
+
+        for (int line = 0; line < 7; line++) {
+            append(emulator, "late " + line + "\r\n");
+            append(reference, "late " + line + "\r\n");
+        }
+        // The fold moves with its rows:
+        int promptRow = seq.getRow(CommandMarks.MARK_PROMPT);
+        assertEquals(reference.getScreen().getCommandMarks().get(0).getRow(CommandMarks.MARK_PROMPT), promptRow);
+        assertEquals(promptRow + 11, screen.nextShownRow(promptRow));
+        assertEquals(shownRows(reference.getScreen()).size() - 10, shownRows(screen).size());
+
+        assertTrue(marks.setFolded(seq, false));
+        assertEquals(shownRows(reference.getScreen()), shownRows(screen));
+        assertEquals(reference.getScreen().getTranscriptText(), screen.getTranscriptText());
+    }
+
+    @Test
+    public void testFoldResizeAndUnfold() {
+        TerminalEmulator emulator = newEmulatorWithOutput(), reference = newEmulatorWithOutput();
+        TerminalBuffer screen = emulator.getScreen();
+        CommandMarks marks = screen.getCommandMarks();
+        CommandMarks.Command seq = marks.get(0);
+        assertTrue(marks.setFolded(seq, true));
+
+        for (TerminalEmulator resized : new TerminalEmulator[]{emulator, reference}) {
+            // Narrow enough for the prompt and command line to wrap:
+            resized.resize(4, 5, 10, 20);
+            while (resized.reflowPendingHistory(3)) ;
+        }
+        assertTrue(seq.isFolded());
+        int outputRows = seq.getRow(CommandMarks.MARK_END) - seq.getRow(CommandMarks.MARK_OUTPUT);
+        assertEquals(20, outputRows);
+        assertEquals(seq.getRow(CommandMarks.MARK_END), screen.nextShownRow(seq.getRow(CommandMarks.MARK_OUTPUT) - 1));
+        assertEquals(shownRows(reference.getScreen()).size() - outputRows, shownRows(screen).size());
+
+        emulator.resize(20, 5, 10, 20);
+        reference.resize(20, 5, 10, 20);
+        assertTrue(marks.setFolded(seq, false));
+        assertEquals(shownRows(reference.getScreen()), shownRows(screen));
+        assertEquals(reference.getScreen().getTranscriptText(), screen.getTranscriptText());
+        assertEquals(reference.getScreen().getCommandMarks().getOutputText(reference.getScreen().getCommandMarks().get(0)),
+            marks.getOutputText(seq));
+    }
+
+}
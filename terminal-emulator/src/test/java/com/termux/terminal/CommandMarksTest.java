@@ -0,0 +1,155 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static com.termux.terminal.TerminalTestSupport.runCommand;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CommandMarksTest {
+
+    @Test
+    public void testMarksInOrder() {
+        TerminalEmulator emulator = newEmulator(20, 10, 100);
+        runCommand(emulator, "ls", "a\r\nb\r\n", 0);
+        runCommand(emulator, "false", "", 1);
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        assertEquals(2, marks.size());
+
+        CommandMarks.Command ls = marks.get(0);
+        assertTrue(ls.isFinished());
+        assertEquals(0, ls.getRow(CommandMarks.MARK_PROMPT));
+        assertEquals(0, ls.getColumn(CommandMarks.MARK_PROMPT));
+        assertEquals(0, ls.getRow(CommandMarks.MARK_COMMAND));
+        assertEquals(2, ls.getColumn(CommandMarks.MARK_COMMAND));
+        assertEquals(1, ls.getRow(CommandMarks.MARK_OUTPUT));
+        assertEquals(3, ls.getRow(CommandMarks.MARK_END));
+        assertEquals(0, ls.getExitCode());
+
+        CommandMarks.Command fail = marks.get(1);
+        assertEquals(3, fail.getRow(CommandMarks.MARK_PROMPT));
+        assertEquals(1, fail.getExitCode());
+        assertEquals(0, marks.indexOfPromptAtOrBefore(2));
+        assertEquals(1, marks.indexOfPromptAtOrBefore(3));
+        assertEquals(-1, marks.indexOfPromptAtOrBefore(-1));
+    }
+
+    @Test
+    public void testMissingPromptStart() {
+        TerminalEmulator emulator = newEmulator(20, 10, 100);
+        append(emulator, "$ \033]133;B\007ls\r\n\033]133;C\007a\r\n\033]133;D;0\007");
+        append(emulator, "$ \033]133;B\007pwd\r\n\033]133;C\007");
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        // The second command line starts a new command, as the first already has one:
+        assertEquals(2, marks.size());
+        assertFalse(marks.get(0).hasMark(CommandMarks.MARK_PROMPT));
+        assertEquals("ls", marks.getCommandText(marks.get(0)));
+        assertEquals("a", marks.getOutputText(marks.get(0)));
+        assertEquals("pwd", marks.getCommandText(marks.get(1)));
+        assertFalse(marks.get(1).isFinished());
+        assertNull(marks.getOutputText(marks.get(1)));
+    }
+
+    @Test
+    public void testNewPromptEndsCommand() {
+        TerminalEmulator emulator = newEmulator(20, 10, 100);
+        append(emulator, "\033]133;A\007$ \033]133;B\007sleep\r\n\033]133;C\007^C\r\n\033]133;A\007$ ");
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        assertEquals(2, marks.size());
+        assertTrue(marks.get(0).isFinished());
+        assertEquals(-1, marks.get(0).getExitCode());
+        assertEquals("^C", marks.getOutputText(marks.get(0)));
+    }
+
+    @Test
+    public void testExitCodes() {
+        TerminalEmulator emulator = newEmulator(20, 10, 100);
+        String[] ends = {"D", "D;0", "D;127", "D;2;aid=1", "D;x"};
+        int[] exitCodes = {-1, 0, 127, 2, -1};
+        for (String end : ends) append(emulator, "\033]133;A\007$ \033]133;B\007cmd\r\n\033]133;C\007\033]133;" + end + "\007");
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        assertEquals(ends.length, marks.size());
+        for (int i = 0; i < ends.length; i++) assertEquals(ends[i], exitCodes[i], marks.get(i).getExitCode());
+    }
+
+    @Test
+    public void testOnlyMarkLettersAccepted() {
+        TerminalEmulator emulator = newEmulator(20, 10, 100);
+        append(emulator, "\033]133;Apple\007\033]133;\007\033]133;E\007\033]133;Da\007");
+        assertEquals(0, emulator.getScreen().getCommandMarks().size());
+        append(emulator, "\033]133;A;cl=m\007");
+        assertEquals(1, emulator.getScreen().getCommandMarks().size());
+    }
+
+    @Test
+    public void testText() {
+        TerminalEmulator emulator = newEmulator(10, 10, 100);
+        // The output wraps, and the command line is long enough to wrap as well:
+        runCommand(emulator, "echo 0123456789", "0123456789\r\nend\r\n", 0);
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        assertEquals("echo 0123456789", marks.getCommandText(marks.get(0)));
+        assertEquals("0123456789\nend", marks.getOutputText(marks.get(0)));
+    }
+
+    @Test
+    public void testMarksSurviveScrolling() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        runCommand(emulator, "ls", "a\r\nb\r\n", 0);
+        for (int line = 0; line < 20; line++) append(emulator, "more " + line + "\r\n");
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+        assertEquals(1, marks.size());
+        CommandMarks.Command ls = marks.get(0);
+        // The rows are now in the history, at the same rows of the transcript:
+        assertEquals(-emulator.getScreen().getActiveTranscriptRows(), ls.getRow(CommandMarks.MARK_PROMPT));
+        assertEquals(ls.getRow(CommandMarks.MARK_PROMPT) + 3, ls.getRow(CommandMarks.MARK_END));
+        assertEquals("ls", marks.getCommandText(ls));
+        assertEquals("a\nb", marks.getOutputText(ls));
+        assertEquals(0, marks.indexOfPromptAtOrBefore(ls.getRow(CommandMarks.MARK_PROMPT)));
+    }
+
+    @Test
+    public void testCommandsPrunedWithHistory() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        runCommand(emulator, "ls", "a\r\n", 0);
+        for (int line = 0; line < 110; line++) append(emulator, "more " + line + "\r\n");
+        assertEquals(0, emulator.getScreen().getCommandMarks().size());
+    }
+
+    @Test
+    public void testMarksSurviveResize() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        runCommand(emulator, "echo first", "first output\r\n", 0);
+        runCommand(emulator, "echo second", "second output\r\n", 3);
+        for (int line = 0; line < 10; line++) append(emulator, "more " + line + "\r\n");
+        CommandMarks marks = emulator.getScreen().getCommandMarks();
+
+        // Narrowing leaves the history, with the marks on it, waiting for a reflow:
+        emulator.resize(8, 5, 10, 20);
+        assertTrue(emulator.getScreen().hasPendingReflow());
+        assertEquals(2, marks.size());
+        assertFalse(marks.get(0).hasMark(CommandMarks.MARK_PROMPT));
+        assertEquals(-1, marks.indexOfPromptAtOrBefore(0));
+        assertNull(marks.getCommandText(marks.get(0)));
+
+        while (emulator.reflowPendingHistory(3)) ;
+        assertEquals(2, marks.size());
+        for (int i = 0; i < 2; i++) assertTrue(marks.get(i).hasMark(CommandMarks.MARK_PROMPT));
+        assertEquals("echo first", marks.getCommandText(marks.get(0)));
+        assertEquals("first output", marks.getOutputText(marks.get(0)).replace("\n", ""));
+        assertEquals("echo second", marks.getCommandText(marks.get(1)));
+        assertEquals(3, marks.get(1).getExitCode());
+        assertEquals(1, marks.indexOfPromptAtOrBefore(marks.get(1).getRow(CommandMarks.MARK_PROMPT)));
+        assertEquals(0, marks.indexOfPromptAtOrBefore(marks.get(1).getRow(CommandMarks.MARK_PROMPT) - 1));
+
+        emulator.resize(30, 5, 10, 20);
+        while (emulator.reflowPendingHistory(3)) ;
+        assertEquals("echo first", marks.getCommandText(marks.get(0)));
+        assertEquals("first output", marks.getOutputText(marks.get(0)));
+        assertEquals("second output", marks.getOutputText(marks.get(1)));
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DirtyRowsTest {
+
+    /** The dirty rows from a row to the bottom of the screen, as 1 for dirty and 0 for clean. */
+    private static String dirtyRows(TerminalBuffer buffer, int firstRow) {
+        StringBuilder rows = new StringBuilder();
+        for (int row = firstRow; row < buffer.mScreenRows; row++) rows.append(buffer.isRowDirty(row) ? '1' : '0');
+        return rows.toString();
+    }
+
+    /** An emulator with a full screen of text and the cursor on the last row, drawn and with no dirty rows. */
+    private static TerminalEmulator newDrawnEmulator() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "row 0\r\nrow 1\r\nrow 2\r\nrow 3\r\nrow 4");
+        TerminalBuffer buffer = emulator.getScreen();
+        assertTrue(buffer.areAllRowsDirty());
+        buffer.clearDirtyRows();
+        assertEquals("00000", dirtyRows(buffer, 0));
+        return emulator;
+    }
+
+    @Test
+    public void testWrittenRowsDirty() {
+        TerminalEmulator emulator = newDrawnEmulator();
+        TerminalBuffer buffer = emulator.getScreen();
+        append(emulator, "\033[2;3Hx");
+        assertEquals("01000", dirtyRows(buffer, 0));
+        // Erasing and inserting lines:
+        append(emulator, "\033[4;1H\033[K");
+        assertEquals("01010", dirtyRows(buffer, 0));
+        append(emulator, "\033[3;1H\033[L");
+        assertEquals("01111", dirtyRows(buffer, 0));
+        assertEquals(0, buffer.getDirtyScrollRows());
+        buffer.clearDirtyRows();
+        assertEquals("00000", dirtyRows(buffer, 0));
+    }
+
+    @Test
+    public void testBitsMoveWithScrolling() {
+        TerminalEmulator emulator = newDrawnEmulator();
+        TerminalBuffer buffer = emulator.getScreen();
+        append(emulator, "\033[2;1Hx\033[5;1H\r\n\r\n");
+        assertEquals(2, buffer.getDirtyScrollRows());
+        // The written row is now at the top of the history, the rows scrolled up are clean, and the new rows dirty:
+        assertEquals("01" + "00011", dirtyRows(buffer, -2));
+        buffer.clearDirtyRows();
+        assertEquals(0, buffer.getDirtyScrollRows());
+        assertEquals("00000", dirtyRows(buffer, 0));
+    }
+
+    @Test
+    public void testScrollingWithinMargins() {
+        TerminalEmulator emulator = newDrawnEmulator();
+        TerminalBuffer buffer = emulator.getScreen();
+        // Margins from the second to the fourth row, scrolled up by a new line on the fourth:
+        append(emulator, "\033[2;4r\033[4;1H\n");
+        assertEquals(1, buffer.getDirtyScrollRows());
+        // The rows outside of the margins kept their place, so their numbers changed. The scrolled rows did not:
+        assertEquals("1" + "10011", dirtyRows(buffer, -1));
+        assertEquals("row 0\nrow 2\nrow 3\n\nrow 4", buffer.getSelectedText(0, 0, 19, 4).trim());
+    }
+
+    @Test
+    public void testAllDirty() {
+        TerminalEmulator emulator = newDrawnEmulator();
+        TerminalBuffer buffer = emulator.getScreen();
+        emulator.resize(30, 5, 10, 20);
+        assertTrue(buffer.areAllRowsDirty());
+        buffer.clearDirtyRows();
+
+        // Reverse video changes how all rows are drawn:
+        append(emulator, "\033[?5h");
+        assertEquals("11111", dirtyRows(buffer, 0));
+        buffer.clearDirtyRows();
+
+        // Scrolling further than the bits are kept for:
+        for (int line = 0; line < buffer.mTotalRows; line++) append(emulator, "\r\nline " + line);
+        append(emulator, "x");
+        assertTrue(buffer.areAllRowsDirty());
+        buffer.clearDirtyRows();
+        assertFalse(buffer.areAllRowsDirty());
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class GraphemeClustersTest {
+
+    /** A thumbs up with a skin tone modifier, two wide code points joined into one wide cluster. */
+    private static final String THUMBS_UP = "👍🏽";
+    /** A family of three joined by zero width joiners. */
+    private static final String FAMILY = "👨‍👩‍👧";
+
+    private static TerminalEmulator newEmulator() {
+        return TerminalTestSupport.newEmulator(20, 5, 100);
+    }
+
+    @Test
+    public void testNotJoinedUnlessEnabled() {
+        TerminalEmulator emulator = newEmulator();
+        append(emulator, THUMBS_UP);
+        assertEquals(4, emulator.getCursorCol());
+
+        append(emulator, "\r\n\033[?2027h" + THUMBS_UP);
+        assertEquals(2, emulator.getCursorCol());
+
+        // A reset leaves the mode off, as it is initially:
+        append(emulator, "\033c" + THUMBS_UP);
+        assertEquals(4, emulator.getCursorCol());
+    }
+
+    @Test
+    public void testTablesArePerEmulator() {
+        TerminalEmulator first = newEmulator(), second = newEmulator();
+        append(first, "\033[?2027h" + THUMBS_UP);
+        append(second, "\033[?2027h" + FAMILY);
+        // Each emulator only holds the clusters written to it, the family having been joined one person at a time:
+        assertEquals(1, first.getScreen().getGraphemeClusters().getCount());
+        assertEquals(2, second.getScreen().getGraphemeClusters().getCount());
+        assertEquals(THUMBS_UP, first.getScreen().getTranscriptText());
+        assertEquals(FAMILY, second.getScreen().getTranscriptText());
+        assertEquals(2, first.getCursorCol());
+        assertEquals(2, second.getCursorCol());
+    }
+
+    @Test
+    public void testSearchMatchesClusterText() {
+        TerminalEmulator emulator = newEmulator();
+        append(emulator, "\033[?2027ha " + FAMILY + " b");
+        TranscriptSearch.Query query = emulator.getScreen().getTranscriptSearch().query(FAMILY + " b", false, false, 10);
+        while (query.step(100)) ;
+        List<TranscriptSearch.Match> matches = query.getMatches();
+        assertEquals(1, matches.size());
+        // The cluster takes the two columns of its id in the row:
+        assertEquals(2, matches.get(0).startColumn);
+        assertEquals(6, matches.get(0).endColumn);
+        assertEquals(matches.get(0).startRow, matches.get(0).endRow);
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class HistoryRowSharingTest {
+
+    private static TerminalRow row(TerminalBuffer buffer, int externalRow) {
+        return buffer.getLineForReading(buffer.externalToInternalRow(externalRow));
+    }
+
+    @Test
+    public void testIdenticalHistoryRowsShared() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        for (int line = 0; line < 30; line++) append(emulator, "y\r\n");
+        TerminalBuffer buffer = emulator.getScreen();
+        TerminalRow first = row(buffer, -1);
+        assertTrue(first.mShared);
+        for (int row = -2; row >= -buffer.getActiveTranscriptRows(); row--) assertSame(first, row(buffer, row));
+        assertEquals(String.join("\n", Collections.nCopies(30, "y")), buffer.getTranscriptText());
+    }
+
+    @Test
+    public void testDifferentRowsNotShared() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        // Other text, another style, and the same text wrapped or not:
+        append(emulator, "y\r\nn\r\n\033[31my\033[0m\r\n" + "yyyyyyyyyyyyyyyyyyyyy\r\nyyyyyyyyyyyyyyyyyyyy\r\n\r\n\r\n\r\n\r\n");
+        TerminalBuffer buffer = emulator.getScreen();
+        int top = -buffer.getActiveTranscriptRows();
+        assertNotSame(row(buffer, top), row(buffer, top + 1));
+        assertNotSame(row(buffer, top), row(buffer, top + 2));
+        assertTrue(row(buffer, top + 3).mLineWrap);
+        assertNotSame(row(buffer, top + 3), row(buffer, top + 5));
+        // The rest of the wrapped line is the same as the first line:
+        assertSame(row(buffer, top), row(buffer, top + 4));
+        assertEquals("y\nn\ny\nyyyyyyyyyyyyyyyyyyyyy\nyyyyyyyyyyyyyyyyyyyy", buffer.getTranscriptText().trim());
+    }
+
+    @Test
+    public void testSharedRowCopiedOnWrite() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        for (int line = 0; line < 10; line++) append(emulator, "line\r\n");
+        TerminalBuffer buffer = emulator.getScreen();
+        TerminalRow shared = row(buffer, -1);
+        assertSame(shared, row(buffer, -2));
+
+        // Growing the screen brings the shared history rows back to it, where they can be written to:
+        emulator.resize(20, 10, 10, 20);
+        int firstScreenRowWithLine = 0;
+        while (row(buffer, firstScreenRowWithLine) != shared) firstScreenRowWithLine++;
+        assertSame(shared, row(buffer, firstScreenRowWithLine + 1));
+        append(emulator, "\033[" + (firstScreenRowWithLine + 1) + ";1HL");
+
+        TerminalRow written = row(buffer, firstScreenRowWithLine);
+        assertNotSame(shared, written);
+        assertEquals("Line", buffer.getSelectedText(0, firstScreenRowWithLine, 19, firstScreenRowWithLine).trim());
+        // The other lines sharing the row are unchanged:
+        assertSame(shared, row(buffer, firstScreenRowWithLine + 1));
+        assertEquals("line", buffer.getSelectedText(0, firstScreenRowWithLine + 1, 19, firstScreenRowWithLine + 1).trim());
+        assertEquals("line", buffer.getSelectedText(0, -1, 19, -1).trim());
+    }
+
+    @Test
+    public void testSharedRowNotReusedFromPool() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        for (int line = 0; line < 10; line++) append(emulator, "same\r\n");
+        TerminalBuffer buffer = emulator.getScreen();
+        TerminalRow shared = row(buffer, -1);
+        // Writing other lines takes rows from the pool, which the shared row must not be taken from:
+        for (int line = 0; line < 10; line++) append(emulator, "other " + line + "\r\n");
+        int top = -buffer.getActiveTranscriptRows();
+        for (int row = top; row < top + 10; row++) {
+            assertSame(shared, row(buffer, row));
+            assertEquals("same", buffer.getSelectedText(0, row, 19, row).trim());
+        }
+    }
+
+}
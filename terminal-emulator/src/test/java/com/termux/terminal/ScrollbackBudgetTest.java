@@ -0,0 +1,103 @@
+package com.termux.terminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ScrollbackBudgetTest {
+
+    private static final int COLUMNS = 80, ROWS = 24, TRANSCRIPT_ROWS = 5000;
+
+    private static TerminalEmulator newEmulator() {
+        return TerminalTestSupport.newEmulator(COLUMNS, ROWS, TRANSCRIPT_ROWS);
+    }
+
+    /** Append lines of text, checking the budget after each as a session client does after each read from the process. */
+    private static void appendLines(ScrollbackBudget budget, TerminalEmulator emulator, int lines) {
+        for (int line = 0; line < lines; line++) {
+            byte[] bytes = ("line " + line + " of some output to keep in the history\r\n").getBytes(StandardCharsets.UTF_8);
+            emulator.append(bytes, bytes.length);
+            budget.onTextChanged(emulator);
+        }
+    }
+
+    @Test
+    public void testBlankRowsAreCountedOnce() {
+        TerminalEmulator emulator = newEmulator();
+        long emptyBytes = emulator.getMemoryUsage();
+        byte[] newlines = new byte[1000];
+        Arrays.fill(newlines, (byte) '\n');
+        emulator.append(newlines, newlines.length);
+        emulator.compactHistory();
+        // Blank history rows share one row, so only the screen rows and a reference per row are added:
+        assertTrue(emulator.getMemoryUsage() - emptyBytes < 1000L * 8 + 2L * ROWS * COLUMNS * 10);
+    }
+
+    @Test
+    public void testBudgetIsKeptAsHistoryGrows() {
+        TerminalEmulator emulator = newEmulator();
+        long budgetBytes = emulator.getMemoryUsage() + 1000L * 300;
+        ScrollbackBudget budget = new ScrollbackBudget(budgetBytes);
+        budget.register(emulator, null);
+        budget.setForeground(emulator, false);
+
+        // Without going to the background or any trim memory callback:
+        appendLines(budget, emulator, 3000);
+        assertTrue(emulator.getHistoryRows() < 3000);
+        assertTrue(emulator.getMemoryUsage() <= budgetBytes);
+        assertTrue(budget.measureUsedBytes() <= budgetBytes);
+        // Trimmed below the budget, to not trim again for each line:
+        long trimmedRows = emulator.getHistoryRows();
+        appendLines(budget, emulator, 1);
+        assertEquals(trimmedRows + 1, emulator.getHistoryRows());
+    }
+
+    @Test
+    public void testEstimateFollowsGrowthWithoutMeasuring() {
+        TerminalEmulator emulator = newEmulator();
+        ScrollbackBudget budget = new ScrollbackBudget(Long.MAX_VALUE);
+        budget.register(emulator, null);
+        long before = budget.getUsedBytes();
+        appendLines(budget, emulator, 1000);
+        long estimate = budget.getUsedBytes();
+        long measured = budget.measureUsedBytes();
+        assertTrue(estimate > before);
+        // Within a factor of two of what is actually held:
+        assertTrue("estimate " + estimate + ", measured " + measured, estimate <= 2 * measured && measured <= 2 * estimate);
+    }
+
+    @Test
+    public void testBackgroundIsTrimmedBeforeForeground() {
+        TerminalEmulator background = newEmulator(), foreground = newEmulator();
+        ScrollbackBudget budget = new ScrollbackBudget(Long.MAX_VALUE);
+        budget.register(background, null);
+        budget.register(foreground, null);
+        budget.setForeground(background, false);
+        budget.setForeground(foreground, true);
+        appendLines(budget, background, 2000);
+        appendLines(budget, foreground, 2000);
+
+        final boolean[] trimmed = new boolean[1];
+        budget.unregister(background);
+        budget.register(background, () -> trimmed[0] = true);
+        budget.setForeground(background, false);
+        int backgroundRows = background.getHistoryRows(), foregroundRows = foreground.getHistoryRows();
+        long used = budget.measureUsedBytes();
+        budget.trimTo(used - background.getMemoryUsage() / 4, false);
+        assertTrue(trimmed[0]);
+        assertTrue(background.getHistoryRows() < backgroundRows);
+        assertEquals(foregroundRows, foreground.getHistoryRows());
+
+        // Unless critically low on memory, the foreground keeps some history:
+        budget.trimTo(0, false);
+        assertEquals(0, background.getHistoryRows());
+        assertEquals(ScrollbackBudget.MIN_FOREGROUND_HISTORY_ROWS, foreground.getHistoryRows());
+        budget.trimTo(0, true);
+        assertEquals(0, foreground.getHistoryRows());
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SnapshotReleaseTest {
+
+    private static TerminalRow row(TerminalBuffer buffer, int externalRow) {
+        return buffer.getLineForReading(buffer.externalToInternalRow(externalRow));
+    }
+
+    @Test
+    public void testReleasedRowsWrittenInPlace() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "first\r\nsecond");
+        TerminalBuffer buffer = emulator.getScreen();
+        TerminalRow first = row(buffer, 0), second = row(buffer, 1);
+
+        TerminalBuffer snapshot = buffer.snapshot(0, 4, true);
+        // Written while the snapshot is read, as while a frame is drawn on another thread:
+        append(emulator, "\033[1;1HF");
+        assertNotSame(first, row(buffer, 0));
+        assertEquals("first", snapshot.getSelectedText(0, 0, 19, 0).trim());
+        assertEquals("First", buffer.getSelectedText(0, 0, 19, 0).trim());
+
+        buffer.releaseSnapshot(snapshot);
+        assertFalse(second.mShared);
+        append(emulator, "\033[2;1HS");
+        assertSame(second, row(buffer, 1));
+        assertEquals("Second", buffer.getSelectedText(0, 1, 19, 1).trim());
+    }
+
+    @Test
+    public void testRowsSharedOtherwiseStayShared() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "kept\r\nframe\r\n");
+        TerminalBuffer buffer = emulator.getScreen();
+        TerminalRow kept = row(buffer, 0), frame = row(buffer, 1);
+
+        // A row also in a snapshot which is not released, as taken when saving the screen, before or after:
+        TerminalBuffer saved = buffer.snapshot(0, 0);
+        TerminalBuffer snapshot = buffer.snapshot(0, 4, true);
+        TerminalBuffer savedLater = buffer.snapshot(1, 1);
+        buffer.releaseSnapshot(snapshot);
+        assertTrue(kept.mShared);
+        assertTrue(frame.mShared);
+        append(emulator, "\033[1;1HK\033[2;1HF");
+        assertEquals("kept", saved.getSelectedText(0, 0, 19, 0).trim());
+        assertEquals("frame", savedLater.getSelectedText(0, 1, 19, 1).trim());
+
+        // Blank rows are shared by all blank lines:
+        TerminalBuffer blankSnapshot = buffer.snapshot(0, 4, true);
+        TerminalRow blank = row(buffer, 4);
+        buffer.releaseSnapshot(blankSnapshot);
+        assertTrue(blank.mShared);
+    }
+
+    @Test
+    public void testSecondReleaseIgnored() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "row");
+        TerminalBuffer buffer = emulator.getScreen();
+        TerminalBuffer first = buffer.snapshot(0, 0, true);
+        buffer.releaseSnapshot(first);
+        TerminalBuffer second = buffer.snapshot(0, 0, true);
+        // Releasing the first snapshot again does not hand back the rows of the second, which is still read:
+        buffer.releaseSnapshot(first);
+        assertTrue(row(buffer, 0).mShared);
+        buffer.releaseSnapshot(second);
+        assertFalse(row(buffer, 0).mShared);
+    }
+
+}
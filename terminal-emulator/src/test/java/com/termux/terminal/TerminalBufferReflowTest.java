@@ -0,0 +1,108 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks that reflowing history lazily after a change of columns, see {@link TerminalBuffer#reflowPendingHistory(int)},
+ * gives the same screen, cursor and transcript as reflowing all of it on resize, for random output and resizes.
+ */
+public class TerminalBufferReflowTest {
+
+    private static final int SEEDS = 100;
+    private static final int STEPS = 3000;
+
+    /**
+     * Output to write, in random order. Left and right margins are left out: a wide character written with the cursor
+     * right of the right margin makes the emulator throw, which has nothing to do with reflow.
+     */
+    private static final String[] PIECES = {"hello ", "world", "\r\n", "\n", "\r", "\033[2J", "\033[H", "\033[K", "\033[1K",
+        "\033[J", "\033[31m", "\033[0m", "\033[44m", "\033[?1049h", "\033[?1049l", "\033[5;10r", "\033[r", "\033[3L", "\033[2M",
+        "\033[4@", "\033[3P", "\033[10;5H", "\033[A", "\033[B", "\033[20C", "中文字", "é", "😀", "\t", "\033M", "\033D", "\033[S",
+        "\033[T", "\033[2X", "\033[?7l", "\033[?7h", "0123456789abcdefghijklmnopqrstuvwxyz", "\033[3J", "\033c", "\033[?6h",
+        "\033[?6l", "\033[1;4;7m", "\033[2$x", "\033#8", "\033]133;A\007", "\033]133;D;1\007"};
+
+    @Test
+    public void testLazyReflowMatchesFullReflow() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            Random partial = new Random(~seed);
+            int columns = 20 + random.nextInt(40), rows = 5 + random.nextInt(20), transcriptRows = 100 + random.nextInt(200);
+            TerminalEmulator lazy = newEmulator(columns, rows, transcriptRows);
+            TerminalEmulator full = newEmulator(columns, rows, transcriptRows);
+            full.mMainBuffer.mDeferReflow = false;
+
+            for (int step = 0; step < STEPS; step++) {
+                boolean resized = random.nextInt(100) < 3;
+                if (resized) {
+                    int newColumns = 4 + random.nextInt(60), newRows = 4 + random.nextInt(30);
+                    lazy.resize(newColumns, newRows, 10, 20);
+                    full.resize(newColumns, newRows, 10, 20);
+                } else {
+                    byte[] bytes = PIECES[random.nextInt(PIECES.length)].getBytes(StandardCharsets.UTF_8);
+                    lazy.append(bytes, bytes.length);
+                    full.append(bytes, bytes.length);
+                }
+                lazy.reflowPendingHistory(partial.nextInt(3));
+
+                String where = "seed " + seed + " step " + step;
+                if (resized || step % 20 == 0) assertEquals(where, dumpScreen(full), dumpScreen(lazy));
+                // Reading the transcript reflows all pending history, so only check it now and then:
+                if (step % 500 == 0 || step == STEPS - 1) {
+                    assertEquals(where, full.getScreen().getTranscriptText(), lazy.getScreen().getTranscriptText());
+                    assertEquals(where, dumpRows(full, -full.getScreen().getActiveTranscriptRows()),
+                        dumpRows(lazy, -lazy.getScreen().getActiveTranscriptRows()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAddingRowsShowsHistoryStillToReflow() {
+        TerminalEmulator lazy = newEmulator(20, 5, 100);
+        TerminalEmulator full = newEmulator(20, 5, 100);
+        full.mMainBuffer.mDeferReflow = false;
+        for (int line = 0; line < 50; line++) {
+            byte[] bytes = ("line " + line + "\r\n").getBytes(StandardCharsets.UTF_8);
+            lazy.append(bytes, bytes.length);
+            full.append(bytes, bytes.length);
+        }
+
+        lazy.resize(10, 5, 10, 20);
+        full.resize(10, 5, 10, 20);
+        assertTrue(lazy.mMainBuffer.hasPendingReflow());
+        // Rows added without changing the columns are filled from the history above the screen:
+        lazy.resize(10, 15, 10, 20);
+        full.resize(10, 15, 10, 20);
+        assertEquals(dumpScreen(full), dumpScreen(lazy));
+        assertEquals(full.getScreen().getTranscriptText(), lazy.getScreen().getTranscriptText());
+    }
+
+    /** The size, the cursor and the rows of the screen, which do not depend on the history left to reflow. */
+    private static String dumpScreen(TerminalEmulator emulator) {
+        return emulator.mColumns + "x" + emulator.mRows + " cursor " + emulator.getCursorCol() + "," + emulator.getCursorRow()
+            + " alt " + emulator.isAlternateBufferActive() + "\n" + dumpRows(emulator, 0);
+    }
+
+    /** The text, line wrap and styles of the rows from a first row to the bottom of the screen. */
+    private static String dumpRows(TerminalEmulator emulator, int firstRow) {
+        TerminalBuffer screen = emulator.getScreen();
+        StringBuilder dump = new StringBuilder();
+        for (int row = firstRow; row < emulator.mRows; row++) {
+            TerminalRow line = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+            dump.append(screen.getLineWrap(row) ? 'W' : '-').append('|');
+            dump.append(line.mText, 0, line.getSpaceUsed()).append('|');
+            for (int column = 0; column < emulator.mColumns; column++)
+                dump.append(Long.toHexString(line.getStyle(column))).append(' ');
+            dump.append('\n');
+        }
+        return dump.toString();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class TerminalStateStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRestoreAtSameSize() throws Exception {
+        File file = new File(folder.getRoot(), "state.bin");
+        TerminalEmulator saved = newEmulator(20, 5, 100);
+        for (int line = 0; line < 10; line++) append(saved, "line " + line + "\r\n");
+        append(saved, "\033[31mred");
+        new TerminalStateStore(file).write(TerminalStateStore.capture(saved));
+
+        TerminalEmulator restored = newEmulator(20, 5, 100);
+        assertTrue(new TerminalStateStore(file).restore(restored));
+        assertEquals(saved.getScreen().getTranscriptText(), restored.getScreen().getTranscriptText());
+        assertEquals(saved.getCursorCol(), restored.getCursorCol());
+        assertEquals(saved.getCursorRow(), restored.getCursorRow());
+    }
+
+    @Test
+    public void testRestoreAtOtherSizeIsResized() throws Exception {
+        File file = new File(folder.getRoot(), "state.bin");
+        TerminalEmulator saved = newEmulator(20, 5, 100);
+        for (int line = 0; line < 10; line++) append(saved, "line " + line + "\r\n");
+        new TerminalStateStore(file).write(TerminalStateStore.capture(saved));
+
+        // As when the view of the restoring process is laid out at another size, or the device was rotated:
+        TerminalEmulator restored = newEmulator(30, 8, 100);
+        assertTrue(new TerminalStateStore(file).restore(restored));
+        assertEquals(30, restored.mColumns);
+        assertEquals(8, restored.mRows);
+        assertEquals(8, restored.getScreen().mScreenRows);
+        assertEquals(saved.getScreen().getTranscriptText(), restored.getScreen().getTranscriptText());
+        // Output continues at the new size:
+        append(restored, "0123456789012345678901234567");
+        assertTrue(restored.getScreen().getTranscriptText().endsWith("0123456789012345678901234567"));
+    }
+
+    @Test
+    public void testRestoreHistoryPendingReflow() throws Exception {
+        File file = new File(folder.getRoot(), "state.bin");
+        TerminalEmulator saved = newEmulator(20, 5, 100);
+        for (int line = 0; line < 30; line++) append(saved, "line " + line + " of the history\r\n");
+        // Narrowing leaves the history to be reflowed later, which saving must not lose:
+        saved.resize(10, 5, 10, 20);
+        assertTrue(saved.getScreen().hasPendingReflow());
+        new TerminalStateStore(file).write(TerminalStateStore.capture(saved));
+
+        TerminalEmulator restored = newEmulator(10, 5, 100);
+        assertTrue(new TerminalStateStore(file).restore(restored));
+        assertEquals(saved.getScreen().getTranscriptText(), restored.getScreen().getTranscriptText());
+        assertTrue(restored.getScreen().getTranscriptText().startsWith("line 0 of the history\nline 1"));
+    }
+
+    @Test
+    public void testNoSavedState() throws Exception {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        assertEquals(false, new TerminalStateStore(new File(folder.getRoot(), "none.bin")).restore(emulator));
+    }
+
+}
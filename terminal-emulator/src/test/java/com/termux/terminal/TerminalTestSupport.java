@@ -0,0 +1,38 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+
+/** What the tests of the emulator share: emulators without a process or client, and writing output to them. */
+final class TerminalTestSupport {
+
+    /** Output of an emulator without a process, which drops what the emulator sends back. */
+    static final class NullOutput extends TerminalOutput {
+        @Override public void write(byte[] data, int offset, int count) {}
+        @Override public void titleChanged(String oldTitle, String newTitle) {}
+        @Override public void onCopyTextToClipboard(String text) {}
+        @Override public void onPasteTextFromClipboard() {}
+        @Override public void onBell() {}
+        @Override public void onColorsChanged() {}
+    }
+
+    private TerminalTestSupport() {
+    }
+
+    /** An emulator with cells of 10 by 20 pixels and no client. */
+    static TerminalEmulator newEmulator(int columns, int rows, int transcriptRows) {
+        return new TerminalEmulator(new NullOutput(), columns, rows, 10, 20, transcriptRows, null);
+    }
+
+    /** Append output to an emulator as if read from its process. */
+    static void append(TerminalEmulator emulator, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+    }
+
+    /** Run a command in a shell with OSC 133 integration, leaving the cursor at the start of the row of the next prompt. */
+    static void runCommand(TerminalEmulator emulator, String command, String output, int exitCode) {
+        append(emulator, "\033]133;A\007$ \033]133;B\007" + command + "\r\n\033]133;C\007" + output
+            + "\033]133;D;" + exitCode + "\007");
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.termux.terminal;
+
+import static com.termux.terminal.TerminalTestSupport.append;
+import static com.termux.terminal.TerminalTestSupport.newEmulator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TranscriptSearchTest {
+
+    private static List<TranscriptSearch.Match> search(TerminalEmulator emulator, String query, boolean regex, boolean ignoreCase) {
+        TranscriptSearch.Query search = emulator.getScreen().getTranscriptSearch().query(query, regex, ignoreCase, 100);
+        while (search.step(3)) ;
+        assertTrue(search.isDone());
+        return search.getMatches();
+    }
+
+    private static void assertMatch(TerminalEmulator emulator, TranscriptSearch.Match match, int startRow, int startColumn, int endRow, int endColumn) {
+        TranscriptSearch search = emulator.getScreen().getTranscriptSearch();
+        assertEquals(startRow, search.externalRow(match.startRow));
+        assertEquals(startColumn, match.startColumn);
+        assertEquals(endRow, search.externalRow(match.endRow));
+        assertEquals(endColumn, match.endColumn);
+    }
+
+    @Test
+    public void testLiteralSearch() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "a.b axb\r\nfoo a.b");
+        List<TranscriptSearch.Match> matches = search(emulator, "a.b", false, false);
+        // From the last row and up:
+        assertEquals(2, matches.size());
+        assertMatch(emulator, matches.get(0), 1, 4, 1, 7);
+        assertMatch(emulator, matches.get(1), 0, 0, 0, 3);
+    }
+
+    @Test
+    public void testRegexSearch() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "a.b axb aab");
+        List<TranscriptSearch.Match> matches = search(emulator, "a.b", true, false);
+        assertEquals(3, matches.size());
+        assertMatch(emulator, matches.get(1), 0, 4, 0, 7);
+
+        matches = search(emulator, "x\\w+", true, false);
+        assertEquals(1, matches.size());
+        assertMatch(emulator, matches.get(0), 0, 5, 0, 7);
+    }
+
+    @Test
+    public void testIgnoreCase() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "Error ERROR error");
+        assertEquals(1, search(emulator, "error", false, false).size());
+        assertEquals(3, search(emulator, "error", false, true).size());
+        assertEquals(3, search(emulator, "e[r]+or", true, true).size());
+    }
+
+    @Test
+    public void testMatchAcrossWrappedRows() {
+        TerminalEmulator emulator = newEmulator(10, 5, 100);
+        append(emulator, "0123456789abcdefghij\r\nnext");
+        List<TranscriptSearch.Match> matches = search(emulator, "789abc", false, false);
+        assertEquals(1, matches.size());
+        assertMatch(emulator, matches.get(0), 0, 7, 1, 3);
+        // Matches do not span logical lines:
+        assertEquals(0, search(emulator, "jnext", false, false).size());
+    }
+
+    @Test
+    public void testColumnsAfterWideCharacters() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "a中文b");
+        List<TranscriptSearch.Match> matches = search(emulator, "文b", false, false);
+        assertEquals(1, matches.size());
+        assertMatch(emulator, matches.get(0), 0, 3, 0, 6);
+    }
+
+    @Test
+    public void testColumnsAfterGraphemeCluster() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        // A thumbs up with a skin tone modifier, joined into one wide cluster of four chars:
+        append(emulator, "\033[?2027hx👍🏽yz");
+        List<TranscriptSearch.Match> matches = search(emulator, "yz", false, false);
+        assertEquals(1, matches.size());
+        assertMatch(emulator, matches.get(0), 0, 3, 0, 5);
+
+        matches = search(emulator, "x👍🏽", false, false);
+        assertEquals(1, matches.size());
+        assertMatch(emulator, matches.get(0), 0, 0, 0, 3);
+    }
+
+    @Test
+    public void testRestartAfterResize() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        for (int line = 0; line < 30; line++) append(emulator, "line " + line + " of output\r\n");
+        TranscriptSearch.Query query = emulator.getScreen().getTranscriptSearch().query("of output", false, false, 100);
+        assertTrue(query.step(5));
+        emulator.resize(12, 5, 10, 20);
+        while (query.step(5)) ;
+
+        // Every line is found once, wrapped at the new width:
+        List<TranscriptSearch.Match> matches = query.getMatches();
+        assertEquals(30, matches.size());
+        Set<Long> rows = new HashSet<>();
+        for (TranscriptSearch.Match match : matches) {
+            assertTrue(rows.add(match.startRow));
+            assertTrue(match.endColumn <= 12);
+        }
+        // The last line is "line 29 of o", "utput", followed by the empty line of the cursor:
+        assertMatch(emulator, matches.get(0), emulator.getCursorRow() - 2, 8, emulator.getCursorRow() - 1, 5);
+    }
+
+    @Test
+    public void testInlineFlags() {
+        TerminalEmulator emulator = newEmulator(20, 5, 100);
+        append(emulator, "foobar FOO");
+        assertEquals(1, search(emulator, "(?x)foo bar", true, false).size());
+        assertEquals(2, search(emulator, "(?i)foo", true, false).size());
+    }
+
+    @Test
+    public void testRequiredLiteral() {
+        assertEquals("hello", TranscriptSearch.requiredLiteral("hello"));
+        // Alternation:
+        assertNull(TranscriptSearch.requiredLiteral("foo|bar"));
+        assertNull(TranscriptSearch.requiredLiteral("(foo|bar)baz"));
+        // Quantifiers end a literal, and drop the optional character:
+        assertEquals("cde", TranscriptSearch.requiredLiteral("ab?cde"));
+        assertEquals("abc", TranscriptSearch.requiredLiteral("abc+de"));
+        assertEquals("xyz", TranscriptSearch.requiredLiteral("ab*xyz"));
+        assertEquals("xyz", TranscriptSearch.requiredLiteral("ab{2}xyz"));
+        assertEquals("bar", TranscriptSearch.requiredLiteral("(foo)?bar"));
+        // Escapes:
+        assertEquals("a.b", TranscriptSearch.requiredLiteral("a\\.b"));
+        assertEquals("foo", TranscriptSearch.requiredLiteral("\\d+foo"));
+        assertEquals("ab", TranscriptSearch.requiredLiteral("ab\\x41cdef"));
+        assertNull(TranscriptSearch.requiredLiteral("\\Qfoo\\E"));
+        // Classes:
+        assertEquals("efg", TranscriptSearch.requiredLiteral("ab[cd]efg"));
+        assertEquals("ef", TranscriptSearch.requiredLiteral("[^]a]ef"));
+        assertNull(TranscriptSearch.requiredLiteral(".*"));
+        // Inline flags:
+        assertNull(TranscriptSearch.requiredLiteral("(?x)foo bar"));
+        assertNull(TranscriptSearch.requiredLiteral("(?i)foo"));
+        assertNull(TranscriptSearch.requiredLiteral("foo(?-i:bar)"));
+        assertEquals("bar", TranscriptSearch.requiredLiteral("(?:foo)?bar"));
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.termux.terminal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class WcWidthTest {
+
+    /** The two-level table of {@link WcWidth#width(int)} gives the width of the tables for every code point. */
+    @Test
+    public void testTableMatchesRanges() {
+        for (int ucs = 0; ucs <= Character.MAX_CODE_POINT; ucs++) {
+            // Grapheme clusters hold their own width, see GraphemeClusters:
+            int expected = GraphemeClusters.isCluster(ucs) ? GraphemeClusters.width(ucs) : WcWidth.computeWidth(ucs);
+            if (WcWidth.width(ucs) != expected) assertEquals("U+" + Integer.toHexString(ucs), expected, WcWidth.width(ucs));
+        }
+    }
+
+    @Test
+    public void testOutOfRange() {
+        assertEquals(0, WcWidth.width(-1));
+        assertEquals(1, WcWidth.width(Character.MAX_CODE_POINT + 1));
+    }
+
+}